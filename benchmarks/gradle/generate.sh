@@ -0,0 +1,70 @@
+#!/bin/sh
+# Generates a Gradle build of synthetic projects, each with a test and an integrationTest task, along with the
+# Foresight init script and the gradle-profiler scenarios comparing its configuration time with and without it.
+#
+# Usage: generate.sh [projects] [directory]
+set -e
+
+projects=${1:-300}
+dir=${2:-$(dirname "$0")/../target/gradle-configuration}
+template=$(cd "$(dirname "$0")/../../src/main/resources/META-INF/template" && pwd)/thundrainitscript.ftlh
+
+mkdir -p "$dir"
+dir=$(cd "$dir" && pwd)
+
+echo "rootProject.name = 'configuration-benchmark'" > "$dir/settings.gradle"
+i=1
+while [ "$i" -le "$projects" ]; do
+    echo "include ':project$i'" >> "$dir/settings.gradle"
+    mkdir -p "$dir/project$i"
+    cat > "$dir/project$i/build.gradle" <<'BUILD'
+plugins {
+    id 'java'
+}
+
+sourceSets {
+    integrationTest
+}
+
+tasks.register('integrationTest', Test) {
+    testClassesDirs = sourceSets.integrationTest.output.classesDirs
+    classpath = sourceSets.integrationTest.runtimeClasspath
+}
+BUILD
+    i=$((i + 1))
+done
+
+# The init script is static, its settings are read from the properties next to it and the API key from the
+# environment
+mkdir -p "$dir/foresight"
+cp "$template" "$dir/foresight/thundra-init.gradle"
+touch "$dir/foresight/thundra-agent.jar"
+cat > "$dir/foresight/thundra-foresight.properties" <<PROPERTIES
+THUNDRA_AGENT_PATH=$dir/foresight/thundra-agent.jar
+THUNDRA_AGENT_TEST_PROJECT_ID=benchmark
+THUNDRA_AGENT_TEST_RUN_ID=benchmark
+PROPERTIES
+
+# help creates no Test task, test --dry-run creates and configures those of every project
+cat > "$dir/configuration.scenarios" <<SCENARIOS
+default-scenarios = ["help", "help-foresight", "test-graph", "test-graph-foresight"]
+
+help {
+    tasks = ["help"]
+}
+help-foresight {
+    tasks = ["help"]
+    gradle-args = ["--init-script", "$dir/foresight/thundra-init.gradle"]
+}
+test-graph {
+    tasks = ["test", "integrationTest"]
+    gradle-args = ["--dry-run"]
+}
+test-graph-foresight {
+    tasks = ["test", "integrationTest"]
+    gradle-args = ["--dry-run", "--init-script", "$dir/foresight/thundra-init.gradle"]
+}
+SCENARIOS
+
+echo "Generated $projects projects in $dir, run:"
+echo "gradle-profiler --benchmark --project-dir $dir --scenario-file $dir/configuration.scenarios"
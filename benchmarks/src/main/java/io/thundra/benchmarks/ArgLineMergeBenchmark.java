@@ -0,0 +1,52 @@
+package io.thundra.benchmarks;
+
+import io.thundra.plugin.maven.test.instrumentation.adder.ArgLineMerger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging the agent configuration into the argLine of a Surefire or Failsafe plugin.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArgLineMergeBenchmark {
+
+    @Param({"empty", "user", "instrumented"})
+    public String argLine;
+
+    private String value;
+
+    @Setup
+    public void setUp() {
+        switch (argLine) {
+            case "empty":
+                value = null;
+                break;
+            case "user":
+                value = "@{argLine} -Xmx1g -XX:+HeapDumpOnOutOfMemoryError \"-Dlog.dir=/var/log/build logs\" ${extraArgs}";
+                break;
+            default:
+                value = ArgLineMerger.merge("@{argLine} -Xmx1g", PomCorpus.AGENT_CONFIGURATION);
+        }
+    }
+
+    @Benchmark
+    public String merge() {
+        return ArgLineMerger.merge(value, PomCorpus.AGENT_CONFIGURATION);
+    }
+}
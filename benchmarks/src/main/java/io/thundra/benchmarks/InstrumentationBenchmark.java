@@ -0,0 +1,102 @@
+package io.thundra.benchmarks;
+
+import io.thundra.foresight.PomInstrumentationCallable;
+import io.thundra.benchmarks.original.FailsafeChecker;
+import io.thundra.benchmarks.original.SurefireChecker;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Instrumenting every pom of a freshly written {@link PomCorpus} project, the way the plugin does and the way it did
+ * before the patcher.
+ * <p>
+ * The plugin engine runs {@link PomInstrumentationCallable} on the project as the Maven builders do on a fresh
+ * workspace: it discovers the poms, reads the reactor graph, then patches the plugin management of the root pom and
+ * the {@code argLine} overrides of the modules. The original engine is the loop the Maven builder used to run with the
+ * {@link io.thundra.benchmarks.original original checkers}: every pom is copied to a temporary file, checked for
+ * Surefire then Failsafe, in its profiles then its main build, and copied back.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InstrumentationBenchmark {
+
+    private static final Logger logger = LogManager.getLogger(InstrumentationBenchmark.class);
+
+    @Param({"1", "100", "1000", "5000"})
+    public int modules;
+
+    // Default of the Maven builders
+    private static final int THREADS = 4;
+
+    @Param({"plugin", "original"})
+    public String engine;
+
+    private Path dir;
+    private List<Path> poms;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("pom-corpus");
+        poms = PomCorpus.write(dir, modules);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public int instrument() throws IOException, InterruptedException {
+        if ("plugin".equals(engine)) {
+            return new PomInstrumentationCallable(PomCorpus.AGENT_CONFIGURATION, THREADS, null, null, null)
+                    .invoke(dir.toFile(), null).getModifiedCount();
+        }
+        MavenXpp3Reader mavenReader = new MavenXpp3Reader();
+        SurefireChecker surefireChecker = new SurefireChecker();
+        FailsafeChecker failsafeChecker = new FailsafeChecker();
+        // Every pom is written back, changed or not
+        int written = 0;
+        for (Path pom : poms) {
+            File localPom = File.createTempFile("jenkins", "localPom.xml");
+            Files.copy(pom, localPom.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            surefireChecker.checkProfiles(logger, mavenReader, PomCorpus.AGENT_CONFIGURATION, localPom.getAbsolutePath(), true);
+            surefireChecker.checkPom(logger, mavenReader, PomCorpus.AGENT_CONFIGURATION, localPom.getAbsolutePath(), true);
+            failsafeChecker.checkProfiles(logger, mavenReader, PomCorpus.AGENT_CONFIGURATION, localPom.getAbsolutePath(), true);
+            failsafeChecker.checkPom(logger, mavenReader, PomCorpus.AGENT_CONFIGURATION, localPom.getAbsolutePath(), true);
+            Files.copy(localPom.toPath(), pom, StandardCopyOption.REPLACE_EXISTING);
+            Files.delete(localPom.toPath());
+            written++;
+        }
+        return written;
+    }
+}
@@ -0,0 +1,152 @@
+package io.thundra.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic multi-module Maven projects. Module poms inherit from the root pom and cycle through the shapes met in
+ * practice: no build section, Surefire configured in the build, Surefire and Failsafe in pluginManagement, and Surefire
+ * in profiles.
+ */
+public final class PomCorpus {
+
+    public static final String AGENT_CONFIGURATION = "/workspace/tools/thundra-agent-bootstrap-2.7.0.jar"
+            + " -Dthundra.apiKey=00000000-0000-0000-0000-000000000000"
+            + " -Dthundra.agent.test.project.id=11111111-1111-1111-1111-111111111111"
+            + " -Dthundra.agent.test.run.id=22222222-2222-2222-2222-222222222222";
+
+    public static final int SHAPES = 4;
+
+    private PomCorpus() {
+    }
+
+    public static String rootPom(int modules) {
+        StringBuilder pom = new StringBuilder(256 + modules * 32);
+        pom.append(header("root", "pom", false));
+        pom.append("  <modules>\n");
+        for (int i = 0; i < modules; i++) {
+            pom.append("    <module>module-").append(i).append("</module>\n");
+        }
+        pom.append("  </modules>\n");
+        return pom.append("</project>\n").toString();
+    }
+
+    public static String modulePom(int index) {
+        StringBuilder pom = new StringBuilder(2048);
+        pom.append(header("module-" + index, "jar", true));
+        pom.append("  <dependencies>\n");
+        pom.append(dependency("org.junit.jupiter", "junit-jupiter", "5.8.2"));
+        pom.append(dependency("org.mockito", "mockito-core", "4.5.1"));
+        pom.append("  </dependencies>\n");
+        switch (index % SHAPES) {
+            case 0:
+                break;
+            case 1:
+                pom.append("  <build>\n    <plugins>\n");
+                pom.append(plugin("maven-surefire-plugin", "-Xmx512m -Dfile.encoding=UTF-8", "      "));
+                pom.append("    </plugins>\n  </build>\n");
+                break;
+            case 2:
+                pom.append("  <build>\n    <!-- Versions are managed by the parent -->\n    <pluginManagement>\n      <plugins>\n");
+                pom.append(plugin("maven-surefire-plugin", "@{argLine} -Xss1m", "        "));
+                pom.append(plugin("maven-failsafe-plugin", null, "        "));
+                pom.append("      </plugins>\n    </pluginManagement>\n  </build>\n");
+                break;
+            default:
+                pom.append("  <profiles>\n");
+                for (String profile : new String[]{"ci", "coverage"}) {
+                    pom.append("    <profile>\n      <id>").append(profile).append("</id>\n");
+                    pom.append("      <build>\n        <plugins>\n");
+                    pom.append(plugin("maven-surefire-plugin", "-D" + profile + "=true", "          "));
+                    pom.append("        </plugins>\n      </build>\n    </profile>\n");
+                }
+                pom.append("  </profiles>\n");
+        }
+        return pom.append("</project>\n").toString();
+    }
+
+    /**
+     * A module pom with Surefire in its build and {@code profiles} profiles, each configuring Surefire with its own
+     * argLine and declaring Failsafe.
+     */
+    public static String profilesPom(int profiles) {
+        StringBuilder pom = new StringBuilder(1024 + profiles * 640);
+        pom.append(header("profiles", "jar", true));
+        pom.append("  <build>\n    <plugins>\n");
+        pom.append(plugin("maven-surefire-plugin", null, "      "));
+        pom.append("    </plugins>\n  </build>\n");
+        pom.append("  <profiles>\n");
+        for (int i = 0; i < profiles; i++) {
+            pom.append("    <profile>\n      <id>profile-").append(i).append("</id>\n");
+            pom.append("      <build>\n        <plugins>\n");
+            pom.append(plugin("maven-surefire-plugin", "-Dprofile=" + i, "          "));
+            pom.append(plugin("maven-failsafe-plugin", null, "          "));
+            pom.append("        </plugins>\n      </build>\n    </profile>\n");
+        }
+        pom.append("  </profiles>\n");
+        return pom.append("</project>\n").toString();
+    }
+
+    /**
+     * Writes a root pom and {@code modules} module poms under {@code dir}, returning the paths of all of them.
+     */
+    public static List<Path> write(Path dir, int modules) throws IOException {
+        List<Path> poms = new ArrayList<>(modules + 1);
+        poms.add(write(dir.resolve("pom.xml"), rootPom(modules)));
+        for (int i = 0; i < modules; i++) {
+            Path module = Files.createDirectories(dir.resolve("module-" + i));
+            poms.add(write(module.resolve("pom.xml"), modulePom(i)));
+        }
+        return poms;
+    }
+
+    private static Path write(Path file, String content) throws IOException {
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String header(String artifactId, String packaging, boolean child) {
+        String parent = !child ? "" : "  <parent>\n"
+                + "    <groupId>io.thundra.benchmarks</groupId>\n"
+                + "    <artifactId>root</artifactId>\n"
+                + "    <version>1.0.0-SNAPSHOT</version>\n"
+                + "  </parent>\n";
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<project xmlns=\"http://maven.apache.org/POM/4.0.0\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+                + " xsi:schemaLocation=\"http://maven.apache.org/POM/4.0.0 http://maven.apache.org/xsd/maven-4.0.0.xsd\">\n"
+                + "  <modelVersion>4.0.0</modelVersion>\n"
+                + parent
+                + "  <groupId>io.thundra.benchmarks</groupId>\n"
+                + "  <artifactId>" + artifactId + "</artifactId>\n"
+                + "  <version>1.0.0-SNAPSHOT</version>\n"
+                + "  <packaging>" + packaging + "</packaging>\n";
+    }
+
+    private static String dependency(String groupId, String artifactId, String version) {
+        return "    <dependency>\n"
+                + "      <groupId>" + groupId + "</groupId>\n"
+                + "      <artifactId>" + artifactId + "</artifactId>\n"
+                + "      <version>" + version + "</version>\n"
+                + "      <scope>test</scope>\n"
+                + "    </dependency>\n";
+    }
+
+    private static String plugin(String artifactId, String argLine, String indent) {
+        StringBuilder plugin = new StringBuilder();
+        plugin.append(indent).append("<plugin>\n");
+        plugin.append(indent).append("  <groupId>org.apache.maven.plugins</groupId>\n");
+        plugin.append(indent).append("  <artifactId>").append(artifactId).append("</artifactId>\n");
+        plugin.append(indent).append("  <version>2.22.2</version>\n");
+        if (argLine != null) {
+            plugin.append(indent).append("  <configuration>\n");
+            plugin.append(indent).append("    <argLine>").append(argLine).append("</argLine>\n");
+            plugin.append(indent).append("  </configuration>\n");
+        }
+        plugin.append(indent).append("</plugin>\n");
+        return plugin.toString();
+    }
+}
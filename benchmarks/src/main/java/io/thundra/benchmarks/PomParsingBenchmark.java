@@ -0,0 +1,60 @@
+package io.thundra.benchmarks;
+
+import io.thundra.plugin.maven.test.instrumentation.patcher.PomPatcher;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a single module pom, as the Maven model and as the patcher does when there is nothing to change. Module
+ * poms inherit from the root pom of the reactor, the patcher reads them in {@link PomPatcher.Mode#OVERRIDES} mode as
+ * the plugin does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PomParsingBenchmark {
+
+    /**
+     * Index of the {@link PomCorpus} module shape.
+     */
+    @Param({"0", "1", "2", "3"})
+    public int shape;
+
+    private String pom;
+    private String instrumented;
+    private PomPatcher patcher;
+
+    @Setup
+    public void setUp() throws Exception {
+        pom = PomCorpus.modulePom(shape);
+        patcher = new PomPatcher(PomPatcher.SUREFIRE_PLUGIN, PomPatcher.FAILSAFE_PLUGIN);
+        instrumented = patcher.patch(pom, PomCorpus.AGENT_CONFIGURATION, PomPatcher.Mode.OVERRIDES);
+    }
+
+    @Benchmark
+    public Model mavenModel() throws Exception {
+        return new MavenXpp3Reader().read(new StringReader(pom));
+    }
+
+    @Benchmark
+    public String patcherUnchanged() throws Exception {
+        return patcher.patch(instrumented, PomCorpus.AGENT_CONFIGURATION, PomPatcher.Mode.OVERRIDES);
+    }
+}
@@ -0,0 +1,57 @@
+package io.thundra.benchmarks;
+
+import io.thundra.plugin.maven.test.instrumentation.patcher.PomPatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Patching a pom with many profiles, each configuring Surefire, in the modes of the topmost poms and of the modules
+ * inheriting from them. The patch being idempotent, {@link #patchInstrumented} measures the steady state of a pom
+ * which is already instrumented.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProfileTraversalBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int profiles;
+
+    @Param({"MANAGED", "OVERRIDES"})
+    public PomPatcher.Mode mode;
+
+    private String pom;
+    private String instrumented;
+    private PomPatcher patcher;
+
+    @Setup
+    public void setUp() throws Exception {
+        pom = PomCorpus.profilesPom(profiles);
+        patcher = new PomPatcher(PomPatcher.SUREFIRE_PLUGIN, PomPatcher.FAILSAFE_PLUGIN);
+        instrumented = patcher.patch(pom, PomCorpus.AGENT_CONFIGURATION, mode);
+    }
+
+    @Benchmark
+    public String patch() throws Exception {
+        return patcher.patch(pom, PomCorpus.AGENT_CONFIGURATION, mode);
+    }
+
+    @Benchmark
+    public String patchInstrumented() throws Exception {
+        return patcher.patch(instrumented, PomCorpus.AGENT_CONFIGURATION, mode);
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * The pom instrumentation the plugin shipped before the {@code PomPatcher}, kept as the reference of the
+ * {@code InstrumentationBenchmark}. The sources are those of the plugin at the time, only moved to this package: each
+ * checker parses the pom with the Maven model and writes it back for the profiles, then again for the main build.
+ */
+package io.thundra.benchmarks.original;
@@ -0,0 +1,371 @@
+package io.thundra.foresight;
+
+import hudson.FilePath;
+import hudson.Util;
+import io.thundra.foresight.exceptions.AgentNotFoundException;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Controller side cache of Thundra agent jars, keyed by agent version.
+ * <p>
+ * Every version is downloaded once, verified against the checksum published next to it in the repository and
+ * then served from disk. The cache is bounded in size and evicts the least recently used versions first.
+ */
+public class AgentCache {
+
+    private static final Logger logger = LogManager.getLogger(AgentCache.class);
+
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+    private static final String CACHE_DIR = "thundra-foresight/agent-cache";
+    private static final String SHA256_FILE = "sha256";
+    private static final Pattern VERSION_PATTERN = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
+
+    private static AgentCache instance;
+
+    private final File root;
+    private final String repositoryUrl;
+    private final long maxSize;
+    private final AgentDownloader downloader;
+    private final Map<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<>();
+    // Jars whose content has been checked against their recorded digest since startup, with the size at that time
+    private final Map<File, Long> verified = new ConcurrentHashMap<>();
+
+    public AgentCache(File root, String repositoryUrl, long maxSize, AgentDownloader downloader) {
+        this.root = root;
+        this.repositoryUrl = repositoryUrl;
+        this.maxSize = maxSize;
+        this.downloader = downloader;
+    }
+
+    public static synchronized AgentCache get() {
+        if (instance == null) {
+            String prefix = AgentDownloader.class.getName();
+            AgentDownloader downloader = new AgentDownloader(RepositoryClient.get(),
+                    SystemProperties.getInteger(prefix + ".maxAttempts", AgentDownloader.DEFAULT_MAX_ATTEMPTS),
+                    SystemProperties.getLong(prefix + ".backoff", AgentDownloader.DEFAULT_BACKOFF),
+                    SystemProperties.getInteger(prefix + ".parallelism", AgentDownloader.DEFAULT_PARALLELISM),
+                    SystemProperties.getLong(prefix + ".parallelThreshold", AgentDownloader.DEFAULT_PARALLEL_THRESHOLD));
+            instance = new AgentCache(
+                    new File(Jenkins.get().getRootDir(), CACHE_DIR),
+                    ThundraUtils.THUNDRA_RELEASES_REPOSITORY,
+                    SystemProperties.getLong(AgentCache.class.getName() + ".maxSize", DEFAULT_MAX_SIZE),
+                    downloader);
+        }
+        return instance;
+    }
+
+    /**
+     * Copies the agent jar of the given version to {@code target}. The jar is copied even on the controller file
+     * system: a hard link would let a build changing its copy corrupt the cache.
+     *
+     * @param log   where to report downloads, may be {@code null}
+     * @param stats where to count cache hits and transferred bytes, may be {@code null}
+     */
+    public FilePath copyTo(String version, FilePath target, PrintStream log, ForesightStepStats stats) throws IOException, InterruptedException, AgentNotFoundException {
+        try (Lease lease = lease(version, log, stats)) {
+            if (target.exists()) {
+                target.delete();
+            } else {
+                target.getParent().mkdirs();
+            }
+            target.copyFrom(new FilePath(lease.getJar()));
+            if (stats != null) {
+                stats.addBytesTransferred(lease.getJar().length());
+            }
+            return target;
+        }
+    }
+
+    /**
+     * Returns the verified agent jar of the given version, downloading it first on a cache miss. The jar is not
+     * evicted until the lease is closed, by the same thread.
+     *
+     * @param log   where to report downloads, may be {@code null}
+     * @param stats where to count cache hits and transferred bytes, may be {@code null}
+     */
+    public Lease lease(String version, PrintStream log, ForesightStepStats stats) throws IOException, InterruptedException, AgentNotFoundException {
+        ReentrantReadWriteLock lock = lockFor(version);
+        return new Lease(fetch(version, lock, log, stats), lock);
+    }
+
+    /**
+     * Returns the SHA-256 of the agent jar of the given version, downloading it first on a cache miss.
+     */
+    public String getSha256(String version, PrintStream log, ForesightStepStats stats) throws IOException, InterruptedException, AgentNotFoundException {
+        try (Lease lease = lease(version, log, stats)) {
+            File digestFile = new File(lease.getJar().getParentFile(), SHA256_FILE);
+            return FileUtils.readFileToString(digestFile, StandardCharsets.US_ASCII).trim();
+        }
+    }
+
+    // Returns with the read lock of the version held
+    private File fetch(String version, ReentrantReadWriteLock lock, PrintStream log, ForesightStepStats stats)
+            throws IOException, InterruptedException, AgentNotFoundException {
+        File dir = new File(root, version);
+        File jar = new File(dir, jarName(version));
+        lock.readLock().lock();
+        boolean hit = false;
+        try {
+            hit = isValid(jar);
+        } finally {
+            if (!hit) {
+                lock.readLock().unlock();
+            }
+        }
+        if (hit) {
+            touch(dir);
+            if (stats != null) {
+                stats.cacheHit();
+            }
+            return jar;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (!isValid(jar)) {
+                long bytes = download(version, dir, jar, log);
+                if (stats != null) {
+                    stats.cacheMiss();
+                    stats.addBytesTransferred(bytes);
+                }
+            } else if (stats != null) {
+                // Downloaded by a concurrent build meanwhile
+                stats.cacheHit();
+            }
+            touch(dir);
+            // Downgrade so that eviction cannot remove the jar before the caller is done with it
+            lock.readLock().lock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        evict();
+        return jar;
+    }
+
+    private ReentrantReadWriteLock lockFor(String version) throws IOException {
+        if (version == null || !VERSION_PATTERN.matcher(version).matches()) {
+            throw new IOException("Invalid Thundra agent version: " + version);
+        }
+        return locks.computeIfAbsent(version, v -> new ReentrantReadWriteLock());
+    }
+
+    private boolean isValid(File jar) throws IOException {
+        File digestFile = new File(jar.getParentFile(), SHA256_FILE);
+        if (!jar.isFile() || !digestFile.isFile()) {
+            return false;
+        }
+        Long verifiedSize = verified.get(jar);
+        if (verifiedSize != null && verifiedSize == jar.length()) {
+            return true;
+        }
+        String expected = FileUtils.readFileToString(digestFile, StandardCharsets.US_ASCII).trim();
+        if (!expected.equalsIgnoreCase(digest(jar, "SHA-256"))) {
+            logger.warn(String.format("Cached Thundra agent %s is corrupted, downloading it again", jar));
+            return false;
+        }
+        verified.put(jar, jar.length());
+        return true;
+    }
+
+    // Returns the number of bytes received
+    private long download(String version, File dir, File jar, PrintStream log)
+            throws IOException, InterruptedException, AgentNotFoundException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create agent cache directory " + dir);
+        }
+        RepositoryChain chain = RepositoryChain.get();
+        List<String> repositories = chain.repositories(repositoryUrl);
+        IOException failure = null;
+        for (String repository : repositories) {
+            String url = repository + String.format(ThundraUtils.THUNDRA_AGENT_ARTIFACT_PATH, version, version);
+            try {
+                AgentDownloader.Stats stats = download(repository, url, dir, jar);
+                if (stats == null) {
+                    chain.success(repository, -1);
+                    continue;
+                }
+                logger.info(String.format("Cached Thundra agent %s from %s: %s", version, repository, stats));
+                if (log != null) {
+                    log.println(String.format("Downloaded Thundra agent %s: %s", version, stats));
+                }
+                return stats.getBytes();
+            } catch (IOException e) {
+                chain.failure(repository, e);
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        throw new AgentNotFoundException("Cannot find Thundra agent version " + version + " in " + repositories);
+    }
+
+    /**
+     * Downloads and verifies the jar at {@code url} into the cache.
+     *
+     * @return {@code null} if the repository does not have it
+     */
+    private AgentDownloader.Stats download(String repository, String url, File dir, File jar)
+            throws IOException, InterruptedException {
+        File tmp = File.createTempFile(jar.getName(), ".tmp", dir);
+        try {
+            AgentDownloader.Stats stats;
+            try {
+                stats = downloader.download(url, tmp);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            // Ranges may be fetched out of order, so the digests are computed once the file is complete
+            String sha256Hex = digest(tmp, "SHA-256");
+            verifyChecksum(repository, url, tmp, sha256Hex);
+
+            FileUtils.writeStringToFile(new File(dir, SHA256_FILE), sha256Hex, StandardCharsets.US_ASCII);
+            Files.move(tmp.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            verified.put(jar, jar.length());
+            return stats;
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private void verifyChecksum(String repository, String url, File file, String sha256)
+            throws IOException, InterruptedException {
+        // The checksum is small, its request time is the latency of the repository
+        long start = System.nanoTime();
+        String expected = readChecksum(url + ".sha256");
+        RepositoryChain.get().success(repository, System.nanoTime() - start);
+        String actual = sha256;
+        if (expected == null) {
+            expected = readChecksum(url + ".sha1");
+            actual = expected == null ? null : digest(file, "SHA-1");
+        }
+        if (expected == null) {
+            throw new IOException("No checksum published for " + url);
+        }
+        if (!expected.equalsIgnoreCase(actual)) {
+            throw new IOException(String.format("Checksum mismatch for %s: expected %s but was %s", url, expected, actual));
+        }
+    }
+
+    private String readChecksum(String url) throws IOException, InterruptedException {
+        String content = downloader.readString(url);
+        if (content == null) {
+            return null;
+        }
+        content = content.trim();
+        // Checksum files may be in "<hash>  <file name>" form
+        int end = content.indexOf(' ');
+        return end < 0 ? content : content.substring(0, end);
+    }
+
+    private synchronized void evict() {
+        File[] dirs = root.listFiles(File::isDirectory);
+        if (dirs == null) {
+            return;
+        }
+        List<File> versions = new ArrayList<>();
+        long total = 0;
+        for (File dir : dirs) {
+            versions.add(dir);
+            total += FileUtils.sizeOfDirectory(dir);
+        }
+        versions.sort(Comparator.comparingLong(File::lastModified));
+        for (File dir : versions) {
+            if (total <= maxSize) {
+                return;
+            }
+            ReentrantReadWriteLock lock = locks.computeIfAbsent(dir.getName(), v -> new ReentrantReadWriteLock());
+            // Versions in use are skipped, they will be reconsidered on the next eviction
+            if (!lock.writeLock().tryLock()) {
+                continue;
+            }
+            try {
+                long size = FileUtils.sizeOfDirectory(dir);
+                FileUtils.deleteDirectory(dir);
+                verified.keySet().removeIf(jar -> dir.equals(jar.getParentFile()));
+                total -= size;
+                logger.info(String.format("Evicted Thundra agent %s from the cache", dir.getName()));
+            } catch (IOException e) {
+                logger.warn(String.format("Cannot evict %s from the agent cache", dir), e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private static String jarName(String version) {
+        return String.format(ThundraUtils.THUNDRA_AGENT_JAR_NAME, version);
+    }
+
+    private static void touch(File dir) {
+        boolean ignored = dir.setLastModified(System.currentTimeMillis()); // For Jenkins Checkstyle workaround 'RV_RETURN_VALUE_IGNORED_BAD_PRACTICE'
+    }
+
+    private static String digest(File file, String algorithm) throws IOException {
+        MessageDigest md = messageDigest(algorithm);
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), md)) {
+            IOUtils.copy(in, NullOutputStream.NULL_OUTPUT_STREAM);
+        }
+        return Util.toHexString(md.digest());
+    }
+
+    private static MessageDigest messageDigest(String algorithm) throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Cached agent jar kept from eviction until closed.
+     */
+    public static final class Lease implements Closeable {
+        private final File jar;
+        private final ReentrantReadWriteLock lock;
+        private boolean closed;
+
+        private Lease(File jar, ReentrantReadWriteLock lock) {
+            this.jar = jar;
+            this.lock = lock;
+        }
+
+        public File getJar() {
+            return jar;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                lock.readLock().unlock();
+            }
+        }
+    }
+}
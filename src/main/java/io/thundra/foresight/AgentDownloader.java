@@ -0,0 +1,375 @@
+package io.thundra.foresight;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads files with the {@link RepositoryClient}, retrying failed transfers with exponential backoff.
+ * <p>
+ * An interrupted transfer is resumed from where it stopped with a {@code Range} request when the server supports it.
+ * Files of at least {@code parallelThreshold} bytes are fetched as {@code parallelism} ranges at once, each range
+ * being retried on its own, or in a single request if the server answers a range request with the whole file. {@code file} URLs are copied from the file system of the controller.
+ */
+public class AgentDownloader {
+
+    private static final Logger logger = LogManager.getLogger(AgentDownloader.class);
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_BACKOFF = 500;
+    public static final int DEFAULT_PARALLELISM = 1;
+    public static final long DEFAULT_PARALLEL_THRESHOLD = 8L * 1024 * 1024;
+
+    private static final long MAX_BACKOFF = 10_000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadFactory THREAD_FACTORY = new NamingThreadFactory(new DaemonThreadFactory(), "AgentDownloader");
+
+    private final RepositoryClient client;
+    private final int maxAttempts;
+    private final long backoff;
+    private final int parallelism;
+    private final long parallelThreshold;
+
+    public AgentDownloader(RepositoryClient client, int maxAttempts, long backoff, int parallelism,
+                           long parallelThreshold) {
+        this.client = client;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoff = backoff;
+        this.parallelism = Math.max(1, parallelism);
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Downloads {@code url} into {@code target}, replacing its content.
+     *
+     * @throws FileNotFoundException if the server does not have the file
+     */
+    public Stats download(String url, File target) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Stats stats = new Stats();
+        File source = localFile(url);
+        if (source != null) {
+            copy(source, target, url);
+            stats.attempts.incrementAndGet();
+            stats.bytes = target.length();
+            stats.nanos = System.nanoTime() - start;
+            return stats;
+        }
+        long length = parallelism > 1 ? probe(url, stats) : -1;
+        if (length >= parallelThreshold) {
+            try {
+                write(target, channel -> downloadRanges(url, channel, length, stats), stats);
+            } catch (RangeNotSupportedException e) {
+                // Some proxies advertise ranges in answers to HEAD requests but ignore them. The file is opened again,
+                // ranges still running cannot write to it anymore.
+                logger.info(String.format("%s, downloading it in a single request", e.getMessage()));
+                stats.ranges = 1;
+                write(target, channel -> downloadRange(url, channel, 0, -1, stats), stats);
+            }
+        } else {
+            write(target, channel -> downloadRange(url, channel, 0, -1, stats), stats);
+        }
+        stats.nanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    private static void write(File target, Transfer transfer, Stats stats) throws IOException, InterruptedException {
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            transfer.run(channel);
+            stats.bytes = channel.size();
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Reads a small text resource, {@code null} if the server does not have it.
+     */
+    public String readString(String url) throws IOException, InterruptedException {
+        File source = localFile(url);
+        if (source != null) {
+            return source.isFile() ? FileUtils.readFileToString(source, StandardCharsets.UTF_8) : null;
+        }
+        for (int attempt = 1; ; attempt++) {
+            try (RepositoryClient.Exchange exchange = client.open(url)) {
+                checkStatus(exchange, url);
+                return IOUtils.toString(exchange.getInputStream(), StandardCharsets.UTF_8);
+            } catch (FileNotFoundException e) {
+                return null;
+            } catch (IOException e) {
+                retryOrThrow(url, attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the resource if the server accepts range requests for it, -1 otherwise.
+     */
+    private long probe(String url, Stats stats) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try (RepositoryClient.Exchange exchange = client.open(url)) {
+                HttpURLConnection connection = exchange.getConnection();
+                connection.setRequestMethod("HEAD");
+                stats.attempts.incrementAndGet();
+                checkStatus(exchange, url);
+                String acceptRanges = connection.getHeaderField("Accept-Ranges");
+                return acceptRanges != null && acceptRanges.toLowerCase(Locale.ENGLISH).contains("bytes")
+                        ? connection.getContentLengthLong() : -1;
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                retryOrThrow(url, attempt, e);
+            }
+        }
+    }
+
+    private void downloadRanges(String url, FileChannel channel, long length, Stats stats)
+            throws IOException, InterruptedException {
+        long size = (length + parallelism - 1) / parallelism;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, THREAD_FACTORY);
+        try {
+            List<Future<Void>> ranges = new ArrayList<>(parallelism);
+            for (long from = 0; from < length; from += size) {
+                long first = from;
+                long last = Math.min(from + size, length) - 1;
+                ranges.add(executor.submit(() -> {
+                    downloadRange(url, channel, first, last, stats);
+                    return null;
+                }));
+            }
+            stats.ranges = ranges.size();
+            for (Future<Void> range : ranges) {
+                range.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        if (channel.size() != length) {
+            throw new IOException(String.format("Incomplete download of %s: %d of %d bytes", url, channel.size(), length));
+        }
+    }
+
+    /**
+     * Downloads the bytes {@code first} to {@code last} (inclusive, -1 for the end of the file) at the same position
+     * of the channel, resuming after the last written byte on failure.
+     */
+    private void downloadRange(String url, FileChannel channel, long first, long last, Stats stats)
+            throws IOException, InterruptedException {
+        // Updated on every write, so that a transfer failing half way is resumed after the bytes it wrote
+        Progress progress = new Progress(first);
+        for (int attempt = 1; ; attempt++) {
+            try (RepositoryClient.Exchange exchange = client.open(url)) {
+                HttpURLConnection connection = exchange.getConnection();
+                boolean partial = progress.position > 0 || last >= 0;
+                if (partial) {
+                    connection.setRequestProperty("Range",
+                            "bytes=" + progress.position + "-" + (last >= 0 ? last : ""));
+                }
+                stats.attempts.incrementAndGet();
+                checkStatus(exchange, url);
+                if (partial && exchange.getStatus() != HttpURLConnection.HTTP_PARTIAL) {
+                    if (first > 0 || last >= 0) {
+                        throw new RangeNotSupportedException(url);
+                    }
+                    // Resume not supported, start over
+                    progress.position = 0;
+                    channel.truncate(0);
+                }
+                if (attempt > 1) {
+                    logger.info(String.format("Resuming download of %s at byte %d", url, progress.position));
+                }
+                // A connection closed early may look like a normal end of stream, so the length is checked as well
+                long end = last >= 0 ? last + 1 : contentEnd(connection, progress.position);
+                transfer(exchange.getInputStream(), channel, progress, last);
+                if (end < 0 || progress.position >= end) {
+                    return;
+                }
+                throw new IOException(String.format("Connection closed at byte %d of %s", progress.position, url));
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                retryOrThrow(url, attempt, e);
+            }
+        }
+    }
+
+    private static File localFile(String url) throws IOException {
+        if (!url.startsWith("file:")) {
+            return null;
+        }
+        try {
+            return new File(new URI(url));
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Invalid file URL: " + url, e);
+        }
+    }
+
+    private static void copy(File source, File target, String url) throws IOException {
+        if (!source.isFile()) {
+            throw new FileNotFoundException(url);
+        }
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static long contentEnd(HttpURLConnection connection, long position) {
+        long length = connection.getContentLengthLong();
+        return length < 0 ? -1 : position + length;
+    }
+
+    private static void transfer(InputStream in, FileChannel channel, Progress progress, long last) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            if (last >= 0) {
+                read = (int) Math.min(read, last + 1 - progress.position);
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+            while (bytes.hasRemaining()) {
+                progress.position += channel.write(bytes, progress.position);
+            }
+            if (last >= 0 && progress.position > last) {
+                break;
+            }
+        }
+    }
+
+    private static void checkStatus(RepositoryClient.Exchange exchange, String url) throws IOException {
+        int status = exchange.getStatus();
+        if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+            throw new FileNotFoundException(url);
+        }
+        if (status >= 400) {
+            throw new HttpStatusException(status, url);
+        }
+    }
+
+    private void retryOrThrow(String url, int attempt, IOException e) throws IOException, InterruptedException {
+        if (attempt >= maxAttempts || !isRetryable(e)) {
+            throw e;
+        }
+        long delay = Math.min(backoff << (attempt - 1), MAX_BACKOFF);
+        logger.warn(String.format("Download of %s failed (attempt %d of %d), retrying in %d ms: %s",
+                url, attempt, maxAttempts, delay, e));
+        Thread.sleep(delay);
+    }
+
+    private static boolean isRetryable(IOException e) {
+        if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+            return false;
+        }
+        if (e instanceof RangeNotSupportedException) {
+            return false;
+        }
+        if (e instanceof HttpStatusException) {
+            int status = ((HttpStatusException) e).status;
+            return status >= 500 || status == 408 || status == 429;
+        }
+        return true;
+    }
+
+    private interface Transfer {
+        void run(FileChannel channel) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Position of the next byte to write in a range.
+     */
+    private static final class Progress {
+        private long position;
+
+        private Progress(long position) {
+            this.position = position;
+        }
+    }
+
+    private static final class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        HttpStatusException(int status, String url) {
+            super(String.format("Server returned HTTP %d for %s", status, url));
+            this.status = status;
+        }
+    }
+
+    private static final class RangeNotSupportedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RangeNotSupportedException(String url) {
+            super("Server does not support range requests for " + url);
+        }
+    }
+
+    /**
+     * Transfer metrics of a download.
+     */
+    public static class Stats {
+        private final AtomicInteger attempts = new AtomicInteger();
+        private long bytes;
+        private long nanos;
+        private int ranges = 1;
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMillis() {
+            return nanos / 1_000_000;
+        }
+
+        /**
+         * Number of requests made, including the range probe and retries.
+         */
+        public int getAttempts() {
+            return attempts.get();
+        }
+
+        public int getRanges() {
+            return ranges;
+        }
+
+        public double getBytesPerSecond() {
+            return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%d bytes in %d ms (%.1f KB/s), %d request(s), %d range(s)",
+                    bytes, getMillis(), getBytesPerSecond() / 1024, getAttempts(), ranges);
+        }
+    }
+}
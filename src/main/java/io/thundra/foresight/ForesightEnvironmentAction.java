@@ -0,0 +1,80 @@
+package io.thundra.foresight;
+
+import hudson.EnvVars;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import hudson.util.Secret;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Environment variables contributed to the rest of the build by the Foresight build steps.
+ */
+public class ForesightEnvironmentAction extends InvisibleAction implements EnvironmentContributingAction {
+
+    private final Map<String, String> environment = new TreeMap<>();
+    // Options appended to the value of the variable in the build environment, keyed by variable
+    private Map<String, String> appended = new TreeMap<>();
+    // Variables holding the API key, kept encrypted in build.xml
+    private Map<String, Secret> secrets = new TreeMap<>();
+
+    /**
+     * Returns the action of the build, adding it first if needed.
+     */
+    public static synchronized ForesightEnvironmentAction of(Run<?, ?> run) {
+        ForesightEnvironmentAction action = run.getAction(ForesightEnvironmentAction.class);
+        if (action == null) {
+            action = new ForesightEnvironmentAction();
+            run.addAction(action);
+        }
+        return action;
+    }
+
+    public synchronized void put(String name, String value) {
+        environment.put(name, value);
+    }
+
+    /**
+     * Adds a variable whose value is only saved encrypted with the build, such as one holding the API key.
+     */
+    public synchronized void putSecret(String name, String value) {
+        secrets.put(name, Secret.fromString(value));
+    }
+
+    /**
+     * Appends {@code value} to the variable {@code name} of the build environment, separated by a space.
+     */
+    public synchronized void append(String name, String value) {
+        appended.merge(name, value, (a, b) -> a + " " + b);
+    }
+
+    public synchronized Map<String, String> getEnvironment() {
+        return new TreeMap<>(environment);
+    }
+
+    @Override
+    public synchronized void buildEnvironment(Run<?, ?> run, EnvVars env) {
+        env.putAll(environment);
+        for (Map.Entry<String, Secret> entry : secrets.entrySet()) {
+            env.put(entry.getKey(), entry.getValue().getPlainText());
+        }
+        for (Map.Entry<String, String> entry : appended.entrySet()) {
+            String current = env.get(entry.getKey());
+            env.put(entry.getKey(), StringUtils.isBlank(current) ? entry.getValue() : current + " " + entry.getValue());
+        }
+    }
+
+    protected synchronized Object readResolve() {
+        // Actions saved before options could be appended or secrets added
+        if (appended == null) {
+            appended = new TreeMap<>();
+        }
+        if (secrets == null) {
+            secrets = new TreeMap<>();
+        }
+        return this;
+    }
+}
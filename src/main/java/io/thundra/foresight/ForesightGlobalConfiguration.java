@@ -0,0 +1,101 @@
+package io.thundra.foresight;
+
+import hudson.Extension;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Global settings of the Thundra Foresight build steps.
+ */
+@Symbol("thundraForesight")
+@Extension
+public class ForesightGlobalConfiguration extends GlobalConfiguration {
+
+    private boolean cacheAgentOnNodes;
+    private List<ForesightRepository> repositories = new ArrayList<>();
+    private boolean offline;
+    private int maxConcurrentSteps = ForesightThrottle.DEFAULT_MAX_CONCURRENT_STEPS;
+
+    public ForesightGlobalConfiguration() {
+        load();
+    }
+
+    public static ForesightGlobalConfiguration get() {
+        return GlobalConfiguration.all().get(ForesightGlobalConfiguration.class);
+    }
+
+    public boolean isCacheAgentOnNodes() {
+        return cacheAgentOnNodes;
+    }
+
+    /**
+     * Whether the agent jar is pushed once per version into a tool cache on each node, rather than copied into every
+     * workspace. Off by default: the path of the jar ends up in the build configuration, builds running in containers
+     * which do not mount the node root would not find it.
+     */
+    @DataBoundSetter
+    public void setCacheAgentOnNodes(boolean cacheAgentOnNodes) {
+        this.cacheAgentOnNodes = cacheAgentOnNodes;
+        save();
+    }
+
+    public List<ForesightRepository> getRepositories() {
+        // Null in configurations saved before the setting existed
+        return repositories == null ? Collections.emptyList() : Collections.unmodifiableList(repositories);
+    }
+
+    /**
+     * Repositories to look up versions and download artifacts from before the public ones, see {@link RepositoryChain}.
+     */
+    @DataBoundSetter
+    public void setRepositories(List<ForesightRepository> repositories) {
+        this.repositories = repositories == null ? new ArrayList<>() : new ArrayList<>(repositories);
+        save();
+        // Versions resolved from the previous repositories may not be available from the new ones
+        VersionResolver.get().invalidate();
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * Whether the public repositories are never reached, only the configured ones.
+     */
+    @DataBoundSetter
+    public void setOffline(boolean offline) {
+        this.offline = offline;
+        save();
+        VersionResolver.get().invalidate();
+    }
+
+    public int getMaxConcurrentSteps() {
+        return maxConcurrentSteps;
+    }
+
+    /**
+     * Maximum number of Foresight steps preparing builds at once on the controller, unlimited if not positive, see
+     * {@link ForesightThrottle}.
+     */
+    @DataBoundSetter
+    public void setMaxConcurrentSteps(int maxConcurrentSteps) {
+        this.maxConcurrentSteps = maxConcurrentSteps;
+        save();
+        ForesightThrottle.get().limitChanged();
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        // A form without any repository does not submit the field at all
+        setRepositories(null);
+        req.bindJSON(this, json);
+        return true;
+    }
+}
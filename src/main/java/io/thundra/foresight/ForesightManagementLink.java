@@ -0,0 +1,47 @@
+package io.thundra.foresight;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+import org.jenkinsci.Symbol;
+
+/**
+ * Page of the Foresight build step statistics of the controller under Manage Jenkins, also served as JSON from
+ * {@code /manage/thundra-foresight/api/json}. Both are restricted to administrators, the statistics show repository
+ * URLs and errors and node names.
+ */
+@Symbol("thundraForesight")
+@Extension
+public class ForesightManagementLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Thundra Foresight";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Timings of the Thundra Foresight build steps";
+    }
+
+    @Override
+    public String getUrlName() {
+        return ForesightRunAction.URL_NAME;
+    }
+
+    public ForesightStatistics getStatistics() {
+        return ForesightStatistics.get();
+    }
+
+    public Api getApi() {
+        // Management links are served without checking any permission, the page checks it in its view
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        return new Api(ForesightStatistics.get());
+    }
+}
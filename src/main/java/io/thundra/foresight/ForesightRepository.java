@@ -0,0 +1,63 @@
+package io.thundra.foresight;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Maven repository to look up and download Thundra artifacts from, an {@code http(s)} mirror or a {@code file} URL of
+ * a directory with the Maven repository layout.
+ */
+public class ForesightRepository extends AbstractDescribableImpl<ForesightRepository> {
+
+    private final String url;
+
+    @DataBoundConstructor
+    public ForesightRepository(String url) {
+        this.url = normalize(url);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    static String normalize(String url) {
+        url = Util.fixEmptyAndTrim(url);
+        while (url != null && url.endsWith("/")) {
+            url = url.substring(0, url.length() - 1);
+        }
+        return url;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<ForesightRepository> {
+
+        @Override
+        public String getDisplayName() {
+            return "Repository";
+        }
+
+        public FormValidation doCheckUrl(@QueryParameter String value) {
+            String url = normalize(value);
+            if (url == null) {
+                return FormValidation.error("A repository URL is required");
+            }
+            try {
+                String protocol = new URL(url).getProtocol();
+                if (!"http".equals(protocol) && !"https".equals(protocol) && !"file".equals(protocol)) {
+                    return FormValidation.error("Only http, https and file URLs are supported");
+                }
+            } catch (MalformedURLException e) {
+                return FormValidation.error("Invalid URL: " + e.getMessage());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package io.thundra.foresight;
+
+import hudson.model.Api;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timings and counters of the Foresight build steps of a build, shown on the build page and served as JSON from
+ * {@code <build url>/thundra-foresight/api/json}.
+ */
+@ExportedBean
+public class ForesightRunAction implements RunAction2 {
+
+    public static final String URL_NAME = "thundra-foresight";
+
+    private final List<ForesightStepStats> steps = new ArrayList<>();
+    private transient Run<?, ?> run;
+
+    /**
+     * Returns the action of the build, adding it first if needed.
+     */
+    public static synchronized ForesightRunAction of(Run<?, ?> run) {
+        ForesightRunAction action = run.getAction(ForesightRunAction.class);
+        if (action == null) {
+            action = new ForesightRunAction();
+            run.addAction(action);
+        }
+        return action;
+    }
+
+    /**
+     * Completes the given stats and adds them to the build and to the {@link ForesightStatistics} of the controller.
+     */
+    public void add(ForesightStepStats stats, boolean success) {
+        stats.finish(success);
+        synchronized (this) {
+            steps.add(stats);
+        }
+        ForesightStatistics.get().record(stats);
+    }
+
+    @Exported(inline = true)
+    public synchronized List<ForesightStepStats> getSteps() {
+        return new ArrayList<>(steps);
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Thundra Foresight";
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+}
@@ -0,0 +1,217 @@
+package io.thundra.foresight;
+
+import jenkins.util.SystemProperties;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Controller wide view of the Foresight build steps since startup: percentiles of the stage timings over the most
+ * recent executions, and totals of the counters.
+ */
+@ExportedBean
+public class ForesightStatistics {
+
+    public static final int DEFAULT_WINDOW = 500;
+
+    private static final ForesightStatistics INSTANCE = new ForesightStatistics(
+            SystemProperties.getInteger(ForesightStatistics.class.getName() + ".window", DEFAULT_WINDOW));
+
+    private final int window;
+    // Most recent timings of each stage, keyed by step and stage name
+    private final Map<String, Deque<Long>> samples = new TreeMap<>();
+    private long steps;
+    private long failures;
+    private long bytesTransferred;
+    private long pomsScanned;
+    private long pomsModified;
+    private long pomsSkipped;
+    private long cacheHits;
+    private long cacheMisses;
+
+    public ForesightStatistics(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    public static ForesightStatistics get() {
+        return INSTANCE;
+    }
+
+    public synchronized void record(ForesightStepStats stats) {
+        steps++;
+        if (!stats.isSuccess()) {
+            failures++;
+        }
+        bytesTransferred += stats.getBytesTransferred();
+        pomsScanned += stats.getPomsScanned();
+        pomsModified += stats.getPomsModified();
+        pomsSkipped += stats.getPomsSkipped();
+        cacheHits += stats.getCacheHits();
+        cacheMisses += stats.getCacheMisses();
+        for (ForesightStepStats.Stage stage : stats.getStages()) {
+            Deque<Long> timings = samples.computeIfAbsent(stats.getStep() + '\n' + stage.getName(),
+                    k -> new ArrayDeque<>());
+            if (timings.size() == window) {
+                timings.removeFirst();
+            }
+            timings.addLast(stage.getMillis());
+        }
+    }
+
+    @Exported(inline = true)
+    public List<StageSummary> getStages() {
+        List<StageSummary> summaries = new ArrayList<>();
+        Map<String, long[]> snapshot = new TreeMap<>();
+        synchronized (this) {
+            for (Map.Entry<String, Deque<Long>> entry : samples.entrySet()) {
+                long[] timings = new long[entry.getValue().size()];
+                int i = 0;
+                for (Long timing : entry.getValue()) {
+                    timings[i++] = timing;
+                }
+                snapshot.put(entry.getKey(), timings);
+            }
+        }
+        for (Map.Entry<String, long[]> entry : snapshot.entrySet()) {
+            String[] key = entry.getKey().split("\n", 2);
+            summaries.add(new StageSummary(key[0], key[1], entry.getValue()));
+        }
+        return summaries;
+    }
+
+    /**
+     * Connection pool metrics of the repository requests.
+     */
+    @Exported(inline = true)
+    public RepositoryClient getRepositoryClient() {
+        return RepositoryClient.get();
+    }
+
+    /**
+     * Admission control of the steps.
+     */
+    @Exported(inline = true)
+    public ForesightThrottle getThrottle() {
+        return ForesightThrottle.get();
+    }
+
+    /**
+     * Latency and health of the repositories.
+     */
+    @Exported(inline = true)
+    public List<RepositoryChain.Health> getRepositories() {
+        return RepositoryChain.get().getRepositories();
+    }
+
+    @Exported
+    public int getWindow() {
+        return window;
+    }
+
+    @Exported
+    public synchronized long getSteps() {
+        return steps;
+    }
+
+    @Exported
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    @Exported
+    public synchronized long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    @Exported
+    public synchronized long getPomsScanned() {
+        return pomsScanned;
+    }
+
+    @Exported
+    public synchronized long getPomsModified() {
+        return pomsModified;
+    }
+
+    @Exported
+    public synchronized long getPomsSkipped() {
+        return pomsSkipped;
+    }
+
+    @Exported
+    public synchronized long getCacheHits() {
+        return cacheHits;
+    }
+
+    @Exported
+    public synchronized long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    @ExportedBean(defaultVisibility = 3)
+    public static class StageSummary {
+
+        private final String step;
+        private final String stage;
+        private final int count;
+        private final long p50;
+        private final long p95;
+        private final long max;
+
+        StageSummary(String step, String stage, long[] timings) {
+            Arrays.sort(timings);
+            this.step = step;
+            this.stage = stage;
+            this.count = timings.length;
+            this.p50 = percentile(timings, 50);
+            this.p95 = percentile(timings, 95);
+            this.max = timings[timings.length - 1];
+        }
+
+        // Nearest rank, so that the value is one of the recorded timings
+        private static long percentile(long[] sorted, int percentile) {
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+
+        @Exported
+        public String getStep() {
+            return step;
+        }
+
+        @Exported
+        public String getStage() {
+            return stage;
+        }
+
+        /**
+         * Number of timings the percentiles are computed from, at most the window.
+         */
+        @Exported
+        public int getCount() {
+            return count;
+        }
+
+        @Exported
+        public long getP50() {
+            return p50;
+        }
+
+        @Exported
+        public long getP95() {
+            return p95;
+        }
+
+        @Exported
+        public long getMax() {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package io.thundra.foresight;
+
+import freemarker.template.TemplateException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.console.ConsoleLogFilter;
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.slaves.WorkspaceList;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.Secret;
+import io.thundra.foresight.exceptions.AgentNotFoundException;
+import io.thundra.plugin.maven.test.instrumentation.adder.ForkConfiguration;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.BodyInvoker;
+import org.jenkinsci.plugins.workflow.steps.EnvironmentExpander;
+import org.jenkinsci.plugins.workflow.steps.GeneralNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Pipeline block step running its body with Thundra Foresight enabled, without changing any file of the workspace:
+ * the agent is provisioned on the node and passed to Maven, as a core extension, and Gradle through the environment of
+ * the block.
+ * <pre>
+ * withForesight(projectId: '...', credentialId: '...') {
+ *     sh 'mvn test'
+ * }
+ * </pre>
+ * With {@code shardCount} and {@code shardIndex} the block only runs its share of the test classes, see
+ * {@link TestShards}, and records the durations of the classes it ran for the plans of the next builds. Every step of
+ * a build reports to the same Foresight test run.
+ */
+public class ForesightStep extends Step {
+
+    public static final String MAVEN_OPTS = "MAVEN_OPTS";
+    public static final String JAVA_TOOL_OPTIONS = "JAVA_TOOL_OPTIONS";
+    public static final String THUNDRA_AGENT_TEST_RUN_ID = "THUNDRA_AGENT_TEST_RUN_ID";
+    public static final String SHARD_FILE = "thundra-foresight-shard-%d.txt";
+
+    private final String projectId;
+    private final String credentialId;
+    private String thundraAgentVersion;
+    private boolean javaToolOptions;
+    private int shardCount;
+    private int shardIndex;
+    private String testTasks;
+    private String gradleProjects;
+    private String forkCount;
+
+    @DataBoundConstructor
+    public ForesightStep(String projectId, String credentialId) {
+        this.projectId = projectId;
+        this.credentialId = credentialId;
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    public String getCredentialId() {
+        return credentialId;
+    }
+
+    public String getThundraAgentVersion() {
+        return thundraAgentVersion;
+    }
+
+    @DataBoundSetter
+    public void setThundraAgentVersion(String thundraAgentVersion) {
+        this.thundraAgentVersion = thundraAgentVersion;
+    }
+
+    public boolean isJavaToolOptions() {
+        return javaToolOptions;
+    }
+
+    /**
+     * Also attaches the agent through {@value #JAVA_TOOL_OPTIONS}, to every JVM started in the block, for test
+     * JVMs started neither by Maven nor by Gradle.
+     */
+    @DataBoundSetter
+    public void setJavaToolOptions(boolean javaToolOptions) {
+        this.javaToolOptions = javaToolOptions;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Number of parallel branches the test classes are split between, no sharding below 2.
+     */
+    @DataBoundSetter
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * Shard run by this block, from 0 to {@code shardCount - 1}.
+     */
+    @DataBoundSetter
+    public void setShardIndex(int shardIndex) {
+        this.shardIndex = shardIndex;
+    }
+
+    public String getTestTasks() {
+        return testTasks;
+    }
+
+    /**
+     * Comma separated names of the Gradle Test tasks to instrument, {@code *} matching any characters. All of them by
+     * default.
+     */
+    @DataBoundSetter
+    public void setTestTasks(String testTasks) {
+        this.testTasks = Util.fixEmptyAndTrim(testTasks);
+    }
+
+    public String getGradleProjects() {
+        return gradleProjects;
+    }
+
+    /**
+     * Comma separated paths of the Gradle projects whose Test tasks are instrumented, {@code *} matching any
+     * characters. All of them by default.
+     */
+    @DataBoundSetter
+    public void setGradleProjects(String gradleProjects) {
+        this.gradleProjects = Util.fixEmptyAndTrim(gradleProjects);
+    }
+
+    public String getForkCount() {
+        return forkCount;
+    }
+
+    /**
+     * Runs the Surefire and Failsafe tests of the block in this many reused forks, {@code 1C} for one per core of the
+     * node. The projects keep their own fork settings by default.
+     */
+    @DataBoundSetter
+    public void setForkCount(String forkCount) {
+        this.forkCount = Util.fixEmptyAndTrim(forkCount);
+    }
+
+    private boolean isSharded() {
+        return shardCount > 1;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) {
+        return new Execution(this, context);
+    }
+
+    /**
+     * Provisions the agent and returns the environment of the block: the variables to set, and those to append to.
+     */
+    private Expander setUp(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener)
+            throws IOException, InterruptedException {
+        ForesightStepStats stats = new ForesightStepStats("withForesight");
+        boolean success = false;
+        ForesightThrottle.Permit permit = null;
+        try {
+            if (StringUtils.isEmpty(credentialId) || StringUtils.isEmpty(projectId)) {
+                throw new IOException("Required parameters are missing");
+            }
+            if (isSharded() && (shardIndex < 0 || shardIndex >= shardCount)) {
+                throw new IOException("shardIndex must be between 0 and " + (shardCount - 1));
+            }
+            if (forkCount != null && !ForkConfiguration.isValid(forkCount)) {
+                throw new IOException("Invalid fork count " + forkCount);
+            }
+            String apiKey = ThundraUtils.getApiKey(run, credentialId);
+            permit = ForesightThrottle.get().acquire(ForesightThrottle.node(workspace), listener.getLogger());
+            stats.addStage(ForesightStepStats.ADMISSION, permit.getWaitMillis());
+            long start = System.currentTimeMillis();
+            String version = StringUtils.isNotEmpty(thundraAgentVersion) ? thundraAgentVersion : ThundraUtils.getLatestThundraVersion(stats);
+            start = stats.stage(ForesightStepStats.RESOLVE_AGENT_VERSION, start);
+            // Nothing is written to the workspace, the agent goes next to the Maven extension and the init script
+            // unless it is taken from the node tool cache
+            FilePath targetDir = WorkspaceList.tempDir(workspace);
+            String agentPath = ThundraUtils.downloadThundraAgent(targetDir, version, listener, stats).getRemote();
+            start = stats.stage(ForesightStepStats.PROVISION_AGENT, start);
+
+            String runId = ThundraUtils.getTestRunId(run);
+            Expander expander = new Expander();
+            expander.set(GradleForesightBuilder.THUNDRA_AGENT_PATH, agentPath);
+            expander.setSecret(GradleForesightBuilder.THUNDRA_APIKEY, apiKey);
+            expander.set(GradleForesightBuilder.THUNDRA_AGENT_TEST_PROJECT_ID, projectId);
+            expander.set(THUNDRA_AGENT_TEST_RUN_ID, runId);
+            String agentConfigurations = MvnForesightBuilder.getAgentConfigurations(agentPath, apiKey, projectId, null);
+            if (forkCount != null) {
+                agentConfigurations += " " + ForkConfiguration.FORK_NUMBER_PROPERTY;
+                expander.set(MavenExtensionJar.FORK_COUNT_ENV, forkCount);
+            }
+            expander.setSecret(MavenExtensionJar.AGENT_CONFIGURATION_ENV, agentConfigurations);
+            // Options variables are split on whitespace, paths with spaces cannot be passed in them
+            FilePath extension = MavenExtensionJar.install(targetDir);
+            if (extension.getRemote().indexOf(' ') >= 0) {
+                listener.getLogger().printf("%s contains spaces, it cannot be passed in %s%n", extension.getRemote(), MAVEN_OPTS);
+            } else {
+                expander.append(MAVEN_OPTS, MavenExtensionJar.mavenOpts(extension));
+            }
+            if (javaToolOptions) {
+                if (agentPath.indexOf(' ') >= 0) {
+                    listener.getLogger().printf("%s contains spaces, it cannot be passed in %s%n", agentPath, JAVA_TOOL_OPTIONS);
+                } else {
+                    expander.append(JAVA_TOOL_OPTIONS, "-javaagent:" + agentPath);
+                }
+            }
+
+            final Map<String, String> root = new HashMap<>();
+            root.put(GradleForesightBuilder.THUNDRA_AGENT_PATH, agentPath);
+            root.put(GradleForesightBuilder.THUNDRA_AGENT_TEST_PROJECT_ID, projectId);
+            root.put(THUNDRA_AGENT_TEST_RUN_ID, runId);
+            root.put(GradleForesightBuilder.THUNDRA_GRADLE_TEST_TASKS, testTasks);
+            root.put(GradleForesightBuilder.THUNDRA_GRADLE_PROJECTS, gradleProjects);
+            FilePath initScript = GradleForesightBuilder.writeScript(targetDir, GradleForesightBuilder.INIT_SCRIPT_FILE,
+                    GradleForesightBuilder.THUNDRAINITSCRIPT_FTLH, root);
+            expander.set(GradleForesightBuilder.THUNDRA_GRADLE_INIT_SCRIPT, initScript.getRemote());
+            start = stats.stage(ForesightStepStats.WRITE_SCRIPTS, start);
+
+            if (isSharded()) {
+                TestShards.Plan plan = TestShards.of(run, shardCount);
+                // The first shard also runs the classes without a known duration, the others only their own
+                boolean include = shardIndex > 0;
+                List<String> classes = include ? plan.getClasses(shardIndex) : plan.getOtherClasses(shardIndex);
+                FilePath shardFile = targetDir.child(String.format(SHARD_FILE, shardIndex));
+                shardFile.write(classes.isEmpty() ? "" : String.join("\n", classes) + "\n", "UTF-8");
+                expander.set(include ? MavenExtensionJar.SHARD_INCLUDES_ENV : MavenExtensionJar.SHARD_EXCLUDES_ENV,
+                        shardFile.getRemote());
+                listener.getLogger().printf("Running test shard %d of %d: %d test classes expected to take %d s%s%n",
+                        shardIndex + 1, shardCount, plan.getClasses(shardIndex).size(),
+                        plan.getMillis(shardIndex) / 1000, include ? "" : ", and the classes not run before");
+                stats.stage(ForesightStepStats.PLAN_SHARDS, start);
+            }
+
+            listener.getLogger().printf("Thundra Foresight agent %s enabled for Maven through %s, run Gradle with " +
+                    "--init-script \"$%s\"%n", version, MAVEN_OPTS, GradleForesightBuilder.THUNDRA_GRADLE_INIT_SCRIPT);
+            listener.getLogger().println("Thundra Foresight timings: " + stats);
+            success = true;
+            return expander;
+        } catch (XMLStreamException | AgentNotFoundException | TemplateException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+            ForesightRunAction.of(run).add(stats, success);
+        }
+    }
+
+    private static final class Execution extends GeneralNonBlockingStepExecution {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient ForesightStep step;
+
+        Execution(ForesightStep step, StepContext context) {
+            super(context);
+            this.step = step;
+        }
+
+        @Override
+        public boolean start() {
+            run(this::setUp);
+            return false;
+        }
+
+        private void setUp() throws Exception {
+            StepContext context = getContext();
+            Expander expander = step.setUp(context.get(Run.class), context.get(FilePath.class),
+                    context.get(Launcher.class), context.get(TaskListener.class));
+            String shardFile = expander.get(MavenExtensionJar.SHARD_INCLUDES_ENV,
+                    expander.get(MavenExtensionJar.SHARD_EXCLUDES_ENV, null));
+            context.newBodyInvoker()
+                    .withContext(EnvironmentExpander.merge(context.get(EnvironmentExpander.class), expander))
+                    .withContext(BodyInvoker.mergeConsoleLogFilters(context.get(ConsoleLogFilter.class),
+                            new MaskSecrets(expander.getSecrets(), context.get(Run.class).getCharset())))
+                    .withCallback(shardFile == null ? BodyExecutionCallback.wrap(context)
+                            : new RecordDurations(shardFile, step.getShardCount(), step.getShardIndex()))
+                    .start();
+        }
+
+        /**
+         * Records the durations of the test classes the shard ran, whether the block succeeded or not.
+         */
+        private final class RecordDurations extends TailCall {
+
+            private static final long serialVersionUID = 1L;
+
+            // Written before the block ran, older reports are left out
+            private final String shardFile;
+            private final int shardCount;
+            private final int shardIndex;
+
+            RecordDurations(String shardFile, int shardCount, int shardIndex) {
+                this.shardFile = shardFile;
+                this.shardCount = shardCount;
+                this.shardIndex = shardIndex;
+            }
+
+            @Override
+            protected void finished(StepContext context) throws Exception {
+                TaskListener listener = context.get(TaskListener.class);
+                try {
+                    Map<String, Long> durations = context.get(FilePath.class)
+                            .act(new TestDurations.ReportCollector(shardFile));
+                    Run<?, ?> run = context.get(Run.class);
+                    TestDurations.record(run.getParent(), durations);
+                    listener.getLogger().printf("Recorded the durations of %d test classes for the next shard plans%n",
+                            durations.size());
+                    // Once every shard reported, classes the build did not run are not planned anymore
+                    Set<String> ran = TestShards.of(run, shardCount).report(shardIndex, durations.keySet());
+                    if (ran != null) {
+                        int dropped = TestDurations.retain(run.getParent(), ran);
+                        if (dropped > 0) {
+                            listener.getLogger().printf("Dropped the durations of %d test classes not run anymore%n",
+                                    dropped);
+                        }
+                    }
+                } catch (IOException e) {
+                    listener.getLogger().println("Cannot record the test durations: " + e);
+                }
+            }
+        }
+    }
+
+    private static final class Expander extends EnvironmentExpander {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TreeMap<String, String> overrides = new TreeMap<>();
+        private final TreeMap<String, String> appended = new TreeMap<>();
+        // Variables holding the API key, kept encrypted in program.dat
+        private final TreeMap<String, Secret> secrets = new TreeMap<>();
+
+        void set(String name, String value) {
+            overrides.put(name, value);
+        }
+
+        void setSecret(String name, String value) {
+            secrets.put(name, Secret.fromString(value));
+        }
+
+        List<String> getSecrets() {
+            return secrets.values().stream().map(Secret::getPlainText).collect(Collectors.toList());
+        }
+
+        void append(String name, String value) {
+            appended.merge(name, value, (a, b) -> a + " " + b);
+        }
+
+        String get(String name, String defaultValue) {
+            return overrides.getOrDefault(name, defaultValue);
+        }
+
+        @Override
+        public void expand(EnvVars env) {
+            env.overrideAll(overrides);
+            for (Map.Entry<String, Secret> entry : secrets.entrySet()) {
+                env.override(entry.getKey(), entry.getValue().getPlainText());
+            }
+            for (Map.Entry<String, String> entry : appended.entrySet()) {
+                String current = env.get(entry.getKey());
+                env.override(entry.getKey(),
+                        StringUtils.isBlank(current) ? entry.getValue() : current + " " + entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Replaces the secret values of the block environment with {@value #MASK} in the build log, as
+     * {@code withCredentials} does.
+     */
+    private static final class MaskSecrets extends ConsoleLogFilter implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private static final String MASK = "****";
+
+        private final Secret pattern;
+        private final String charsetName;
+
+        MaskSecrets(List<String> secrets, Charset charset) {
+            List<String> values = new ArrayList<>();
+            for (String secret : secrets) {
+                if (!secret.isEmpty()) {
+                    values.add(secret);
+                }
+            }
+            // Longest first, so that a value containing another one is masked as a whole
+            values.sort((a, b) -> b.length() - a.length());
+            this.pattern = Secret.fromString(values.stream().map(Pattern::quote).collect(Collectors.joining("|")));
+            this.charsetName = charset.name();
+        }
+
+        @Override
+        public OutputStream decorateLogger(Run build, OutputStream logger) {
+            String regex = pattern.getPlainText();
+            if (regex.isEmpty()) {
+                return logger;
+            }
+            Pattern secrets = Pattern.compile(regex);
+            Charset charset = Charset.forName(charsetName);
+            return new LineTransformationOutputStream.Delegating(logger) {
+                @Override
+                protected void eol(byte[] b, int len) throws IOException {
+                    String line = new String(b, 0, len, charset);
+                    if (secrets.matcher(line).find()) {
+                        out.write(secrets.matcher(line).replaceAll(MASK).getBytes(charset));
+                    } else {
+                        out.write(b, 0, len);
+                    }
+                }
+            };
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public String getFunctionName() {
+            return "withForesight";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.ForesightStep_DescriptorImpl_DisplayName();
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+                    Run.class, FilePath.class, Launcher.class, TaskListener.class)));
+        }
+
+        public ListBoxModel doFillCredentialIdItems(
+                @AncestorInPath Item item,
+                @QueryParameter String credentialsId
+        ) {
+            return ThundraUtils.fillCredentials(item, credentialsId);
+        }
+
+        public FormValidation doCheckForkCount(@QueryParameter String value) {
+            return ThundraUtils.checkForkCount(value);
+        }
+
+    }
+}
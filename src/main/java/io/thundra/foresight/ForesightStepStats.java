@@ -0,0 +1,177 @@
+package io.thundra.foresight;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Timings and counters of one execution of a Foresight build step, kept with the build by {@link ForesightRunAction}.
+ */
+@ExportedBean(defaultVisibility = 2)
+public class ForesightStepStats {
+
+    public static final String ADMISSION = "Wait for admission";
+    public static final String RESOLVE_AGENT_VERSION = "Resolve agent version";
+    public static final String PROVISION_AGENT = "Provision agent";
+    public static final String DISCOVER_POMS = "Discover poms";
+    public static final String REWRITE_POMS = "Rewrite poms";
+    public static final String REMOTING = "Remoting";
+    public static final String RESOLVE_PLUGIN_VERSION = "Resolve plugin version";
+    public static final String WRITE_SCRIPTS = "Write scripts";
+    public static final String INSTALL_EXTENSION = "Install Maven extension";
+    public static final String PLAN_SHARDS = "Plan test shards";
+
+    private final String step;
+    private final long startTime;
+    private final List<Stage> stages = new ArrayList<>();
+    private long duration;
+    private boolean success;
+    private long bytesTransferred;
+    private int pomsScanned;
+    private int pomsModified;
+    private int pomsSkipped;
+    private int cacheHits;
+    private int cacheMisses;
+
+    /**
+     * @param step symbol of the build step
+     */
+    public ForesightStepStats(String step) {
+        this.step = step;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Records a stage which started at {@code start} and ends now.
+     *
+     * @return the current time, when the next stage starts
+     */
+    public long stage(String name, long start) {
+        long now = System.currentTimeMillis();
+        addStage(name, now - start);
+        return now;
+    }
+
+    public void addStage(String name, long millis) {
+        stages.add(new Stage(name, Math.max(0, millis)));
+    }
+
+    public void addBytesTransferred(long bytes) {
+        bytesTransferred += bytes;
+    }
+
+    public void cacheHit() {
+        cacheHits++;
+    }
+
+    public void cacheMiss() {
+        cacheMisses++;
+    }
+
+    public void setPoms(int scanned, int modified, int skipped) {
+        this.pomsScanned = scanned;
+        this.pomsModified = modified;
+        this.pomsSkipped = skipped;
+    }
+
+    void finish(boolean success) {
+        this.success = success;
+        this.duration = System.currentTimeMillis() - startTime;
+    }
+
+    @Exported
+    public String getStep() {
+        return step;
+    }
+
+    @Exported
+    public long getStartTime() {
+        return startTime;
+    }
+
+    @Exported
+    public long getDuration() {
+        return duration;
+    }
+
+    @Exported
+    public boolean isSuccess() {
+        return success;
+    }
+
+    @Exported
+    public List<Stage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * Bytes of agent jars downloaded from the repository and sent to the node.
+     */
+    @Exported
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    @Exported
+    public int getPomsScanned() {
+        return pomsScanned;
+    }
+
+    @Exported
+    public int getPomsModified() {
+        return pomsModified;
+    }
+
+    @Exported
+    public int getPomsSkipped() {
+        return pomsSkipped;
+    }
+
+    /**
+     * Lookups served by the version, controller agent and node agent caches.
+     */
+    @Exported
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    @Exported
+    public int getCacheMisses() {
+        return cacheMisses;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : stages) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(stage.name).append(' ').append(stage.millis).append(" ms");
+        }
+        return sb.append(String.format("; %d bytes transferred, %d cache hits, %d cache misses",
+                bytesTransferred, cacheHits, cacheMisses)).toString();
+    }
+
+    @ExportedBean(defaultVisibility = 3)
+    public static class Stage {
+
+        private final String name;
+        private final long millis;
+
+        public Stage(String name, long millis) {
+            this.name = name;
+            this.millis = millis;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getMillis() {
+            return millis;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package io.thundra.foresight;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntSupplier;
+
+/**
+ * Admission control of the Foresight build steps: at most {@link ForesightGlobalConfiguration#getMaxConcurrentSteps()}
+ * steps resolve versions, download agents and instrument builds at once on the controller, the others wait in a queue
+ * per node. Nodes take turns when a step finishes, so that a node with many builds waiting does not hold back the
+ * builds of the other nodes, and the steps of a node are admitted in their arrival order.
+ */
+@ExportedBean
+public class ForesightThrottle {
+
+    public static final int DEFAULT_MAX_CONCURRENT_STEPS = 8;
+
+    private static final ForesightThrottle INSTANCE = new ForesightThrottle(() -> {
+        ForesightGlobalConfiguration configuration = ForesightGlobalConfiguration.get();
+        return configuration == null ? DEFAULT_MAX_CONCURRENT_STEPS : configuration.getMaxConcurrentSteps();
+    });
+
+    private final IntSupplier limit;
+    // Waiting steps of each node, the nodes in the order of their turns
+    private final Map<String, ArrayDeque<Ticket>> queues = new LinkedHashMap<>();
+    private int active;
+    private int peakActive;
+    private long admitted;
+    private long waits;
+    private long waitMillis;
+    private long maxWaitMillis;
+
+    /**
+     * @param limit maximum number of steps admitted at once, unlimited if not positive
+     */
+    public ForesightThrottle(IntSupplier limit) {
+        this.limit = limit;
+    }
+
+    public static ForesightThrottle get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the name of the node of {@code workspace}, the queue its steps wait in.
+     */
+    public static String node(FilePath workspace) {
+        Computer computer = workspace.toComputer();
+        return computer == null ? "" : computer.getName();
+    }
+
+    /**
+     * Waits until a step of {@code node} may run. The returned permit must be closed once the step is done.
+     */
+    public Permit acquire(String node, PrintStream log) throws InterruptedException {
+        Ticket ticket = new Ticket();
+        int running;
+        int waiting;
+        synchronized (this) {
+            if (queues.isEmpty() && hasRoom()) {
+                admit();
+                return new Permit(0);
+            }
+            queues.computeIfAbsent(node, k -> new ArrayDeque<>()).add(ticket);
+            running = active;
+            waiting = getQueued();
+        }
+        log.printf("Waiting for Thundra Foresight admission, %d steps running and %d waiting%n", running, waiting);
+        long start = System.currentTimeMillis();
+        long waited;
+        synchronized (this) {
+            try {
+                while (!ticket.granted) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                if (ticket.granted) {
+                    release();
+                } else {
+                    ArrayDeque<Ticket> queue = queues.get(node);
+                    queue.remove(ticket);
+                    if (queue.isEmpty()) {
+                        queues.remove(node);
+                    }
+                }
+                throw e;
+            }
+            waited = System.currentTimeMillis() - start;
+            waits++;
+            waitMillis += waited;
+            maxWaitMillis = Math.max(maxWaitMillis, waited);
+        }
+        log.printf("Admitted after waiting %d ms%n", waited);
+        return new Permit(waited);
+    }
+
+    /**
+     * Admits waiting steps if the limit has been raised.
+     */
+    public synchronized void limitChanged() {
+        grant();
+    }
+
+    private synchronized void release() {
+        active--;
+        grant();
+    }
+
+    private void grant() {
+        boolean granted = false;
+        while (!queues.isEmpty() && hasRoom()) {
+            Iterator<Map.Entry<String, ArrayDeque<Ticket>>> nodes = queues.entrySet().iterator();
+            Map.Entry<String, ArrayDeque<Ticket>> next = nodes.next();
+            nodes.remove();
+            next.getValue().poll().granted = true;
+            admit();
+            granted = true;
+            if (!next.getValue().isEmpty()) {
+                // Back to the end of the line
+                queues.put(next.getKey(), next.getValue());
+            }
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    private void admit() {
+        active++;
+        admitted++;
+        peakActive = Math.max(peakActive, active);
+    }
+
+    private boolean hasRoom() {
+        int max = limit.getAsInt();
+        return max <= 0 || active < max;
+    }
+
+    @Exported
+    public int getLimit() {
+        return limit.getAsInt();
+    }
+
+    @Exported
+    public synchronized int getActive() {
+        return active;
+    }
+
+    @Exported
+    public synchronized int getPeakActive() {
+        return peakActive;
+    }
+
+    @Exported
+    public synchronized int getQueued() {
+        int queued = 0;
+        for (ArrayDeque<Ticket> queue : queues.values()) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    @Exported
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * Number of steps which could not be admitted at once.
+     */
+    @Exported
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    @Exported
+    public synchronized long getWaitMillis() {
+        return waitMillis;
+    }
+
+    @Exported
+    public synchronized long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    private static final class Ticket {
+        // Guarded by the throttle
+        private boolean granted;
+    }
+
+    /**
+     * Admission of a step, which lets the next waiting step in once closed.
+     */
+    public final class Permit implements AutoCloseable {
+
+        private final long waitMillis;
+        private boolean closed;
+
+        private Permit(long waitMillis) {
+            this.waitMillis = waitMillis;
+        }
+
+        /**
+         * Time spent waiting for the admission.
+         */
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ForesightThrottle.this) {
+                if (!closed) {
+                    closed = true;
+                    release();
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package io.thundra.foresight;
 
-import com.cloudbees.plugins.credentials.CredentialsProvider;
+import freemarker.cache.StrongCacheStorage;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
@@ -8,10 +8,12 @@ import freemarker.template.TemplateExceptionHandler;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractProject;
 import hudson.model.Item;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.slaves.WorkspaceList;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.ListBoxModel;
@@ -20,7 +22,6 @@ import io.thundra.foresight.exceptions.PluginNotFoundException;
 import jenkins.tasks.SimpleBuildStep;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.Symbol;
-import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
@@ -34,6 +35,7 @@ import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
 
 public class GradleForesightBuilder extends Builder implements SimpleBuildStep {
 
@@ -42,10 +44,26 @@ public class GradleForesightBuilder extends Builder implements SimpleBuildStep {
     public static final String THUNDRAINIT_FTLH = "thundrainit.ftlh";
     public static final String THUNDRA_AGENT_TEST_PROJECT_ID = "THUNDRA_AGENT_TEST_PROJECT_ID";
     public static final String THUNDRA_APIKEY = "THUNDRA_APIKEY";
+    public static final String THUNDRAINITSCRIPT_FTLH = "thundrainitscript.ftlh";
+    public static final String THUNDRA_GRADLE_INIT_SCRIPT = "THUNDRA_GRADLE_INIT_SCRIPT";
+    public static final String INIT_SCRIPT_FILE = "thundra-init.gradle";
+    public static final String THUNDRA_GRADLE_TEST_TASKS = "THUNDRA_GRADLE_TEST_TASKS";
+    public static final String THUNDRA_GRADLE_PROJECTS = "THUNDRA_GRADLE_PROJECTS";
+    /**
+     * Settings read by the scripts from their directory, see {@link #writeScript}.
+     */
+    public static final String SETTINGS_FILE = "thundra-foresight.properties";
+
+    // Configuration and templates are thread-safe once set up, so a single instance and its template cache are shared
+    private static final Configuration FREEMARKER_CONFIGURATION = createFreemarkerConfiguration();
+
     private final String projectId;
     private final String credentialId;
     private String thundraGradlePluginVersion;
     private String thundraAgentVersion;
+    private boolean useInitScript;
+    private String testTasks;
+    private String gradleProjects;
 
     @DataBoundConstructor
     public GradleForesightBuilder(String projectId, String credentialId) {
@@ -79,36 +97,90 @@ public class GradleForesightBuilder extends Builder implements SimpleBuildStep {
         this.thundraAgentVersion = thundraVersion;
     }
 
+    public boolean isUseInitScript() {
+        return useInitScript;
+    }
+
+    /**
+     * Writes the instrumentation as a Gradle init script outside of the workspace instead of applying it from
+     * build.gradle. Its path is exposed in the {@value #THUNDRA_GRADLE_INIT_SCRIPT} environment variable, to be passed
+     * to Gradle with {@code --init-script}.
+     */
+    @DataBoundSetter
+    public void setUseInitScript(boolean useInitScript) {
+        this.useInitScript = useInitScript;
+    }
+
+    public String getTestTasks() {
+        return testTasks;
+    }
+
+    /**
+     * Comma separated names of the Test tasks to instrument, {@code *} matching any characters. All of them by default.
+     */
+    @DataBoundSetter
+    public void setTestTasks(String testTasks) {
+        this.testTasks = Util.fixEmptyAndTrim(testTasks);
+    }
+
+    public String getGradleProjects() {
+        return gradleProjects;
+    }
+
+    /**
+     * Comma separated paths of the projects whose Test tasks are instrumented by the init script, {@code *} matching
+     * any characters. All of them by default.
+     */
+    @DataBoundSetter
+    public void setGradleProjects(String gradleProjects) {
+        this.gradleProjects = Util.fixEmptyAndTrim(gradleProjects);
+    }
+
     @Override
     public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
+        ForesightStepStats stats = new ForesightStepStats("gradleForesight");
+        boolean success = false;
+        ForesightThrottle.Permit permit = null;
         try {
             listener.getLogger().println("GradleForesight");
             if (StringUtils.isEmpty(credentialId) || StringUtils.isEmpty(projectId)) {
                 throw new IOException("Required parameters are missing");
             }
-            StringCredentials apiKeyCredentials = CredentialsProvider.findCredentialById(credentialId, StringCredentials.class, run);
-            if (apiKeyCredentials == null) {
-                throw new IOException("Wrong credentials provided");
-            }
-            String version = null;
+            String apiKey = ThundraUtils.getApiKey(run, credentialId);
+            permit = ForesightThrottle.get().acquire(ForesightThrottle.node(workspace), listener.getLogger());
+            stats.addStage(ForesightStepStats.ADMISSION, permit.getWaitMillis());
+            long start = System.currentTimeMillis();
+            String version = StringUtils.isNotEmpty(thundraAgentVersion) ? thundraAgentVersion : ThundraUtils.getLatestThundraVersion(stats);
+            start = stats.stage(ForesightStepStats.RESOLVE_AGENT_VERSION, start);
 
-            version = StringUtils.isNotEmpty(thundraAgentVersion) ? thundraAgentVersion : ThundraUtils.getLatestThundraVersion();
-
-            FilePath filePath = ThundraUtils.downloadThundraAgent(workspace, version);
-            String pluginVersion = StringUtils.isNotEmpty(thundraGradlePluginVersion) ? thundraGradlePluginVersion : ThundraUtils.getLatestPluginVersion();
+            // In init script mode nothing is written to the workspace, the agent goes next to the script unless it is
+            // taken from the node tool cache
+            FilePath targetDir = useInitScript ? WorkspaceList.tempDir(workspace) : workspace;
+            FilePath filePath = ThundraUtils.downloadThundraAgent(targetDir, version, listener, stats);
+            start = stats.stage(ForesightStepStats.PROVISION_AGENT, start);
+            String pluginVersion = StringUtils.isNotEmpty(thundraGradlePluginVersion) ? thundraGradlePluginVersion : ThundraUtils.getLatestPluginVersion(stats);
+            start = stats.stage(ForesightStepStats.RESOLVE_PLUGIN_VERSION, start);
             listener.getLogger().println("Latest Plugin Version : " + pluginVersion);
-            final Configuration cfg = getFreemarkerConfiguration();
+            // The API key reaches the scripts through the environment of the build, it is not written to the node
+            ForesightEnvironmentAction.of(run).putSecret(THUNDRA_APIKEY, apiKey);
             final Map<String, String> root = new HashMap<>();
-            String agentPath = filePath.toString();
-            agentPath = launcher.isUnix() ? agentPath : agentPath.replaceAll("\\\\", "\\\\\\\\");
-            root.put(THUNDRA_AGENT_PATH, agentPath);
-            root.put(THUNDRA_APIKEY, apiKeyCredentials.getSecret().getPlainText());
+            root.put(THUNDRA_AGENT_PATH, filePath.getRemote());
             root.put(THUNDRA_AGENT_TEST_PROJECT_ID, projectId);
+            root.put(ForesightStep.THUNDRA_AGENT_TEST_RUN_ID, ThundraUtils.getTestRunId(run));
+            root.put(THUNDRA_GRADLE_TEST_TASKS, testTasks);
+            root.put(THUNDRA_GRADLE_PROJECTS, gradleProjects);
+            if (useInitScript) {
+                FilePath initScript = writeScript(targetDir, INIT_SCRIPT_FILE, THUNDRAINITSCRIPT_FTLH, root);
+                ForesightEnvironmentAction.of(run).put(THUNDRA_GRADLE_INIT_SCRIPT, initScript.getRemote());
+                listener.getLogger().printf("Gradle init script written to %s, run Gradle with --init-script \"$%s\"%n",
+                        initScript.getRemote(), THUNDRA_GRADLE_INIT_SCRIPT);
+                stats.stage(ForesightStepStats.WRITE_SCRIPTS, start);
+                listener.getLogger().println("Thundra Foresight timings: " + stats);
+                success = true;
+                return;
+            }
             String initScriptFile = "thundra.gradle";
-            final Template template = cfg.getTemplate(THUNDRAINIT_FTLH);
-            FilePath initGradle = workspace.child(initScriptFile);
-            final Writer fileOut = new OutputStreamWriter(initGradle.write(), StandardCharsets.UTF_8);
-            template.process(root, fileOut);
+            FilePath initGradle = writeScript(workspace, initScriptFile, THUNDRAINIT_FTLH, root);
             File buildGradle = File.createTempFile("jenkins", "build.gradle");
             buildGradle.deleteOnExit();
             FilePath build = workspace.child("build.gradle");
@@ -128,15 +200,63 @@ public class GradleForesightBuilder extends Builder implements SimpleBuildStep {
             try (FileInputStream in = new FileInputStream(buildGradle)) {
                 build.copyFrom(in);
             }
+            stats.stage(ForesightStepStats.WRITE_SCRIPTS, start);
+            listener.getLogger().println("Thundra Foresight timings: " + stats);
+            success = true;
         } catch (XMLStreamException | AgentNotFoundException | PluginNotFoundException | TemplateException e) {
             throw new IOException(e.getMessage());
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+            ForesightRunAction.of(run).add(stats, success);
         }
     }
 
-    private Configuration getFreemarkerConfiguration() {
+    /**
+     * Writes a Gradle script to {@code dir} along with its settings, the agent path, project and test run ids and the
+     * task filters of {@code settings}, those without a value being left out.
+     * <p>
+     * The scripts read the settings at run time instead of having them rendered in, so that they are the same for every
+     * workspace and build: Gradle fingerprints the classes a script defines by the content of the script, and these
+     * fingerprints are part of the build cache keys of the test tasks.
+     *
+     * @return the script written
+     */
+    static FilePath writeScript(FilePath dir, String fileName, String template, Map<String, String> settings)
+            throws IOException, InterruptedException, TemplateException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            if (setting.getValue() != null) {
+                properties.setProperty(setting.getKey(), setting.getValue());
+            }
+        }
+        // Properties files are read as ISO 8859-1, other characters being escaped by store
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        properties.store(out, "Thundra Foresight settings");
+        dir.child(SETTINGS_FILE).write(new String(out.toByteArray(), StandardCharsets.ISO_8859_1), "ISO-8859-1");
+        FilePath script = dir.child(fileName);
+        script.write(renderTemplate(template, settings), "UTF-8");
+        return script;
+    }
+
+    /**
+     * Renders the given template in memory, the init scripts being small enough to be sent to the agent at once.
+     */
+    static String renderTemplate(String name, Map<String, String> model) throws IOException, TemplateException {
+        final Template template = FREEMARKER_CONFIGURATION.getTemplate(name);
+        final StringWriter out = new StringWriter(1024);
+        template.process(model, out);
+        return out.toString();
+    }
+
+    private static Configuration createFreemarkerConfiguration() {
         final Configuration cfg = new Configuration(Configuration.VERSION_2_3_31);
         cfg.setDefaultEncoding("UTF-8");
-        cfg.setClassForTemplateLoading(this.getClass(), "/META-INF/template");
+        cfg.setClassForTemplateLoading(GradleForesightBuilder.class, "/META-INF/template");
+        // Templates ship inside the plugin, so once parsed they are kept and never checked for changes again
+        cfg.setCacheStorage(new StrongCacheStorage());
+        cfg.setTemplateUpdateDelayMilliseconds(Long.MAX_VALUE);
         cfg.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
         cfg.setLogTemplateExceptions(false);
         cfg.setWrapUncheckedExceptions(true);
@@ -0,0 +1,245 @@
+package io.thundra.foresight;
+
+import hudson.Util;
+import io.thundra.plugin.maven.test.instrumentation.patcher.PomPatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records, per pom.xml of a workspace, the content hash before and after the last instrumentation together with the
+ * agent configuration it was instrumented for, so that poms which are still instrumented can be skipped.
+ * <p>
+ * Entries are kept per {@link PomPatcher.Mode}: a pom which becomes, or stops being, the topmost pom of the reactor is
+ * instrumented again even though its content did not change.
+ * <p>
+ * The {@link PomPatcher.Setting settings} each pom has because of the instrumentation are kept whatever the
+ * configuration, so that the instrumentation for another configuration can take back the ones it no longer enforces.
+ */
+public class InstrumentationManifest {
+
+    public static final String FILE_NAME = "thundra-foresight-manifest.properties";
+
+    private static final String CONFIG_KEY = "config";
+    private static final String POM_PREFIX = "pom.";
+
+    private final File file;
+    private final String configuration;
+    // Keyed by mode and path, see key
+    private final Map<String, Entry> previous = new ConcurrentHashMap<>();
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+    // Settings of the poms by path, whatever the configuration and mode of their entry
+    private final Map<String, List<PomPatcher.Setting>> settings = new ConcurrentHashMap<>();
+
+    private InstrumentationManifest(File file, String agentConfigurations) {
+        this.file = file;
+        this.configuration = sha256(agentConfigurations.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Loads the manifest for the given agent configuration. Entries recorded for another configuration are discarded,
+     * except for their settings.
+     */
+    public static InstrumentationManifest load(File file, String agentConfigurations) throws IOException {
+        InstrumentationManifest manifest = new InstrumentationManifest(file, agentConfigurations);
+        if (!file.isFile()) {
+            return manifest;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            properties.load(in);
+        }
+        boolean sameConfiguration = manifest.configuration.equals(properties.getProperty(CONFIG_KEY));
+        for (String key : properties.stringPropertyNames()) {
+            // Entries of older manifests have no mode and are dropped
+            int colon = key.indexOf(':');
+            if (key.startsWith(POM_PREFIX) && colon > 0) {
+                Entry entry = Entry.parse(properties.getProperty(key));
+                if (entry == null) {
+                    continue;
+                }
+                if (sameConfiguration) {
+                    manifest.previous.put(key.substring(POM_PREFIX.length()), entry);
+                }
+                if (!entry.settings.isEmpty()) {
+                    manifest.settings.put(key.substring(colon + 1), entry.settings);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns the entry of the pom if its current content is the output of the previous instrumentation in the same
+     * mode.
+     */
+    public Entry getInstrumented(String path, PomPatcher.Mode mode, String hash) {
+        Entry entry = previous.get(key(path, mode));
+        return entry != null && entry.output.equals(hash) ? entry : null;
+    }
+
+    /**
+     * Returns the settings the pom has because of its last instrumentation, in whichever configuration and mode.
+     */
+    public List<PomPatcher.Setting> getSettings(String path) {
+        return settings.getOrDefault(path, Collections.emptyList());
+    }
+
+    public void record(String path, PomPatcher.Mode mode, Entry entry) {
+        current.put(key(path, mode), entry);
+    }
+
+    // Paths are relative with forward slashes, they never contain a colon
+    private static String key(String path, PomPatcher.Mode mode) {
+        return mode + ":" + path;
+    }
+
+    /**
+     * Writes the entries recorded in this pass, dropping the ones of poms which were not seen.
+     */
+    public void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(CONFIG_KEY, configuration);
+        for (Map.Entry<String, Entry> entry : current.entrySet()) {
+            properties.setProperty(POM_PREFIX + entry.getKey(), entry.getValue().toString());
+        }
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+                properties.store(out, "Thundra Foresight instrumentation manifest");
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    public static String sha256(byte[] content) {
+        try {
+            return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class Entry {
+        private final String source;
+        private final String output;
+        private final boolean surefire;
+        private final boolean failsafe;
+        private final List<PomPatcher.Setting> settings;
+
+        public Entry(String source, String output, boolean surefire, boolean failsafe) {
+            this(source, output, surefire, failsafe, Collections.emptyList());
+        }
+
+        /**
+         * @param settings settings the pom has because of the instrumentation, see
+         *                 {@link PomPatcher.Result#getSettings()}
+         */
+        public Entry(String source, String output, boolean surefire, boolean failsafe,
+                     List<PomPatcher.Setting> settings) {
+            this.source = source;
+            this.output = output;
+            this.surefire = surefire;
+            this.failsafe = failsafe;
+            this.settings = Collections.unmodifiableList(new ArrayList<>(settings));
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public boolean isSurefireInstrumented() {
+            return surefire;
+        }
+
+        public boolean isFailsafeInstrumented() {
+            return failsafe;
+        }
+
+        public List<PomPatcher.Setting> getSettings() {
+            return settings;
+        }
+
+        static Entry parse(String value) {
+            String[] parts = value.split(",", -1);
+            if (parts.length != 4 && parts.length != 5) {
+                return null;
+            }
+            List<PomPatcher.Setting> settings = new ArrayList<>();
+            if (parts.length == 5 && !parts[4].isEmpty()) {
+                // name:value[:original] separated by semicolons, each part URL encoded
+                for (String setting : parts[4].split(";")) {
+                    String[] fields = setting.split(":", -1);
+                    if (fields.length != 2 && fields.length != 3) {
+                        return null;
+                    }
+                    settings.add(new PomPatcher.Setting(decode(fields[0]), decode(fields[1]),
+                            fields.length == 3 ? decode(fields[2]) : null));
+                }
+            }
+            return new Entry(parts[0], parts[1], Boolean.parseBoolean(parts[2]), Boolean.parseBoolean(parts[3]),
+                    settings);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder value = new StringBuilder().append(source).append(',').append(output)
+                    .append(',').append(surefire).append(',').append(failsafe);
+            if (settings.isEmpty()) {
+                return value.toString();
+            }
+            value.append(',');
+            for (int i = 0; i < settings.size(); i++) {
+                PomPatcher.Setting setting = settings.get(i);
+                value.append(i == 0 ? "" : ";").append(encode(setting.getName()))
+                        .append(':').append(encode(setting.getValue()));
+                if (setting.getOriginal() != null) {
+                    value.append(':').append(encode(setting.getOriginal()));
+                }
+            }
+            return value.toString();
+        }
+
+        private static String encode(String value) {
+            try {
+                return URLEncoder.encode(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static String decode(String value) {
+            try {
+                return URLDecoder.decode(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
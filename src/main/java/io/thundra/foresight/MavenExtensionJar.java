@@ -0,0 +1,96 @@
+package io.thundra.foresight;
+
+import hudson.FilePath;
+import io.thundra.plugin.maven.test.instrumentation.adder.ArgLineMerger;
+import io.thundra.plugin.maven.test.instrumentation.adder.ForkConfiguration;
+import io.thundra.plugin.maven.test.instrumentation.extension.ForesightMavenExtension;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Jar of the {@code ForesightMavenExtension} Maven core extension, assembled once from the classes of the plugin and
+ * copied next to the agent on the nodes, where Maven loads it from {@code -Dmaven.ext.class.path}.
+ */
+public final class MavenExtensionJar {
+
+    public static final String JAR_NAME = "thundra-foresight-maven-extension.jar";
+    /**
+     * Environment variables the extension reads the agent configuration, the test shard and the fork count from. Being
+     * constants, they are inlined by the compiler and do not load the extension class.
+     */
+    public static final String AGENT_CONFIGURATION_ENV = ForesightMavenExtension.AGENT_CONFIGURATION_ENV;
+    public static final String SHARD_INCLUDES_ENV = ForesightMavenExtension.SHARD_INCLUDES_ENV;
+    public static final String SHARD_EXCLUDES_ENV = ForesightMavenExtension.SHARD_EXCLUDES_ENV;
+    public static final String FORK_COUNT_ENV = ForesightMavenExtension.FORK_COUNT_ENV;
+
+    // Only referenced by name, the class cannot be loaded in Jenkins where the Maven core API is missing
+    private static final String EXTENSION_CLASS =
+            "io.thundra.plugin.maven.test.instrumentation.extension.ForesightMavenExtension";
+    private static final String[] CLASSES = {
+            EXTENSION_CLASS, ArgLineMerger.class.getName(), ArgLineMerger.class.getName() + "$Arguments",
+            ForkConfiguration.class.getName()
+    };
+    // Index Maven scans for components on the extension class path
+    private static final String SISU_INDEX = "META-INF/sisu/javax.inject.Named";
+
+    private static byte[] jar;
+
+    private MavenExtensionJar() {
+    }
+
+    /**
+     * Writes the extension jar into {@code dir}.
+     *
+     * @return the jar
+     */
+    public static FilePath install(FilePath dir) throws IOException, InterruptedException {
+        FilePath target = dir.child(JAR_NAME);
+        target.copyFrom(new ByteArrayInputStream(get()));
+        return target;
+    }
+
+    /**
+     * Returns the Maven option loading the extension from {@code jar}.
+     */
+    public static String mavenOpts(FilePath jar) {
+        return "-Dmaven.ext.class.path=" + jar.getRemote();
+    }
+
+    static synchronized byte[] get() throws IOException {
+        if (jar == null) {
+            jar = build();
+        }
+        return jar;
+    }
+
+    private static byte[] build() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+        try (JarOutputStream out = new JarOutputStream(bytes, manifest)) {
+            for (String className : CLASSES) {
+                String name = className.replace('.', '/') + ".class";
+                try (InputStream in = MavenExtensionJar.class.getClassLoader().getResourceAsStream(name)) {
+                    if (in == null) {
+                        throw new IOException("Cannot find " + name + " to build the Maven extension");
+                    }
+                    out.putNextEntry(new JarEntry(name));
+                    IOUtils.copy(in, out);
+                    out.closeEntry();
+                }
+            }
+            out.putNextEntry(new JarEntry(SISU_INDEX));
+            out.write((EXTENSION_CLASS + "\n").getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+}
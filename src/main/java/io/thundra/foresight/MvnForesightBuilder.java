@@ -1,56 +1,56 @@
 package io.thundra.foresight;
 
 import com.cloudbees.plugins.credentials.CredentialsMatchers;
-import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractProject;
 import hudson.model.Item;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.security.ACL;
+import hudson.slaves.WorkspaceList;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import hudson.util.Secret;
 import io.thundra.foresight.exceptions.AgentNotFoundException;
-import io.thundra.plugin.maven.test.instrumentation.checker.FailsafeChecker;
-import io.thundra.plugin.maven.test.instrumentation.checker.SurefireChecker;
+import io.thundra.plugin.maven.test.instrumentation.adder.ArgLineMerger;
+import io.thundra.plugin.maven.test.instrumentation.adder.ForkConfiguration;
 import jenkins.model.Jenkins;
 import jenkins.tasks.SimpleBuildStep;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
 import org.jenkinsci.Symbol;
-import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import javax.xml.stream.XMLStreamException;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MvnForesightBuilder extends Builder implements SimpleBuildStep {
 
     private static final Logger logger = LogManager.getLogger(MvnForesightBuilder.class);
+    public static final int DEFAULT_INSTRUMENTATION_THREADS = 4;
     private final String projectId;
     private final String credentialId;
     private String thundraAgentVersion;
+    private int instrumentationThreads = DEFAULT_INSTRUMENTATION_THREADS;
+    private String pomExcludes;
+    private boolean useMavenExtension;
+    private String forkCount;
 
     @DataBoundConstructor
     public MvnForesightBuilder(String projectId, String credentialId) {
@@ -75,71 +75,173 @@ public class MvnForesightBuilder extends Builder implements SimpleBuildStep {
         this.thundraAgentVersion = thundraVersion;
     }
 
+    public int getInstrumentationThreads() {
+        return instrumentationThreads;
+    }
+
+    @DataBoundSetter
+    public void setInstrumentationThreads(int instrumentationThreads) {
+        this.instrumentationThreads = instrumentationThreads > 0 ? instrumentationThreads : DEFAULT_INSTRUMENTATION_THREADS;
+    }
+
+    public String getPomExcludes() {
+        return pomExcludes;
+    }
+
+    /**
+     * Comma separated Ant style patterns, relative to the workspace, of the pom.xml files not to instrument.
+     */
+    @DataBoundSetter
+    public void setPomExcludes(String pomExcludes) {
+        this.pomExcludes = Util.fixEmptyAndTrim(pomExcludes);
+    }
+
+    public boolean isUseMavenExtension() {
+        return useMavenExtension;
+    }
+
+    /**
+     * Leaves the pom.xml files untouched and instruments the reactor from a Maven core extension instead, loaded
+     * through the {@value ForesightStep#MAVEN_OPTS} environment variable of the following build steps.
+     */
+    @DataBoundSetter
+    public void setUseMavenExtension(boolean useMavenExtension) {
+        this.useMavenExtension = useMavenExtension;
+    }
+
+    public String getForkCount() {
+        return forkCount;
+    }
+
+    /**
+     * Runs the Surefire and Failsafe tests in this many reused forks, {@code 1C} for one per core of the node, so that
+     * the agent is started once per fork. The projects keep their own fork settings by default.
+     */
+    @DataBoundSetter
+    public void setForkCount(String forkCount) {
+        this.forkCount = Util.fixEmptyAndTrim(forkCount);
+    }
+
+    protected Object readResolve() {
+        // Builders saved before the setting existed are deserialized with 0
+        if (instrumentationThreads <= 0) {
+            instrumentationThreads = DEFAULT_INSTRUMENTATION_THREADS;
+        }
+        return this;
+    }
+
     @Override
     public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
+        ForesightStepStats stats = new ForesightStepStats("mavenForesight");
+        boolean success = false;
+        ForesightThrottle.Permit permit = null;
         try {
-            StringCredentials apiKeyCredentials = CredentialsProvider.findCredentialById(credentialId, StringCredentials.class, run);
-            if (apiKeyCredentials == null) {
-                throw new IOException("Wrong credentials provided");
+            if (forkCount != null && !ForkConfiguration.isValid(forkCount)) {
+                throw new IOException("Invalid fork count " + forkCount);
+            }
+            String apiKey = ThundraUtils.getApiKey(run, credentialId);
+            permit = ForesightThrottle.get().acquire(ForesightThrottle.node(workspace), listener.getLogger());
+            stats.addStage(ForesightStepStats.ADMISSION, permit.getWaitMillis());
+            long start = System.currentTimeMillis();
+            String version = StringUtils.isNotEmpty(thundraAgentVersion)? thundraAgentVersion : ThundraUtils.getLatestThundraVersion(stats);
+            start = stats.stage(ForesightStepStats.RESOLVE_AGENT_VERSION, start);
+            // In extension mode nothing is written to the workspace, the agent goes next to the extension unless it
+            // is taken from the node tool cache
+            boolean extensionMode = useMavenExtension;
+            if (extensionMode && WorkspaceList.tempDir(workspace).getRemote().indexOf(' ') >= 0) {
+                listener.getLogger().printf("%s contains spaces, it cannot be passed in %s, instrumenting the pom.xml " +
+                        "files instead%n", WorkspaceList.tempDir(workspace).getRemote(), ForesightStep.MAVEN_OPTS);
+                extensionMode = false;
+            }
+            FilePath targetDir = extensionMode ? WorkspaceList.tempDir(workspace) : workspace;
+            FilePath filePath = ThundraUtils.downloadThundraAgent(targetDir, version, listener, stats);
+            start = stats.stage(ForesightStepStats.PROVISION_AGENT, start);
+            String agentConfigurations = getAgentConfigurations(filePath.toString(), apiKey, projectId, null);
+            if (forkCount != null) {
+                agentConfigurations += " " + ForkConfiguration.FORK_NUMBER_PROPERTY;
+            }
+            ForesightEnvironmentAction environment = ForesightEnvironmentAction.of(run);
+            // Changes on every build, so it is kept out of the poms, which stay instrumented from one build to the next
+            environment.put(ForesightStep.THUNDRA_AGENT_TEST_RUN_ID, ThundraUtils.getTestRunId(run));
+            if (extensionMode) {
+                FilePath extension = MavenExtensionJar.install(targetDir);
+                // The configuration holds the API key
+                environment.putSecret(MavenExtensionJar.AGENT_CONFIGURATION_ENV, agentConfigurations);
+                if (forkCount != null) {
+                    environment.put(MavenExtensionJar.FORK_COUNT_ENV, forkCount);
+                }
+                environment.append(ForesightStep.MAVEN_OPTS, MavenExtensionJar.mavenOpts(extension));
+                stats.stage(ForesightStepStats.INSTALL_EXTENSION, start);
+                listener.getLogger().printf("Maven extension written to %s, loaded through %s by the following steps%n",
+                        extension.getRemote(), ForesightStep.MAVEN_OPTS);
+                listener.getLogger().println("Thundra Foresight timings: " + stats);
+                success = true;
+                return;
             }
-            String version = StringUtils.isNotEmpty(thundraAgentVersion)? thundraAgentVersion : ThundraUtils.getLatestThundraVersion();
-            FilePath filePath = ThundraUtils.downloadThundraAgent(workspace, version);
-            String agentConfigurations = getAgentConfigurations(filePath.toString(), apiKeyCredentials.getSecret().getPlainText());
-            FilePath[] pomFiles = workspace.list("**/pom.xml");
             listener.getLogger().println("Executing maven instrumentation ...");
-            listener.getLogger().printf("Found %s pom.xml files%n", pomFiles.length);
-            MavenXpp3Reader mavenReader = new MavenXpp3Reader();
-
-            SurefireChecker surefireChecker = new SurefireChecker();
-            FailsafeChecker failsafeChecker = new FailsafeChecker();
-
-            // A toggle to check once the loop ends
-            AtomicBoolean surefireInstrumented = new AtomicBoolean();
-            AtomicBoolean failsafeInstrumented = new AtomicBoolean();
-
-            listener.getLogger().println("Processing the pom files");
-            for (FilePath pomFile : pomFiles) {
-                listener.getLogger().printf("Processing %s%n", pomFile);
-
-                // Start checking and processing the pom files
-                listener.getLogger().printf("Checking %s for Surefire plugin%n", pomFile);
-                // Check for Surefire
-                File localPom = File.createTempFile("jenkins", "localPom.xml");
-                localPom.deleteOnExit();
-                try (FileOutputStream out = new FileOutputStream(localPom)) {
-                    IOUtils.copy(pomFile.read(), out);
+            FilePath manifest = WorkspaceList.tempDir(workspace).child(InstrumentationManifest.FILE_NAME);
+            PomInstrumentationResult result = workspace.act(
+                    new PomInstrumentationCallable(agentConfigurations, instrumentationThreads, manifest.getRemote(), pomExcludes,
+                            forkCount));
+            long elapsed = System.currentTimeMillis() - start;
+            stats.addStage(ForesightStepStats.DISCOVER_POMS, result.getDiscoveryMillis());
+            stats.addStage(ForesightStepStats.REWRITE_POMS, result.getInstrumentationMillis());
+            // Whatever was not spent on the node went into the call itself
+            stats.addStage(ForesightStepStats.REMOTING, elapsed - result.getDiscoveryMillis() - result.getInstrumentationMillis());
+            stats.setPoms(result.getPoms().size(), result.getModifiedCount(), result.getSkippedCount());
+            listener.getLogger().printf("Found %s pom.xml files%n", result.getPoms().size());
+            for (PomInstrumentationResult.Pom pom : result.getPoms()) {
+                if (pom.isSkipped()) {
+                    listener.getLogger().printf("Processed %s: already instrumented%n", pom.getPath());
+                    continue;
                 }
-
-                surefireChecker.checkProfiles(logger, mavenReader, agentConfigurations, localPom.getAbsolutePath(), true);
-                surefireChecker.checkPom(logger, mavenReader, agentConfigurations, localPom.getAbsolutePath(), true);
-                surefireInstrumented.set(surefireChecker.instrumented.get() || surefireInstrumented.get());
-
-                listener.getLogger().printf("Checking %s for Failsafe plugin%n", pomFile);
-                // Check for Failsafe
-                failsafeChecker.checkProfiles(logger, mavenReader, agentConfigurations, localPom.getAbsolutePath(), true);
-                failsafeChecker.checkPom(logger, mavenReader, agentConfigurations, localPom.getAbsolutePath(), true);
-                failsafeInstrumented.set(failsafeChecker.instrumented.get() || failsafeInstrumented.get());
-                try (FileInputStream in = new FileInputStream(localPom)) {
-                    IOUtils.copy(in, pomFile.write());
+                if (pom.isInherited() && !pom.isSurefireInstrumented() && !pom.isFailsafeInstrumented()) {
+                    listener.getLogger().printf("Processed %s: inherits the agent from its parent%n", pom.getPath());
+                    continue;
                 }
-                boolean ignored = localPom.delete(); // For Jenkins Checkstyle workaround 'RV_RETURN_VALUE_IGNORED_BAD_PRACTICE' is preventing successful build
+                listener.getLogger().printf("Processed %s: Surefire %s, Failsafe %s%n", pom.getPath(),
+                        pom.isSurefireInstrumented() ? "instrumented" : "not found",
+                        pom.isFailsafeInstrumented() ? "instrumented" : "not found");
             }
-
+            listener.getLogger().printf("Instrumented %s pom.xml files, %s were already instrumented%n",
+                    result.getModifiedCount(), result.getSkippedCount());
             listener.getLogger().println("Instrumentation is complete");
+            listener.getLogger().println("Thundra Foresight timings: " + stats);
+            success = true;
         } catch (XMLStreamException | AgentNotFoundException e) {
             listener.getLogger().println("Thundra Foresight maven initialization failed: " + e);
             throw new IOException(e.getMessage());
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+            ForesightRunAction.of(run).add(stats, success);
         }
     }
 
+    /**
+     * @deprecated the builds now use a test run id derived from the build, see
+     * {@link ThundraUtils#getTestRunId(Run)}. This variant still mints a random one on each call.
+     */
+    @Deprecated
     public String getAgentConfigurations(String agentPath, String apiKey) {
-        //FIXME why test run id is random uuid?
+        return getAgentConfigurations(agentPath, apiKey, projectId, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Returns the agent path followed by the {@code -D} properties configuring the agent, as merged into the argLine.
+     *
+     * @param runId test run id, {@code null} when it is passed in {@link ForesightStep#THUNDRA_AGENT_TEST_RUN_ID}
+     */
+    static String getAgentConfigurations(String agentPath, String apiKey, String projectId, String runId) {
         String thundraUrl = System.getenv(ThundraUtils.THUNDRA_URL_ENV);
         String restBaseUrlParam = StringUtils.isNotEmpty(thundraUrl) ? " -Dthundra.agent.report.rest.baseurl="
                 + thundraUrl : "";
-        agentPath = agentPath + restBaseUrlParam;
-        agentPath += (String.format(" -Dthundra.apiKey=%s -Dthundra.agent.test.project.id=%s" +
-                " -Dthundra.agent.test.run.id=%s", apiKey, projectId, UUID.randomUUID().toString()));
+        agentPath = ArgLineMerger.quote(agentPath) + restBaseUrlParam;
+        agentPath += (String.format(" -Dthundra.apiKey=%s -Dthundra.agent.test.project.id=%s", apiKey, projectId));
+        if (runId != null) {
+            agentPath += " -Dthundra.agent.test.run.id=" + runId;
+        }
 
         return agentPath;
     }
@@ -158,6 +260,10 @@ public class MvnForesightBuilder extends Builder implements SimpleBuildStep {
             return Messages.MvnForesightBuilder_DescriptorImpl_DisplayName();
         }
 
+        public FormValidation doCheckForkCount(@QueryParameter String value) {
+            return ThundraUtils.checkForkCount(value);
+        }
+
         public ListBoxModel doFillCredentialIdItems(
                 @AncestorInPath Item item,
                 @QueryParameter String credentialsId
@@ -0,0 +1,107 @@
+package io.thundra.foresight;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import io.thundra.foresight.exceptions.AgentNotFoundException;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tool cache of Thundra agent jars on the nodes, in {@code <node root>/tools/thundra-foresight/agent/<version>}.
+ * <p>
+ * A version is pushed from the {@link AgentCache} of the controller over the remoting channel the first time a build
+ * needs it on a node, so nodes never reach the repository themselves. Later builds only check the installed jar.
+ */
+public class NodeAgentCache {
+
+    public static final String TOOLS_DIR = "tools/thundra-foresight/agent";
+    private static final String INSTALLED_FILE = ".installed";
+
+    // Concurrent builds on the same node share a single transfer
+    private static final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+    private NodeAgentCache() {
+    }
+
+    /**
+     * Returns the agent jar of the given version on the node of {@code workspace}, installing it first if needed.
+     *
+     * @param stats where to count cache hits and transferred bytes, may be {@code null}
+     * @return {@code null} if the node of the workspace cannot be determined
+     */
+    public static FilePath install(FilePath workspace, String version, PrintStream log, ForesightStepStats stats)
+            throws IOException, InterruptedException, AgentNotFoundException {
+        Computer computer = workspace.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        FilePath rootPath = node == null ? null : node.getRootPath();
+        if (rootPath == null) {
+            return null;
+        }
+        AgentCache cache = AgentCache.get();
+        String sha256 = cache.getSha256(version, log, stats);
+        FilePath dir = rootPath.child(TOOLS_DIR).child(version);
+        FilePath jar = dir.child(String.format(ThundraUtils.THUNDRA_AGENT_JAR_NAME, version));
+        if (dir.act(new IsInstalled(jar.getName(), sha256))) {
+            if (stats != null) {
+                stats.cacheHit();
+            }
+            return jar;
+        }
+
+        ReentrantLock lock = locks.computeIfAbsent(node.getNodeName() + '/' + version, k -> new ReentrantLock());
+        lock.lockInterruptibly();
+        try {
+            if (dir.act(new IsInstalled(jar.getName(), sha256))) {
+                if (stats != null) {
+                    stats.cacheHit();
+                }
+                return jar;
+            }
+            if (stats != null) {
+                stats.cacheMiss();
+            }
+            long start = System.currentTimeMillis();
+            FilePath tmp = dir.child(jar.getName() + ".tmp");
+            cache.copyTo(version, tmp, log, stats);
+            tmp.renameTo(jar);
+            // Written last, a jar without it is incomplete
+            dir.child(INSTALLED_FILE).write(sha256, StandardCharsets.US_ASCII.name());
+            log.println(String.format("Installed Thundra agent %s on %s in %d ms", version,
+                    node.getNodeName().isEmpty() ? "the controller" : node.getNodeName(), System.currentTimeMillis() - start));
+            return jar;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class IsInstalled extends MasterToSlaveFileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final String jarName;
+        private final String sha256;
+
+        IsInstalled(String jarName, String sha256) {
+            this.jarName = jarName;
+            this.sha256 = sha256;
+        }
+
+        @Override
+        public Boolean invoke(File dir, VirtualChannel channel) throws IOException {
+            File installed = new File(dir, INSTALLED_FILE);
+            if (!installed.isFile() || !new File(dir, jarName).isFile()) {
+                return false;
+            }
+            return sha256.equalsIgnoreCase(FileUtils.readFileToString(installed, StandardCharsets.US_ASCII).trim());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package io.thundra.foresight;
+
+import hudson.FilePath;
+import org.codehaus.plexus.util.SelectorUtils;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the pom.xml files of the Maven reactor of a workspace by following the {@code <modules>} of the root pom,
+ * including the ones declared in profiles, instead of scanning the whole workspace. Each level of the module tree is
+ * read in parallel.
+ * <p>
+ * Workspaces without a root pom.xml fall back to a scan of the workspace which skips build output and dependency
+ * directories.
+ */
+public class PomDiscovery {
+
+    public static final String POM_FILE = "pom.xml";
+    /**
+     * Excluded from the workspace scan when there is no root pom.xml.
+     */
+    public static final String DEFAULT_SCAN_EXCLUDES = "**/target/**,**/node_modules/**,**/.git/**";
+
+    static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private final File workspace;
+    private final List<String> excludes;
+    private final ExecutorService executor;
+
+    /**
+     * @param excludes comma separated Ant style patterns, relative to the workspace, of the pom.xml files to skip
+     */
+    public PomDiscovery(File workspace, String excludes, ExecutorService executor) {
+        this.workspace = workspace;
+        this.excludes = parseExcludes(excludes);
+        this.executor = executor;
+    }
+
+    public List<File> discover() throws IOException, InterruptedException {
+        File root = new File(workspace, POM_FILE);
+        if (!root.isFile()) {
+            return scan();
+        }
+        Set<File> seen = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        List<File> poms = new ArrayList<>();
+        List<File> level = Collections.singletonList(root.getCanonicalFile());
+        seen.addAll(level);
+        File base = workspace.getCanonicalFile();
+        while (!level.isEmpty()) {
+            List<Future<List<File>>> modules = new ArrayList<>(level.size());
+            for (File pom : level) {
+                // Module paths are canonical, report them under the workspace path the callers know
+                String path = PomInstrumentationCallable.relativize(base, pom);
+                if (!isExcluded(path)) {
+                    poms.add(new File(workspace, path));
+                }
+                // Modules of an excluded pom are still followed, only the pom itself is skipped
+                modules.add(executor.submit(() -> readModules(pom)));
+            }
+            List<File> next = new ArrayList<>();
+            for (Future<List<File>> future : modules) {
+                for (File module : get(future)) {
+                    if (isInside(base, module) && seen.add(module)) {
+                        next.add(module);
+                    }
+                }
+            }
+            level = next;
+        }
+        return poms;
+    }
+
+    private List<File> scan() throws IOException, InterruptedException {
+        StringBuilder scanExcludes = new StringBuilder(DEFAULT_SCAN_EXCLUDES);
+        for (String exclude : excludes) {
+            scanExcludes.append(',').append(exclude);
+        }
+        FilePath[] files = new FilePath(workspace).list("**/" + POM_FILE, scanExcludes.toString());
+        List<File> poms = new ArrayList<>(files.length);
+        for (FilePath file : files) {
+            poms.add(new File(file.getRemote()));
+        }
+        return poms;
+    }
+
+    /**
+     * Returns the pom.xml files of the modules declared by the given pom, in the project or in any of its profiles.
+     */
+    static List<File> readModules(File pom) throws IOException {
+        List<File> modules = new ArrayList<>();
+        File dir = pom.getParentFile();
+        try (InputStream in = Files.newInputStream(pom.toPath())) {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                // project/modules/module and project/profiles/profile/modules/module
+                String[] path = new String[5];
+                int depth = 0;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if (depth < path.length) {
+                            path[depth] = name;
+                        }
+                        depth++;
+                        if ("module".equals(name) && isModulePath(path, depth)) {
+                            File module = resolve(dir, reader.getElementText().trim());
+                            depth--;
+                            if (module != null) {
+                                modules.add(module);
+                            }
+                        } else if (depth == 2 && !"modules".equals(name) && !"profiles".equals(name)
+                                || depth == 4 && "profiles".equals(path[1]) && !"modules".equals(name)) {
+                            skipElement(reader);
+                            depth--;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot read the modules of " + pom + ": " + e.getMessage(), e);
+        }
+        return modules;
+    }
+
+    private static boolean isModulePath(String[] path, int depth) {
+        if (depth == 3) {
+            return "modules".equals(path[1]);
+        }
+        return depth == 5 && "profiles".equals(path[1]) && "profile".equals(path[2]) && "modules".equals(path[3]);
+    }
+
+    static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * A module is either a directory containing a pom.xml or the path of a pom file itself.
+     */
+    private static File resolve(File dir, String module) throws IOException {
+        if (module.isEmpty()) {
+            return null;
+        }
+        File file = new File(dir, module);
+        if (file.isDirectory()) {
+            file = new File(file, POM_FILE);
+        }
+        return file.isFile() ? file.getCanonicalFile() : null;
+    }
+
+    private static boolean isInside(File base, File file) {
+        return file.toPath().startsWith(base.toPath());
+    }
+
+    private boolean isExcluded(String path) {
+        for (String exclude : excludes) {
+            if (SelectorUtils.matchPath(exclude, path, "/", true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static <T> T get(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static List<String> parseExcludes(String excludes) {
+        List<String> patterns = new ArrayList<>();
+        if (excludes != null) {
+            for (String exclude : excludes.split(",")) {
+                if (!exclude.trim().isEmpty()) {
+                    patterns.add(exclude.trim().replace('\\', '/'));
+                }
+            }
+        }
+        return patterns;
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
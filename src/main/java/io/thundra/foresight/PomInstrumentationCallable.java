@@ -0,0 +1,126 @@
+package io.thundra.foresight;
+
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.thundra.plugin.maven.test.instrumentation.adder.ForkConfiguration;
+import io.thundra.plugin.maven.test.instrumentation.patcher.PomPatcher;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds and instruments the pom.xml files of a workspace on the node the workspace lives on, so that the files never
+ * travel over the remoting channel.
+ * <p>
+ * The agent is added to the plugin management of the topmost poms of the reactor, see {@link ReactorGraph}: the
+ * modules inheriting from them are only changed where they set their own {@code argLine}, or the fork settings when a
+ * fork count is enforced. With a manifest, the fork settings of a previous instrumentation which are no longer enforced
+ * are taken back.
+ */
+public class PomInstrumentationCallable extends MasterToSlaveFileCallable<PomInstrumentationResult> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String agentConfigurations;
+    private final int threads;
+    private final String manifestPath;
+    private final String excludes;
+    private final String forkCount;
+
+    /**
+     * @param manifestPath path of the {@link InstrumentationManifest} on the node, {@code null} to instrument every pom
+     * @param excludes     comma separated patterns of the pom.xml files to skip, see {@link PomDiscovery}
+     * @param forkCount    number of reused forks to run the tests in, see {@link ForkConfiguration}, {@code null} to
+     *                     keep the fork settings of the poms
+     */
+    public PomInstrumentationCallable(String agentConfigurations, int threads, String manifestPath, String excludes,
+                                      String forkCount) {
+        this.agentConfigurations = agentConfigurations;
+        this.threads = threads;
+        this.manifestPath = manifestPath;
+        this.excludes = excludes;
+        this.forkCount = forkCount;
+    }
+
+    @Override
+    public PomInstrumentationResult invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        PomInstrumentationResult result = new PomInstrumentationResult();
+        // The fork count is part of what the poms were instrumented for, a change of count instruments them again
+        InstrumentationManifest manifest = manifestPath == null ? null
+                : InstrumentationManifest.load(new File(manifestPath),
+                forkCount == null ? agentConfigurations : agentConfigurations + " forkCount=" + forkCount);
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new NamingThreadFactory(new DaemonThreadFactory(), "PomInstrumentationCallable"));
+        try {
+            long start = System.currentTimeMillis();
+            List<File> pomFiles = new PomDiscovery(workspace, excludes, executor).discover();
+            ReactorGraph graph = ReactorGraph.read(pomFiles, executor);
+            long discovered = System.currentTimeMillis();
+            List<Future<PomInstrumentationResult.Pom>> poms = new ArrayList<>(pomFiles.size());
+            for (File pom : pomFiles) {
+                boolean inherited = graph.hasParentInReactor(pom);
+                poms.add(executor.submit(() -> instrument(workspace, pom, inherited, manifest)));
+            }
+            for (Future<PomInstrumentationResult.Pom> pom : poms) {
+                result.add(pom.get());
+            }
+            result.setTimings(discovered - start, System.currentTimeMillis() - discovered);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        if (manifest != null) {
+            manifest.save();
+        }
+        return result;
+    }
+
+    /**
+     * @param inherited whether the pom inherits the agent from the plugin management of a parent in the reactor
+     */
+    private PomInstrumentationResult.Pom instrument(File workspace, File pom, boolean inherited,
+                                                    InstrumentationManifest manifest) throws IOException {
+        String path = relativize(workspace, pom);
+        PomPatcher.Mode mode = inherited ? PomPatcher.Mode.OVERRIDES : PomPatcher.Mode.MANAGED;
+        String hash = null;
+        if (manifest != null) {
+            hash = InstrumentationManifest.sha256(Files.readAllBytes(pom.toPath()));
+            InstrumentationManifest.Entry entry = manifest.getInstrumented(path, mode, hash);
+            if (entry != null) {
+                manifest.record(path, mode, entry);
+                return new PomInstrumentationResult.Pom(path, entry.isSurefireInstrumented(), entry.isFailsafeInstrumented(),
+                        inherited, true, false);
+            }
+        }
+
+        Map<String, String> configuration = forkCount == null ? Collections.emptyMap() : ForkConfiguration.of(forkCount);
+        List<PomPatcher.Setting> previous = manifest == null ? Collections.emptyList() : manifest.getSettings(path);
+        PomPatcher.Result patched = new PomPatcher(configuration, previous, PomPatcher.SUREFIRE_PLUGIN,
+                PomPatcher.FAILSAFE_PLUGIN).patch(pom, agentConfigurations, mode);
+        boolean surefire = patched.isInstrumented(PomPatcher.SUREFIRE_PLUGIN);
+        boolean failsafe = patched.isInstrumented(PomPatcher.FAILSAFE_PLUGIN);
+
+        if (manifest != null) {
+            String output = patched.isChanged() ? InstrumentationManifest.sha256(Files.readAllBytes(pom.toPath())) : hash;
+            manifest.record(path, mode, new InstrumentationManifest.Entry(hash, output, surefire, failsafe,
+                    patched.getSettings()));
+        }
+        return new PomInstrumentationResult.Pom(path, surefire, failsafe, inherited, false, patched.isChanged());
+    }
+
+    static String relativize(File workspace, File file) {
+        return workspace.toPath().relativize(file.toPath()).toString().replace('\\', '/');
+    }
+}
@@ -0,0 +1,124 @@
+package io.thundra.foresight;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Summary of an instrumentation pass over the pom.xml files of a workspace, sent back from the agent.
+ */
+public class PomInstrumentationResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<Pom> poms = new ArrayList<>();
+    private long discoveryMillis;
+    private long instrumentationMillis;
+
+    void add(Pom pom) {
+        poms.add(pom);
+    }
+
+    void setTimings(long discoveryMillis, long instrumentationMillis) {
+        this.discoveryMillis = discoveryMillis;
+        this.instrumentationMillis = instrumentationMillis;
+    }
+
+    /**
+     * Time spent on the node finding the pom.xml files.
+     */
+    public long getDiscoveryMillis() {
+        return discoveryMillis;
+    }
+
+    /**
+     * Time spent on the node instrumenting the pom.xml files, once they were found.
+     */
+    public long getInstrumentationMillis() {
+        return instrumentationMillis;
+    }
+
+    public List<Pom> getPoms() {
+        return Collections.unmodifiableList(poms);
+    }
+
+    public int getModifiedCount() {
+        int count = 0;
+        for (Pom pom : poms) {
+            if (pom.isModified()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getSkippedCount() {
+        int count = 0;
+        for (Pom pom : poms) {
+            if (pom.isSkipped()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public static class Pom implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        private final boolean surefire;
+        private final boolean failsafe;
+        private final boolean inherited;
+        private final boolean skipped;
+        private final boolean modified;
+
+        public Pom(String path, boolean surefire, boolean failsafe, boolean inherited, boolean skipped,
+                   boolean modified) {
+            this.path = path;
+            this.surefire = surefire;
+            this.failsafe = failsafe;
+            this.inherited = inherited;
+            this.skipped = skipped;
+            this.modified = modified;
+        }
+
+        /**
+         * Path of the pom.xml relative to the workspace.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isSurefireInstrumented() {
+            return surefire;
+        }
+
+        public boolean isFailsafeInstrumented() {
+            return failsafe;
+        }
+
+        /**
+         * Whether the pom inherits the agent from the plugin management of its parent, in which case the plugins are
+         * only instrumented in the pom itself where they set their own argLine.
+         */
+        public boolean isInherited() {
+            return inherited;
+        }
+
+        /**
+         * Whether the pom was already instrumented by a previous build and has not been parsed again.
+         */
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Whether the pom.xml file was written, which a pom already instrumented the same way, or skipped, is not.
+         */
+        public boolean isModified() {
+            return modified;
+        }
+    }
+}
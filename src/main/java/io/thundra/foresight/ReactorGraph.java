@@ -0,0 +1,180 @@
+package io.thundra.foresight;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Parent relations between the pom.xml files of a workspace. A pom inherits from another one of the set when its
+ * {@code <parent>} resolves to it the way Maven resolves it: through the {@code relativePath}, {@code ../pom.xml} by
+ * default, to a pom whose coordinates match.
+ * <p>
+ * Poms whose parent is not in the set are the topmost poms of the reactor. The Surefire and Failsafe configuration of
+ * their plugin management reaches every module inheriting from them, so that the other poms only need to be changed
+ * where they set their own {@code argLine}.
+ */
+class ReactorGraph {
+
+    private static final String DEFAULT_RELATIVE_PATH = "../" + PomDiscovery.POM_FILE;
+
+    private final Set<File> inheriting;
+
+    private ReactorGraph(Set<File> inheriting) {
+        this.inheriting = inheriting;
+    }
+
+    /**
+     * Reads the coordinates and parent of each pom in parallel.
+     */
+    static ReactorGraph read(List<File> poms, ExecutorService executor) throws IOException, InterruptedException {
+        List<Future<Pom>> futures = new ArrayList<>(poms.size());
+        for (File pom : poms) {
+            futures.add(executor.submit(() -> Pom.read(pom)));
+        }
+        Map<File, Pom> byPath = new HashMap<>();
+        for (Future<Pom> future : futures) {
+            Pom pom = PomDiscovery.get(future);
+            byPath.put(pom.canonical, pom);
+        }
+        Set<File> inheriting = new HashSet<>();
+        for (Pom pom : byPath.values()) {
+            if (pom.parentPath != null && pom.isChildOf(byPath.get(pom.parentPath))) {
+                inheriting.add(pom.file);
+            }
+        }
+        return new ReactorGraph(inheriting);
+    }
+
+    /**
+     * Returns whether the parent of {@code pom} is one of the poms of the graph.
+     *
+     * @param pom one of the files the graph was read from
+     */
+    boolean hasParentInReactor(File pom) {
+        return inheriting.contains(pom);
+    }
+
+    private static final class Pom {
+        private final File file;
+        private final File canonical;
+        private String groupId;
+        private String artifactId;
+        private String version;
+        private String parentGroupId;
+        private String parentArtifactId;
+        private String parentVersion;
+        private File parentPath;
+
+        private Pom(File file) throws IOException {
+            this.file = file;
+            this.canonical = file.getCanonicalFile();
+        }
+
+        private String effectiveGroupId() {
+            return groupId != null ? groupId : parentGroupId;
+        }
+
+        private String effectiveVersion() {
+            return version != null ? version : parentVersion;
+        }
+
+        private boolean isChildOf(Pom parent) {
+            if (parent == null || parent == this) {
+                return false;
+            }
+            // Maven ignores a pom at the relative path which is not the declared parent
+            return Objects.equals(parentArtifactId, parent.artifactId)
+                    && Objects.equals(parentGroupId, parent.effectiveGroupId())
+                    && (parentVersion == null || parent.effectiveVersion() == null
+                    || parentVersion.equals(parent.effectiveVersion()));
+        }
+
+        /**
+         * Reads the coordinates of the project and of its parent, skipping everything else.
+         */
+        private static Pom read(File file) throws IOException {
+            Pom pom = new Pom(file);
+            String relativePath = DEFAULT_RELATIVE_PATH;
+            boolean hasParent = false;
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                XMLStreamReader reader = PomDiscovery.XML_INPUT_FACTORY.createXMLStreamReader(in);
+                try {
+                    // project/* and project/parent/*
+                    int depth = 0;
+                    boolean inParent = false;
+                    while (reader.hasNext()) {
+                        int event = reader.next();
+                        if (event == XMLStreamConstants.END_ELEMENT) {
+                            depth--;
+                            inParent &= depth >= 2;
+                            continue;
+                        } else if (event != XMLStreamConstants.START_ELEMENT) {
+                            continue;
+                        }
+                        depth++;
+                        String name = reader.getLocalName();
+                        if (depth == 2 && "parent".equals(name)) {
+                            hasParent = true;
+                            inParent = true;
+                        } else if (depth == 2 && "groupId".equals(name)) {
+                            pom.groupId = text(reader);
+                            depth--;
+                        } else if (depth == 2 && "artifactId".equals(name)) {
+                            pom.artifactId = text(reader);
+                            depth--;
+                        } else if (depth == 2 && "version".equals(name)) {
+                            pom.version = text(reader);
+                            depth--;
+                        } else if (depth == 3 && inParent && "groupId".equals(name)) {
+                            pom.parentGroupId = text(reader);
+                            depth--;
+                        } else if (depth == 3 && inParent && "artifactId".equals(name)) {
+                            pom.parentArtifactId = text(reader);
+                            depth--;
+                        } else if (depth == 3 && inParent && "version".equals(name)) {
+                            pom.parentVersion = text(reader);
+                            depth--;
+                        } else if (depth == 3 && inParent && "relativePath".equals(name)) {
+                            relativePath = reader.getElementText().trim();
+                            depth--;
+                        } else if (depth > 1) {
+                            PomDiscovery.skipElement(reader);
+                            depth--;
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Cannot read the parent of " + file + ": " + e.getMessage(), e);
+            }
+            // An empty relative path makes Maven look the parent up in the repositories only
+            if (hasParent && !relativePath.isEmpty()) {
+                File parent = new File(file.getParentFile(), relativePath);
+                if (parent.isDirectory()) {
+                    parent = new File(parent, PomDiscovery.POM_FILE);
+                }
+                pom.parentPath = parent.getCanonicalFile();
+            }
+            return pom;
+        }
+
+        private static String text(XMLStreamReader reader) throws XMLStreamException {
+            String text = reader.getElementText().trim();
+            return text.isEmpty() ? null : text;
+        }
+    }
+}
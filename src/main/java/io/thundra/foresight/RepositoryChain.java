@@ -0,0 +1,201 @@
+package io.thundra.foresight;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repositories Thundra artifacts are looked up in: those of the {@link ForesightGlobalConfiguration}, followed by the
+ * public repository of the artifact unless offline.
+ * <p>
+ * The latency and failures of every repository are tracked. Healthy repositories whose latency is not known yet are
+ * tried first in the configured order, so that local mirrors come first until measured, followed by the others fastest
+ * first. A repository which failed is only tried after the others until it has been left alone for a while, that time
+ * doubling with each consecutive failure.
+ */
+@ExportedBean
+public class RepositoryChain {
+
+    private static final Logger logger = LogManager.getLogger(RepositoryChain.class);
+
+    private static final long MIN_QUARANTINE = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_QUARANTINE = TimeUnit.MINUTES.toMillis(10);
+    // Weight of the latest sample in the latency average
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    private static final RepositoryChain INSTANCE = new RepositoryChain();
+
+    private final Map<String, Health> health = new ConcurrentHashMap<>();
+
+    public static RepositoryChain get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the repositories to try in turn for an artifact published to {@code publicRepository}, best first.
+     *
+     * @throws IOException if offline and no repository is configured
+     */
+    public List<String> repositories(String publicRepository) throws IOException {
+        ForesightGlobalConfiguration configuration = ForesightGlobalConfiguration.get();
+        List<String> urls = new ArrayList<>();
+        if (configuration != null) {
+            for (ForesightRepository repository : configuration.getRepositories()) {
+                if (repository.getUrl() != null && !urls.contains(repository.getUrl())) {
+                    urls.add(repository.getUrl());
+                }
+            }
+        }
+        boolean offline = configuration != null && configuration.isOffline();
+        if (!offline && !urls.contains(publicRepository)) {
+            urls.add(publicRepository);
+        }
+        if (urls.isEmpty()) {
+            throw new IOException("Thundra Foresight is offline and no repository is configured for " + publicRepository);
+        }
+        return order(urls, System.currentTimeMillis());
+    }
+
+    List<String> order(List<String> urls, long now) {
+        // Sorted on a snapshot, the health of a repository may change meanwhile
+        List<Candidate> candidates = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            candidates.add(health(url).snapshot(now));
+        }
+        // Stable, the configured order is kept between repositories not measured yet
+        candidates.sort(Comparator.<Candidate>comparingInt(c -> c.quarantined ? 1 : 0)
+                .thenComparingInt(c -> c.latencyMillis < 0 ? 0 : 1)
+                .thenComparingDouble(c -> c.latencyMillis));
+        List<String> ordered = new ArrayList<>(candidates.size());
+        for (Candidate candidate : candidates) {
+            ordered.add(candidate.url);
+        }
+        return ordered;
+    }
+
+    /**
+     * Records a request to {@code repository} which got an answer, found or not.
+     *
+     * @param nanos duration of the request, negative if it should not count as a latency sample
+     */
+    public void success(String repository, long nanos) {
+        health(repository).success(nanos);
+    }
+
+    public void failure(String repository, Exception e) {
+        Health h = health(repository);
+        long quarantine = h.failure(e, System.currentTimeMillis());
+        logger.warn(String.format("Repository %s failed, trying it last for %d s: %s",
+                repository, TimeUnit.MILLISECONDS.toSeconds(quarantine), e));
+    }
+
+    @Exported(inline = true)
+    public List<Health> getRepositories() {
+        List<Health> repositories = new ArrayList<>(health.values());
+        repositories.sort(Comparator.comparing(h -> h.url));
+        return repositories;
+    }
+
+    private Health health(String url) {
+        return health.computeIfAbsent(url, Health::new);
+    }
+
+    @ExportedBean(defaultVisibility = 3)
+    public static class Health {
+
+        private final String url;
+        private double latencyMillis = -1;
+        private long requests;
+        private long failures;
+        private int consecutiveFailures;
+        private long quarantinedUntil;
+        private String lastError;
+
+        private Health(String url) {
+            this.url = url;
+        }
+
+        private synchronized void success(long nanos) {
+            requests++;
+            consecutiveFailures = 0;
+            quarantinedUntil = 0;
+            if (nanos >= 0) {
+                double millis = nanos / 1e6;
+                latencyMillis = latencyMillis < 0 ? millis : latencyMillis + LATENCY_WEIGHT * (millis - latencyMillis);
+            }
+        }
+
+        private synchronized long failure(Exception e, long now) {
+            requests++;
+            failures++;
+            consecutiveFailures++;
+            long quarantine = Math.min(MIN_QUARANTINE << Math.min(consecutiveFailures - 1, 10), MAX_QUARANTINE);
+            quarantinedUntil = now + quarantine;
+            lastError = e.toString();
+            return quarantine;
+        }
+
+        private synchronized Candidate snapshot(long now) {
+            return new Candidate(url, isQuarantined(now), latencyMillis);
+        }
+
+        private synchronized boolean isQuarantined(long now) {
+            return now < quarantinedUntil;
+        }
+
+        @Exported
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * Moving average of the request latency, -1 until measured.
+         */
+        @Exported
+        public synchronized long getLatencyMillis() {
+            return Math.round(latencyMillis);
+        }
+
+        @Exported
+        public synchronized long getRequests() {
+            return requests;
+        }
+
+        @Exported
+        public synchronized long getFailures() {
+            return failures;
+        }
+
+        @Exported
+        public boolean isHealthy() {
+            return !isQuarantined(System.currentTimeMillis());
+        }
+
+        @Exported
+        public synchronized String getLastError() {
+            return lastError;
+        }
+    }
+
+    private static final class Candidate {
+        private final String url;
+        private final boolean quarantined;
+        // -1 until measured
+        private final double latencyMillis;
+
+        private Candidate(String url, boolean quarantined, double latencyMillis) {
+            this.url = url;
+            this.quarantined = quarantined;
+            this.latencyMillis = latencyMillis;
+        }
+    }
+}
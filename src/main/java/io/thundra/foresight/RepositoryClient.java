@@ -0,0 +1,332 @@
+package io.thundra.foresight;
+
+import hudson.ProxyConfiguration;
+import jenkins.util.SystemProperties;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP client shared by all the repository requests of the controller: metadata lookups, checksums and agent jars.
+ * <p>
+ * Connections are opened through the Jenkins {@link ProxyConfiguration} and kept alive by the JDK between requests to
+ * the same host, which is only possible when a response is read to its end and closed rather than disconnected. Every
+ * {@link Exchange} therefore drains what is left of its response when it is closed, and only drops the connection when
+ * the request failed or too much is left to read. The number of connections open at once to a host is bounded.
+ * <p>
+ * HTTP/2 is not available, the JDK 8 client only speaks HTTP/1.1.
+ */
+@ExportedBean
+public class RepositoryClient {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10_000;
+    public static final int DEFAULT_READ_TIMEOUT = 30_000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+
+    // Larger leftovers are cheaper to drop than to read
+    private static final int DRAIN_LIMIT = 64 * 1024;
+
+    private static final RepositoryClient INSTANCE = new RepositoryClient(
+            SystemProperties.getInteger(RepositoryClient.class.getName() + ".connectTimeout", DEFAULT_CONNECT_TIMEOUT),
+            SystemProperties.getInteger(RepositoryClient.class.getName() + ".readTimeout", DEFAULT_READ_TIMEOUT),
+            SystemProperties.getInteger(RepositoryClient.class.getName() + ".maxConnectionsPerHost",
+                    DEFAULT_MAX_CONNECTIONS_PER_HOST));
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int maxConnectionsPerHost;
+    private final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    public RepositoryClient(int connectTimeout, int readTimeout, int maxConnectionsPerHost) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+    }
+
+    public static RepositoryClient get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Prepares a request to {@code url}, waiting up to the connect timeout for a connection to its host to be free.
+     * The request is sent once its response is asked for, and the returned exchange must be closed.
+     */
+    public Exchange open(String url) throws IOException {
+        URL target = new URL(url);
+        Semaphore host = hosts.computeIfAbsent(target.getProtocol() + "://" + target.getAuthority(),
+                k -> new Semaphore(maxConnectionsPerHost, true));
+        acquire(host, target);
+        try {
+            URLConnection connection = ProxyConfiguration.open(target);
+            if (!(connection instanceof HttpURLConnection)) {
+                throw new IOException("Not an HTTP URL: " + url);
+            }
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setUseCaches(false);
+            requests.incrementAndGet();
+            peakActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            return new Exchange((HttpURLConnection) connection, host);
+        } catch (IOException | RuntimeException e) {
+            host.release();
+            throw e;
+        }
+    }
+
+    private void acquire(Semaphore host, URL target) throws IOException {
+        if (host.tryAcquire()) {
+            return;
+        }
+        waits.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            if (!host.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("Timed out waiting for a connection to " + target.getAuthority());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + target.getAuthority());
+        } finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    @Exported
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    @Exported
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @Exported
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    @Exported
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Connections currently in use.
+     */
+    @Exported
+    public int getActive() {
+        return active.get();
+    }
+
+    @Exported
+    public int getPeakActive() {
+        return peakActive.get();
+    }
+
+    /**
+     * Requests which had to wait for a connection to their host to be free.
+     */
+    @Exported
+    public long getWaits() {
+        return waits.get();
+    }
+
+    @Exported
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    /**
+     * Connections handed back to the keep-alive pool after their response was read.
+     */
+    @Exported
+    public long getReleased() {
+        return released.get();
+    }
+
+    /**
+     * Connections closed because their request failed or their response was not read.
+     */
+    @Exported
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    @Exported
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * A request and its response over a connection of the client.
+     */
+    public class Exchange implements Closeable {
+
+        private final HttpURLConnection connection;
+        private final Semaphore host;
+        private int status = -1;
+        private Body body;
+        private boolean failed;
+        private boolean closed;
+
+        private Exchange(HttpURLConnection connection, Semaphore host) {
+            this.connection = connection;
+            this.host = host;
+        }
+
+        /**
+         * The underlying connection, to set the method and headers of the request and read the headers of the
+         * response. Its streams should be read through {@link #getInputStream()}.
+         */
+        public HttpURLConnection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Sends the request if needed and returns the status of the response.
+         */
+        public int getStatus() throws IOException {
+            if (status < 0) {
+                try {
+                    status = connection.getResponseCode();
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+            return status;
+        }
+
+        /**
+         * Body of the response. Closing it is optional, it is closed with the exchange.
+         */
+        public InputStream getInputStream() throws IOException {
+            if (body == null) {
+                getStatus();
+                try {
+                    body = new Body(connection.getInputStream());
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+            return body;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (failed || status < 0 || !drain()) {
+                    connection.disconnect();
+                    discarded.incrementAndGet();
+                } else {
+                    released.incrementAndGet();
+                }
+            } finally {
+                active.decrementAndGet();
+                host.release();
+            }
+        }
+
+        // Reads what is left of the response so that the JDK keeps the connection alive
+        private boolean drain() {
+            try {
+                InputStream in = body != null ? body.underlying()
+                        : status >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream()
+                        : connection.getInputStream();
+                if (in == null) {
+                    return true;
+                }
+                try {
+                    byte[] buffer = new byte[8192];
+                    long left = DRAIN_LIMIT;
+                    int read;
+                    while (left > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, left))) >= 0) {
+                        left -= read;
+                    }
+                    return left > 0 || in.read() < 0;
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private final class Body extends FilterInputStream {
+
+            private Body(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    int read = super.read(b, off, len);
+                    if (read > 0) {
+                        bytesRead.addAndGet(read);
+                    }
+                    return read;
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() {
+                // Left open for the exchange to drain
+            }
+
+            private InputStream underlying() {
+                return in;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                byte[] buffer = new byte[(int) Math.min(8192, Math.max(1, n))];
+                long skipped = 0;
+                int read;
+                while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) >= 0) {
+                    skipped += read;
+                }
+                return skipped;
+            }
+        }
+    }
+}
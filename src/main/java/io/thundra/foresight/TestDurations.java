@@ -0,0 +1,184 @@
+package io.thundra.foresight;
+
+import hudson.FilePath;
+import hudson.model.Job;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Durations of the test classes of a job, in milliseconds, kept in the job directory on the controller. They are taken
+ * from the JUnit XML reports Surefire and Gradle write in the workspace, the latest duration of a class replacing the
+ * previous one. Once every shard of a build reported its classes, the classes the build did not run, deleted or renamed
+ * ones, are dropped, see {@link TestShards.Plan#report}.
+ */
+public final class TestDurations {
+
+    public static final String FILE_NAME = "thundra-foresight-test-durations.properties";
+    /**
+     * Reports of Surefire and of the Gradle test tasks.
+     */
+    static final String REPORTS = "**/surefire-reports/TEST-*.xml,**/test-results/**/TEST-*.xml";
+    private static final String REPORT_EXCLUDES = "**/node_modules/**,**/.git/**";
+    // Modification times are only precise to the second on some file systems
+    private static final long CLOCK_GRANULARITY = 2000;
+
+    private TestDurations() {
+    }
+
+    public static Map<String, Long> load(Job<?, ?> job) throws IOException {
+        return load(new File(job.getRootDir(), FILE_NAME));
+    }
+
+    /**
+     * Records the latest durations of some test classes of the job.
+     */
+    public static void record(Job<?, ?> job, Map<String, Long> durations) throws IOException {
+        record(new File(job.getRootDir(), FILE_NAME), durations);
+    }
+
+    /**
+     * Drops the durations of the test classes of the job which are not among {@code classes}, the ones a build ran.
+     *
+     * @return the number of classes dropped
+     */
+    public static int retain(Job<?, ?> job, Set<String> classes) throws IOException {
+        return retain(new File(job.getRootDir(), FILE_NAME), classes);
+    }
+
+    static synchronized Map<String, Long> load(File file) throws IOException {
+        Map<String, Long> durations = new HashMap<>();
+        if (!file.isFile()) {
+            return durations;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            properties.load(in);
+        }
+        for (String className : properties.stringPropertyNames()) {
+            try {
+                durations.put(className, Long.parseLong(properties.getProperty(className)));
+            } catch (NumberFormatException e) {
+                // Dropped, measured again by the next build
+            }
+        }
+        return durations;
+    }
+
+    static synchronized void record(File file, Map<String, Long> durations) throws IOException {
+        if (durations.isEmpty()) {
+            return;
+        }
+        Map<String, Long> merged = load(file);
+        merged.putAll(durations);
+        store(file, merged);
+    }
+
+    static synchronized int retain(File file, Set<String> classes) throws IOException {
+        Map<String, Long> durations = load(file);
+        int count = durations.size();
+        if (!durations.keySet().retainAll(classes)) {
+            return 0;
+        }
+        store(file, durations);
+        return count - durations.size();
+    }
+
+    private static void store(File file, Map<String, Long> durations) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Long> entry : durations.entrySet()) {
+            properties.setProperty(entry.getKey(), Long.toString(entry.getValue()));
+        }
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+                properties.store(out, "Thundra Foresight test durations");
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Reads, on the node of a workspace, the durations of the test classes from the reports written since a marker
+     * file was, so that the reports left in the workspace by previous builds are ignored. Nested classes count for
+     * their top level class, the one which is sharded.
+     */
+    static class ReportCollector extends MasterToSlaveFileCallable<Map<String, Long>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String marker;
+
+        /**
+         * @param marker path on the node of a file written before the tests ran
+         */
+        ReportCollector(String marker) {
+            this.marker = marker;
+        }
+
+        @Override
+        public Map<String, Long> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            long since = new File(marker).lastModified() - CLOCK_GRANULARITY;
+            Map<String, Long> durations = new HashMap<>();
+            for (FilePath report : new FilePath(workspace).list(REPORTS, REPORT_EXCLUDES)) {
+                File file = new File(report.getRemote());
+                if (file.lastModified() >= since) {
+                    readReport(file, durations);
+                }
+            }
+            return durations;
+        }
+
+        private static void readReport(File report, Map<String, Long> durations) throws IOException {
+            try (InputStream in = Files.newInputStream(report.toPath())) {
+                XMLStreamReader reader = PomDiscovery.XML_INPUT_FACTORY.createXMLStreamReader(in);
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                            continue;
+                        }
+                        // Only the testsuite root element is needed
+                        if ("testsuite".equals(reader.getLocalName())) {
+                            add(reader.getAttributeValue(null, "name"), reader.getAttributeValue(null, "time"), durations);
+                        }
+                        return;
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                // Reports being written or truncated are not worth failing the build for
+            }
+        }
+
+        private static void add(String suite, String time, Map<String, Long> durations) {
+            if (suite == null || suite.isEmpty() || time == null) {
+                return;
+            }
+            long millis;
+            try {
+                // Surefire groups the thousands of long durations
+                millis = Math.round(Double.parseDouble(time.replace(",", "")) * 1000);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            int nested = suite.indexOf('$');
+            durations.merge(nested < 0 ? suite : suite.substring(0, nested), millis, Long::sum);
+        }
+    }
+}
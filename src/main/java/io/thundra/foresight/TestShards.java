@@ -0,0 +1,145 @@
+package io.thundra.foresight;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Split of the test classes of a job into shards of about the same duration, run by the parallel branches of a build.
+ * Classes are taken longest first, each going to the shard with the least work so far, according to the
+ * {@link TestDurations} of the job.
+ * <p>
+ * The plan of a build is kept with the build, so that every shard uses the same plan even if the durations are updated
+ * by a shard which finished first. Classes without a known duration, new ones among them, are not part of the plan:
+ * the first shard runs every class except those of the other shards, which only run their own classes. The plan also
+ * collects the classes each shard reports running, so that the durations of the classes no longer run are dropped once
+ * the whole build reported.
+ */
+public class TestShards extends InvisibleAction {
+
+    // Plans of the build by shard count
+    private final Map<Integer, Plan> plans = new HashMap<>();
+
+    /**
+     * Returns the plan of the build for {@code count} shards, made on first use.
+     */
+    public static Plan of(Run<?, ?> run, int count) throws IOException {
+        TestShards action;
+        synchronized (TestShards.class) {
+            action = run.getAction(TestShards.class);
+            if (action == null) {
+                action = new TestShards();
+                run.addAction(action);
+            }
+        }
+        synchronized (action) {
+            Plan plan = action.plans.get(count);
+            if (plan == null) {
+                plan = plan(TestDurations.load(run.getParent()), count);
+                action.plans.put(count, plan);
+            }
+            return plan;
+        }
+    }
+
+    static Plan plan(Map<String, Long> durations, int count) {
+        List<Map.Entry<String, Long>> classes = new ArrayList<>(durations.entrySet());
+        // Ties broken by name, so that the plan only depends on the durations
+        classes.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder())
+                .thenComparing(Map.Entry.comparingByKey()));
+        List<List<String>> shards = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            shards.add(new ArrayList<>());
+        }
+        long[] millis = new long[count];
+        for (Map.Entry<String, Long> entry : classes) {
+            int lightest = 0;
+            for (int i = 1; i < count; i++) {
+                if (millis[i] < millis[lightest]) {
+                    lightest = i;
+                }
+            }
+            shards.get(lightest).add(entry.getKey());
+            millis[lightest] += entry.getValue();
+        }
+        for (List<String> shard : shards) {
+            Collections.sort(shard);
+        }
+        return new Plan(shards, millis);
+    }
+
+    public static final class Plan {
+        private final List<List<String>> shards;
+        private final long[] millis;
+        // Shards which reported the test classes they ran, and these classes
+        private Set<Integer> reportedShards;
+        private Set<String> reportedClasses;
+
+        private Plan(List<List<String>> shards, long[] millis) {
+            this.shards = shards;
+            this.millis = millis;
+        }
+
+        public int getCount() {
+            return shards.size();
+        }
+
+        /**
+         * Returns the test classes planned for shard {@code index}.
+         */
+        public List<String> getClasses(int index) {
+            return Collections.unmodifiableList(shards.get(index));
+        }
+
+        /**
+         * Returns the test classes planned for every shard but {@code index}.
+         */
+        public List<String> getOtherClasses(int index) {
+            List<String> classes = new ArrayList<>();
+            for (int i = 0; i < shards.size(); i++) {
+                if (i != index) {
+                    classes.addAll(shards.get(i));
+                }
+            }
+            Collections.sort(classes);
+            return classes;
+        }
+
+        /**
+         * Expected duration of shard {@code index}, from the previous builds.
+         */
+        public long getMillis(int index) {
+            return millis[index];
+        }
+
+        /**
+         * Records the test classes shard {@code index} ran and returns, when it is the last shard of the build to
+         * report, the classes every shard ran, {@code null} otherwise. A shard reporting no classes, one which failed
+         * before running the tests for instance, never completes the build.
+         */
+        public synchronized Set<String> report(int index, Collection<String> classes) {
+            if (classes.isEmpty()) {
+                return null;
+            }
+            if (reportedShards == null) {
+                reportedShards = new HashSet<>();
+                reportedClasses = new HashSet<>();
+            }
+            reportedClasses.addAll(classes);
+            if (reportedShards.add(index) && reportedShards.size() == shards.size()) {
+                return new HashSet<>(reportedClasses);
+            }
+            return null;
+        }
+    }
+}
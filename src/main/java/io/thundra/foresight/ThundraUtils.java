@@ -6,54 +6,55 @@ import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import hudson.FilePath;
+import hudson.Util;
 import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.security.ACL;
+import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import io.thundra.foresight.exceptions.AgentNotFoundException;
+import io.thundra.plugin.maven.test.instrumentation.adder.ForkConfiguration;
 import io.thundra.foresight.exceptions.PluginNotFoundException;
 import jenkins.model.Jenkins;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.QueryParameter;
 
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamReader;
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 
 public class ThundraUtils {
-    public static final String GRADLE_PLUGIN_METADATA =
-            "https://repo1.maven.org/maven2/io/thundra/plugin/thundra-gradle-test-plugin/maven-metadata.xml";
-    public static final String THUNDRA_AGENT_METADATA =
-            "https://repo.thundra.io/service/local/repositories/thundra-releases/content" +
-                    "/io/thundra/agent/thundra-agent-bootstrap/maven-metadata.xml";
+    public static final String MAVEN_CENTRAL_REPOSITORY = "https://repo1.maven.org/maven2";
+    public static final String GRADLE_PLUGIN_METADATA_PATH =
+            "/io/thundra/plugin/thundra-gradle-test-plugin/maven-metadata.xml";
+    public static final String GRADLE_PLUGIN_METADATA = MAVEN_CENTRAL_REPOSITORY + GRADLE_PLUGIN_METADATA_PATH;
+    public static final String THUNDRA_RELEASES_REPOSITORY =
+            "https://repo.thundra.io/service/local/repositories/thundra-releases/content";
+    public static final String THUNDRA_AGENT_METADATA_PATH = "/io/thundra/agent/thundra-agent-bootstrap/maven-metadata.xml";
+    public static final String THUNDRA_AGENT_METADATA = THUNDRA_RELEASES_REPOSITORY + THUNDRA_AGENT_METADATA_PATH;
+    public static final String THUNDRA_AGENT_ARTIFACT_PATH =
+            "/io/thundra/agent/thundra-agent-bootstrap/%s/thundra-agent-bootstrap-%s.jar";
 
     public static final String THUNDRA_AGENT_BOOTSTRAP_JAR = "thundra-agent-bootstrap.jar";
+    public static final String THUNDRA_AGENT_JAR_NAME = "thundra-agent-bootstrap-%s.jar";
     public static final String LATEST = "latest";
     public static final String THUNDRA_URL_ENV="THUNDRA_URL";
 
-    public static String getLatestPluginVersion() throws XMLStreamException, IOException, PluginNotFoundException {
-        BufferedInputStream in = new BufferedInputStream(new URL(GRADLE_PLUGIN_METADATA).openStream());
-        XMLStreamReader reader1 = XMLInputFactory.newInstance().createXMLStreamReader(in);
-        String latestPluginVersion = "";
-        while (reader1.hasNext()) {
-            if (reader1.next() == XMLStreamConstants.START_ELEMENT && reader1.getLocalName().equalsIgnoreCase(LATEST)) {
-                latestPluginVersion = reader1.getElementText();
-                break;
-            }
-        }
+    public static String getLatestPluginVersion(ForesightStepStats stats)
+            throws XMLStreamException, IOException, PluginNotFoundException, InterruptedException {
+        String latestPluginVersion = VersionResolver.get().resolveLatest(MAVEN_CENTRAL_REPOSITORY, GRADLE_PLUGIN_METADATA_PATH, stats);
         if (StringUtils.isEmpty(latestPluginVersion)) {
             throw new PluginNotFoundException("Cannot extract plugin version from metadata");
         }
@@ -61,16 +62,9 @@ public class ThundraUtils {
     }
 
 
-    public static String getLatestThundraVersion() throws IOException, XMLStreamException, AgentNotFoundException {
-        String latestAgentVersion = "";
-        BufferedInputStream in = new BufferedInputStream(new URL(THUNDRA_AGENT_METADATA).openStream());
-        XMLStreamReader reader1 = XMLInputFactory.newInstance().createXMLStreamReader(in);
-        while (reader1.hasNext()) {
-            if (reader1.next() == XMLStreamConstants.START_ELEMENT && reader1.getLocalName().equalsIgnoreCase(LATEST)) {
-                latestAgentVersion = reader1.getElementText();
-                break;
-            }
-        }
+    public static String getLatestThundraVersion(ForesightStepStats stats)
+            throws IOException, XMLStreamException, AgentNotFoundException, InterruptedException {
+        String latestAgentVersion = VersionResolver.get().resolveLatest(THUNDRA_RELEASES_REPOSITORY, THUNDRA_AGENT_METADATA_PATH, stats);
         if (StringUtils.isEmpty(latestAgentVersion)) {
             throw new AgentNotFoundException("Cannot extract agent version from metadata");
         }
@@ -78,19 +72,51 @@ public class ThundraUtils {
 
     }
 
-    public static FilePath downloadThundraAgent(FilePath workspace, String version) throws IOException, XMLStreamException, AgentNotFoundException, InterruptedException {
-        BufferedInputStream agentStream = new BufferedInputStream(
-                new URL(String.format("https://repo.thundra.io/service/local/repositories/thundra-releases" +
-                                "/content/io/thundra/agent/thundra-agent-bootstrap/%s/thundra-agent-bootstrap-%s.jar",
-                        version, version)).openStream());
+    /**
+     * Returns the agent jar of the given version on the node of the workspace, from the node tool cache when enabled
+     * and copied into {@code workspace} otherwise.
+     */
+    public static FilePath downloadThundraAgent(FilePath workspace, String version, TaskListener listener, ForesightStepStats stats) throws IOException, XMLStreamException, AgentNotFoundException, InterruptedException {
+        ForesightGlobalConfiguration configuration = ForesightGlobalConfiguration.get();
+        if (configuration != null && configuration.isCacheAgentOnNodes()) {
+            FilePath jar = NodeAgentCache.install(workspace, version, listener.getLogger(), stats);
+            if (jar != null) {
+                return jar;
+            }
+        }
+        return AgentCache.get().copyTo(version, workspace.child(THUNDRA_AGENT_BOOTSTRAP_JAR), listener.getLogger(), stats);
+    }
 
-        FilePath agent = workspace.child(THUNDRA_AGENT_BOOTSTRAP_JAR);
-        if (agent.exists()) {
-            agent.delete();
+    /**
+     * Returns the Thundra API key held by the secret text credentials {@code credentialId} available to the build.
+     *
+     * @throws IOException if there are no such credentials
+     */
+    public static String getApiKey(Run<?, ?> run, String credentialId) throws IOException {
+        StringCredentials apiKeyCredentials = CredentialsProvider.findCredentialById(credentialId, StringCredentials.class, run);
+        if (apiKeyCredentials == null) {
+            throw new IOException("Wrong credentials provided");
         }
-        IOUtils.copy(agentStream, agent.write());
-        return agent;
+        return apiKeyCredentials.getSecret().getPlainText();
+    }
 
+    /**
+     * Returns the Foresight test run id of a build, derived from the build itself so that every step of the build,
+     * on any node, reports its tests to the same run.
+     */
+    public static String getTestRunId(Run<?, ?> run) {
+        return UUID.nameUUIDFromBytes(run.getExternalizableId().getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Validates the fork count field of the Maven steps, which may be left empty.
+     */
+    public static FormValidation checkForkCount(String value) {
+        String forkCount = Util.fixEmptyAndTrim(value);
+        if (forkCount != null && !ForkConfiguration.isValid(forkCount)) {
+            return FormValidation.error("A positive number of forks, or of forks per core followed by C, is required");
+        }
+        return FormValidation.ok();
     }
 
     public static ListBoxModel fillCredentials(Item item, String selectedId) {
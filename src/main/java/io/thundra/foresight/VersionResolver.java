@@ -0,0 +1,290 @@
+package io.thundra.foresight;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves the latest version published in a {@code maven-metadata.xml}, shared by all builds of the controller.
+ * <p>
+ * Metadata is read from the first repository of the {@link RepositoryChain} which has it. Resolved versions are kept
+ * for a configurable time to live. Concurrent lookups of the same metadata share a single request, expired entries
+ * are revalidated with conditional requests, and the last known version is served when the repositories fail or do
+ * not answer in time.
+ */
+public class VersionResolver {
+
+    private static final Logger logger = LogManager.getLogger(VersionResolver.class);
+
+    public static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(10);
+    public static final long DEFAULT_STALE_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+    private static final VersionResolver INSTANCE = new VersionResolver(
+            SystemProperties.getLong(VersionResolver.class.getName() + ".ttl", DEFAULT_TTL),
+            SystemProperties.getLong(VersionResolver.class.getName() + ".staleTimeout", DEFAULT_STALE_TIMEOUT));
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "VersionResolver"));
+
+    private final long ttl;
+    private final long staleTimeout;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong staleServed = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong requestNanos = new AtomicLong();
+    private final AtomicLong maxRequestNanos = new AtomicLong();
+
+    public VersionResolver(long ttl, long staleTimeout) {
+        this.ttl = ttl;
+        this.staleTimeout = staleTimeout;
+    }
+
+    public static VersionResolver get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the {@code <latest>} version of the given metadata, or {@code null} if no repository has one.
+     *
+     * @param publicRepository repository the metadata is published to
+     * @param metadataPath     path of the metadata in the repositories
+     */
+    public String resolveLatest(String publicRepository, String metadataPath)
+            throws IOException, XMLStreamException, InterruptedException {
+        return resolveLatest(publicRepository, metadataPath, null);
+    }
+
+    /**
+     * Same as {@link #resolveLatest(String, String)}, counting the lookup as a cache hit or miss of {@code stats}.
+     */
+    public String resolveLatest(String publicRepository, String metadataPath, ForesightStepStats stats)
+            throws IOException, XMLStreamException, InterruptedException {
+        String metadataUrl = publicRepository + metadataPath;
+        Entry cached = entries.get(metadataUrl);
+        if (cached != null && !cached.isExpired()) {
+            hits.incrementAndGet();
+            if (stats != null) {
+                stats.cacheHit();
+            }
+            return cached.version;
+        }
+        misses.incrementAndGet();
+        if (stats != null) {
+            stats.cacheMiss();
+        }
+
+        CompletableFuture<Entry> created = new CompletableFuture<>();
+        CompletableFuture<Entry> request = inFlight.putIfAbsent(metadataUrl, created);
+        if (request == null) {
+            request = created;
+            executor.execute(() -> {
+                try {
+                    Entry entry = fetch(publicRepository, metadataPath, cached);
+                    if (StringUtils.isNotEmpty(entry.version)) {
+                        entries.put(metadataUrl, entry);
+                    }
+                    created.complete(entry);
+                } catch (Throwable t) {
+                    created.completeExceptionally(t);
+                } finally {
+                    inFlight.remove(metadataUrl, created);
+                }
+            });
+        }
+
+        try {
+            return (cached == null ? request.get() : request.get(staleTimeout, TimeUnit.MILLISECONDS)).version;
+        } catch (TimeoutException e) {
+            logger.warn(String.format("Lookup of %s did not complete in %d ms, using last known version %s",
+                    metadataUrl, staleTimeout, cached.version));
+            staleServed.incrementAndGet();
+            return cached.version;
+        } catch (ExecutionException e) {
+            if (cached != null) {
+                logger.warn(String.format("Cannot refresh %s, using last known version %s", metadataUrl, cached.version),
+                        e.getCause());
+                staleServed.incrementAndGet();
+                return cached.version;
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof XMLStreamException) {
+                throw (XMLStreamException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            // An aborted build, not a failed lookup: the request goes on for the other waiting builds
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    /**
+     * Drops all cached versions, the next lookups go to the repositories.
+     */
+    public void invalidate() {
+        entries.clear();
+    }
+
+    private Entry fetch(String publicRepository, String metadataPath, Entry previous)
+            throws IOException, XMLStreamException {
+        RepositoryChain chain = RepositoryChain.get();
+        Exception failure = null;
+        for (String repository : chain.repositories(publicRepository)) {
+            String url = repository + metadataPath;
+            long start = System.nanoTime();
+            try {
+                // Validators only apply to the repository which returned them
+                Entry entry = fetch(url, previous != null && url.equals(previous.url) ? previous : null);
+                chain.success(repository, System.nanoTime() - start);
+                if (StringUtils.isNotEmpty(entry.version)) {
+                    return entry;
+                }
+            } catch (FileNotFoundException e) {
+                chain.success(repository, System.nanoTime() - start);
+            } catch (IOException | XMLStreamException e) {
+                chain.failure(repository, e);
+                failure = e;
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof XMLStreamException) {
+            throw (XMLStreamException) failure;
+        }
+        return new Entry(null, null, null, 0, 0);
+    }
+
+    private Entry fetch(String metadataUrl, Entry previous) throws IOException, XMLStreamException {
+        long start = System.nanoTime();
+        if (metadataUrl.startsWith("file:")) {
+            try (InputStream in = new BufferedInputStream(new URL(metadataUrl).openStream())) {
+                return new Entry(metadataUrl, parseLatest(in), null, 0, System.currentTimeMillis() + ttl);
+            } finally {
+                record(start);
+            }
+        }
+        try (RepositoryClient.Exchange exchange = RepositoryClient.get().open(metadataUrl)) {
+            HttpURLConnection connection = exchange.getConnection();
+            if (previous != null) {
+                if (previous.etag != null) {
+                    connection.setRequestProperty("If-None-Match", previous.etag);
+                }
+                if (previous.lastModified > 0) {
+                    connection.setIfModifiedSince(previous.lastModified);
+                }
+            }
+            if (previous != null && exchange.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                notModified.incrementAndGet();
+                return new Entry(metadataUrl, previous.version, previous.etag, previous.lastModified,
+                        System.currentTimeMillis() + ttl);
+            }
+            return new Entry(metadataUrl, parseLatest(new BufferedInputStream(exchange.getInputStream())),
+                    connection.getHeaderField("ETag"), connection.getLastModified(), System.currentTimeMillis() + ttl);
+        } finally {
+            record(start);
+        }
+    }
+
+    private void record(long start) {
+        long elapsed = System.nanoTime() - start;
+        requests.incrementAndGet();
+        requestNanos.addAndGet(elapsed);
+        maxRequestNanos.accumulateAndGet(elapsed, Math::max);
+    }
+
+    private static String parseLatest(InputStream in) throws XMLStreamException {
+        XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equalsIgnoreCase(ThundraUtils.LATEST)) {
+                    return reader.getElementText();
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getNotModified() {
+        return notModified.get();
+    }
+
+    public long getStaleServed() {
+        return staleServed.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getAverageRequestMillis() {
+        long count = requests.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(requestNanos.get() / count);
+    }
+
+    public long getMaxRequestMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxRequestNanos.get());
+    }
+
+    private static final class Entry {
+        // Where the version was read from
+        private final String url;
+        private final String version;
+        private final String etag;
+        private final long lastModified;
+        private final long expiresAt;
+
+        private Entry(String url, String version, String etag, long lastModified, long expiresAt) {
+            this.url = url;
+            this.version = version;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
@@ -3,7 +3,6 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.util.Arrays;
 import java.util.Map;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.maven.model.BuildBase;
 import org.apache.maven.model.Plugin;
 import org.apache.maven.model.PluginManagement;
@@ -11,6 +10,13 @@ import org.codehaus.plexus.util.xml.Xpp3Dom;
 import org.codehaus.plexus.util.xml.Xpp3DomBuilder;
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
 
+/**
+ * Adds the Thundra agent to plugins of an already parsed Maven model.
+ *
+ * @deprecated the poms are patched in place by {@link io.thundra.plugin.maven.test.instrumentation.patcher.PomPatcher},
+ * and argLines merged by {@link ArgLineMerger}, kept for the callers of the previous API
+ */
+@Deprecated
 public class AgentAdder {
     public AgentAdder() {
     }
@@ -65,50 +71,17 @@ public class AgentAdder {
                 configuration.addChild(argLine);
             }
 
-            String origArgLine = argLine.getValue();
-            argLine.setValue((StringUtils.isNotEmpty(origArgLine) ? origArgLine + " " : "") + "-javaagent:" + agentPath);
-            argLine.setValue(thundraAdder(origArgLine, agentPath));
+            argLine.setValue(mergeArgLine(argLine.getValue(), agentPath));
             return true;
         } catch (IOException | XmlPullParserException var8) {
             throw new RuntimeException(var8);
         }
     }
 
-    private String thundraAdder(String argLine, String newArgLine){
-        String javaAgent = "";
-        String apiKey = "";
-        String pId = "";
-        for (String s : newArgLine.split(" ")) {
-            if (!s.contains("=")) {//java agent path
-                javaAgent = "-javaagent:"+s;
-            }
-            else if (s.startsWith("-Dthundra.apiKey")){
-                apiKey = s;
-            } else if(s.startsWith("-Dthundra.agent.test.project.id")){
-                pId = s;
-            }
-        }
-        StringBuilder result = new StringBuilder();
-        if (argLine != null) {
-            for (String s : argLine.split(" ")) {
-                s = s.trim();
-                if (s.startsWith("-javaagent") && s.endsWith(javaAgent)) {
-                    result.append(" ").append(javaAgent);
-                    javaAgent = "";
-                }
-                else if (s.startsWith("-Dthundra.apiKey")){
-                    result.append(" ").append(apiKey);
-                    apiKey = "";
-                }
-                else if (s.startsWith("-Dthundra.agent.test.project.id")){
-                    result.append(" ").append(pId);
-                    pId = "";
-                }else {
-                    result.append(" ").append(s);
-                }
-            }
-        }
-        result.append(" ").append(javaAgent).append(" ").append(apiKey).append(" ").append(pId).append(" ");
-        return result.toString().trim();
+    /**
+     * Returns the given argLine with the Thundra agent and its configuration added or updated.
+     */
+    public String mergeArgLine(String argLine, String agentPath) {
+        return ArgLineMerger.merge(argLine, agentPath);
     }
 }
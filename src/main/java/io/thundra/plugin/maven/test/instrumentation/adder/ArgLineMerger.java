@@ -0,0 +1,255 @@
+package io.thundra.plugin.maven.test.instrumentation.adder;
+
+import java.util.Arrays;
+
+/**
+ * Merges the Thundra agent and its system properties into a JVM argLine.
+ * <p>
+ * Arguments are split on whitespace outside of quotes and {@code ${...}} / {@code @{...}} property references, and
+ * copied verbatim. The Thundra {@code -javaagent} and every {@code -Dthundra.*} property of the agent configuration
+ * replace their first occurrence in place, further occurrences are dropped and missing ones are appended. The test run
+ * id is dropped unless the configuration sets it, the agent takes it from the environment, and so is the fork number,
+ * only set along with a fork count. Merging is idempotent: merging the result again with the same configuration returns
+ * it unchanged.
+ * <p>
+ * An agent path containing whitespace must be quoted in the configuration, see {@link #quote(String)}, and its
+ * {@code -javaagent} argument is quoted as a whole in the argLine.
+ */
+public final class ArgLineMerger {
+
+    private static final String JAVA_AGENT = "-javaagent:";
+    private static final String THUNDRA_PROPERTY = "-Dthundra.";
+    private static final String THUNDRA_AGENT_JAR = "thundra-agent-bootstrap";
+    private static final String RUN_ID_PROPERTY = "-Dthundra.agent.test.run.id";
+    private static final String FORK_NUMBER_PROPERTY = "-Dthundra.agent.test.fork.number";
+
+    private ArgLineMerger() {
+    }
+
+    /**
+     * Quotes a path containing whitespace so that it is kept as a single argument.
+     */
+    public static String quote(String path) {
+        for (int i = 0; i < path.length(); i++) {
+            if (Character.isWhitespace(path.charAt(i))) {
+                return '"' + path + '"';
+            }
+        }
+        return path;
+    }
+
+    /**
+     * @param argLine            the current argLine, may be {@code null}
+     * @param agentConfiguration the agent path, quoted if needed, followed by the {@code -D} properties to pass to it
+     */
+    public static String merge(String argLine, String agentConfiguration) {
+        Arguments configuration = Arguments.split(agentConfiguration);
+        if (configuration.size == 0) {
+            return argLine == null ? "" : argLine.trim();
+        }
+        String agentPath = configuration.unquoted(0);
+        String agent = quote(JAVA_AGENT + agentPath);
+        Arguments arguments = Arguments.split(argLine);
+        StringBuilder result = new StringBuilder((argLine == null ? 0 : argLine.length()) + agentConfiguration.length() + 16);
+        // Which configuration arguments have been written so far, index 0 being the agent
+        boolean[] written = new boolean[configuration.size];
+
+        for (int i = 0; i < arguments.size; i++) {
+            int start = arguments.unquotedStart(i);
+            int end = arguments.ends[i];
+            String value = arguments.value;
+            if (isThundraAgent(value, start, end, agentPath)) {
+                if (!written[0]) {
+                    append(result, agent);
+                    written[0] = true;
+                }
+                continue;
+            }
+            if (value.startsWith(THUNDRA_PROPERTY, start)) {
+                int keyEnd = keyEnd(value, start, end);
+                int replacement = configuration.indexOfProperty(value, start, keyEnd);
+                if (replacement > 0) {
+                    if (!written[replacement]) {
+                        append(result, configuration.value, configuration.starts[replacement], configuration.ends[replacement]);
+                        written[replacement] = true;
+                    }
+                    continue;
+                }
+                // Left by an older instrumentation, it would override the run id of the environment
+                if (isProperty(value, start, keyEnd, RUN_ID_PROPERTY)) {
+                    continue;
+                }
+                // Left by an instrumentation with a fork count, which is no longer enforced
+                if (isProperty(value, start, keyEnd, FORK_NUMBER_PROPERTY)) {
+                    continue;
+                }
+                // Not managed by the configuration, only the last value is effective
+                if (arguments.lastIndexOfProperty(value, start, keyEnd) > i) {
+                    continue;
+                }
+            }
+            append(result, value, arguments.starts[i], end);
+        }
+
+        if (!written[0]) {
+            append(result, agent);
+        }
+        for (int i = 1; i < configuration.size; i++) {
+            if (!written[i]) {
+                append(result, configuration.value, configuration.starts[i], configuration.ends[i]);
+            }
+        }
+        return result.toString();
+    }
+
+    private static boolean isThundraAgent(String value, int start, int end, String agentPath) {
+        if (!value.startsWith(JAVA_AGENT, start)) {
+            return false;
+        }
+        int pathStart = start + JAVA_AGENT.length();
+        int pathEnd = value.indexOf('=', pathStart);
+        if (pathEnd < 0 || pathEnd > end) {
+            pathEnd = end;
+        }
+        if (pathEnd > pathStart && (value.charAt(pathEnd - 1) == '"' || value.charAt(pathEnd - 1) == '\'')) {
+            pathEnd--;
+        }
+        if (pathEnd - pathStart == agentPath.length() && value.startsWith(agentPath, pathStart)) {
+            return true;
+        }
+        int name = Math.max(value.lastIndexOf('/', pathEnd - 1), value.lastIndexOf('\\', pathEnd - 1)) + 1;
+        return value.startsWith(THUNDRA_AGENT_JAR, Math.max(name, pathStart));
+    }
+
+    private static boolean isProperty(String value, int start, int keyEnd, String property) {
+        return keyEnd - start == property.length() && value.startsWith(property, start);
+    }
+
+    private static int keyEnd(String value, int start, int end) {
+        int equals = value.indexOf('=', start);
+        return equals < 0 || equals > end ? end : equals;
+    }
+
+    private static StringBuilder append(StringBuilder result, String value) {
+        if (result.length() > 0) {
+            result.append(' ');
+        }
+        return result.append(value);
+    }
+
+    private static void append(StringBuilder result, String value, int start, int end) {
+        if (result.length() > 0) {
+            result.append(' ');
+        }
+        result.append(value, start, end);
+    }
+
+    /**
+     * Argument boundaries of a command line, kept as offsets into the original string.
+     */
+    private static final class Arguments {
+        private final String value;
+        private int[] starts = new int[8];
+        private int[] ends = new int[8];
+        private int size;
+
+        private Arguments(String value) {
+            this.value = value;
+        }
+
+        static Arguments split(String value) {
+            Arguments arguments = new Arguments(value == null ? "" : value);
+            String s = arguments.value;
+            int length = s.length();
+            int i = 0;
+            while (i < length) {
+                while (i < length && Character.isWhitespace(s.charAt(i))) {
+                    i++;
+                }
+                if (i == length) {
+                    break;
+                }
+                int start = i;
+                char quote = 0;
+                int braces = 0;
+                for (; i < length; i++) {
+                    char c = s.charAt(i);
+                    if (quote != 0) {
+                        if (c == quote) {
+                            quote = 0;
+                        }
+                    } else if (c == '"' || c == '\'') {
+                        quote = c;
+                    } else if ((c == '$' || c == '@') && i + 1 < length && s.charAt(i + 1) == '{') {
+                        braces++;
+                        i++;
+                    } else if (c == '}' && braces > 0) {
+                        braces--;
+                    } else if (braces == 0 && Character.isWhitespace(c)) {
+                        break;
+                    }
+                }
+                arguments.add(start, i);
+            }
+            return arguments;
+        }
+
+        private void add(int start, int end) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+
+        /**
+         * Value of the argument without the quotes wrapping it as a whole.
+         */
+        String unquoted(int index) {
+            int start = unquotedStart(index);
+            int end = ends[index];
+            return value.substring(start, start > starts[index] && value.charAt(end - 1) == value.charAt(starts[index])
+                    ? end - 1 : end);
+        }
+
+        /**
+         * Start of the argument, past an opening quote wrapping the whole argument.
+         */
+        int unquotedStart(int index) {
+            char c = value.charAt(starts[index]);
+            return (c == '"' || c == '\'') && ends[index] - starts[index] > 1 ? starts[index] + 1 : starts[index];
+        }
+
+        /**
+         * Index of the {@code -D} argument defining the given key, -1 if none.
+         */
+        int indexOfProperty(String other, int keyStart, int keyEnd) {
+            for (int i = 0; i < size; i++) {
+                if (isProperty(i, other, keyStart, keyEnd)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int lastIndexOfProperty(String other, int keyStart, int keyEnd) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (isProperty(i, other, keyStart, keyEnd)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean isProperty(int index, String other, int keyStart, int keyEnd) {
+            int start = unquotedStart(index);
+            int keyLength = keyEnd - keyStart;
+            if (keyEnd(value, start, ends[index]) - start != keyLength) {
+                return false;
+            }
+            return value.regionMatches(start, other, keyStart, keyLength);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package io.thundra.plugin.maven.test.instrumentation.adder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fork settings of the Surefire and Failsafe plugins running the tests in a given number of reused forks, so that the
+ * agent is started once per fork rather than once per test class or module.
+ * <p>
+ * Used both in Jenkins and by the Maven extension, it must only depend on the JDK.
+ */
+public final class ForkConfiguration {
+
+    /**
+     * Agent property telling the forks of a test run apart, Surefire and Failsafe replace the placeholder with the
+     * number of each fork.
+     */
+    public static final String FORK_NUMBER_PROPERTY = "-Dthundra.agent.test.fork.number=${surefire.forkNumber}";
+
+    private ForkConfiguration() {
+    }
+
+    /**
+     * Returns the plugin configuration elements running the tests in {@code forkCount} forks, reused from one test
+     * class to the next. A count ending with {@code C} is multiplied by the number of cores of the machine Maven runs
+     * on.
+     */
+    public static Map<String, String> of(String forkCount) {
+        Map<String, String> configuration = new LinkedHashMap<>();
+        configuration.put("forkCount", forkCount);
+        configuration.put("reuseForks", "true");
+        return configuration;
+    }
+
+    /**
+     * Returns whether {@code forkCount} is a positive fork count as Surefire accepts it: a number of forks, or a number
+     * of forks per core followed by {@code C}. A count of 0 would run the tests in Maven, without the agent.
+     */
+    public static boolean isValid(String forkCount) {
+        if (forkCount == null || !forkCount.matches("\\d+|\\d*\\.?\\d+C")) {
+            return false;
+        }
+        return Double.parseDouble(forkCount.endsWith("C") ? forkCount.substring(0, forkCount.length() - 1) : forkCount) > 0;
+    }
+}
@@ -1,15 +1,17 @@
-//
-// Source code recreated from a .class file by IntelliJ IDEA
-// (powered by FernFlower decompiler)
-//
-
 package io.thundra.plugin.maven.test.instrumentation.checker;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
 
+/**
+ * Adds the Thundra agent to a test plugin of a pom file.
+ *
+ * @deprecated use {@link io.thundra.plugin.maven.test.instrumentation.patcher.PomPatcher}, which the checkers delegate
+ * to
+ */
+@Deprecated
 public interface Checker {
-    void checkProfiles(Logger var1, MavenXpp3Reader var2, String var3, String var4, Boolean var5);
+    void checkProfiles(Logger logger, MavenXpp3Reader mavenReader, String agentPath, String pomFile, Boolean addIfMissing);
 
-    void checkPom(Logger var1, MavenXpp3Reader var2, String var3, String var4, Boolean var5);
+    void checkPom(Logger logger, MavenXpp3Reader mavenReader, String agentPath, String pomFile, Boolean addIfMissing);
 }
@@ -0,0 +1,61 @@
+package io.thundra.plugin.maven.test.instrumentation.checker;
+
+import io.thundra.plugin.maven.test.instrumentation.patcher.PomPatcher;
+import org.apache.logging.log4j.Logger;
+import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Adds the Thundra agent to the configuration of a single test plugin by patching the pom file with
+ * {@link PomPatcher}, which handles the main build and the profiles in the same pass: both methods patch the plugins
+ * declared anywhere in the pom, {@link #checkPom} also adds the plugin to the main build when asked to. The reader is
+ * not used.
+ *
+ * @deprecated use {@link PomPatcher}
+ */
+@Deprecated
+public abstract class PluginChecker implements Checker {
+    public AtomicBoolean instrumented = new AtomicBoolean();
+
+    private final String pluginName;
+    private final String displayName;
+    private final PomPatcher patcher;
+
+    protected PluginChecker(String pluginName, String displayName) {
+        this.pluginName = pluginName;
+        this.displayName = displayName;
+        this.patcher = new PomPatcher(pluginName);
+    }
+
+    public String getPluginName() {
+        return pluginName;
+    }
+
+    public void checkProfiles(Logger logger, MavenXpp3Reader mavenReader, String agentPath, String pomFile, Boolean addIfMissing) {
+        patch(logger, "<CheckProfiles>", agentPath, pomFile, false);
+    }
+
+    public void checkPom(Logger logger, MavenXpp3Reader mavenReader, String agentPath, String pomFile, Boolean addIfMissing) {
+        patch(logger, "<CheckPom>", agentPath, pomFile, Boolean.TRUE.equals(addIfMissing));
+    }
+
+    private void patch(Logger logger, String tag, String agentPath, String pomFile, boolean addIfMissing) {
+        try {
+            PomPatcher.Result result = patcher.patch(new File(pomFile), agentPath, addIfMissing);
+            if (result.isInstrumented(pluginName)) {
+                this.instrumented.set(true);
+            }
+            if (result.isChanged()) {
+                logger.info(String.format("%s Added Thundra Agent configuration to %s plugin in %s", tag, displayName, pomFile));
+            } else if (!result.isInstrumented(pluginName)) {
+                logger.info(String.format("%s Couldn't find any %s configuration in %s", tag, displayName, pomFile));
+            }
+        } catch (IOException e) {
+            logger.error(String.format("%s Something went wrong while processing %s", tag, pomFile));
+            throw new RuntimeException(e);
+        }
+    }
+}
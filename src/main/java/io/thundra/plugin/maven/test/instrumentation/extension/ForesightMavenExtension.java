@@ -0,0 +1,216 @@
+package io.thundra.plugin.maven.test.instrumentation.extension;
+
+import io.thundra.plugin.maven.test.instrumentation.adder.ArgLineMerger;
+import io.thundra.plugin.maven.test.instrumentation.adder.ForkConfiguration;
+import io.thundra.plugin.maven.test.instrumentation.patcher.PomPatcher;
+import org.apache.maven.AbstractMavenLifecycleParticipant;
+import org.apache.maven.MavenExecutionException;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maven core extension adding the Thundra agent to the Surefire and Failsafe plugins of every project of the reactor,
+ * in the models Maven has already built, so that no pom.xml has to be rewritten.
+ * <p>
+ * It is loaded with {@code -Dmaven.ext.class.path} and takes the agent configuration from the
+ * {@value #AGENT_CONFIGURATION_ENV} environment variable, the same agent path and {@code -D} properties the pom
+ * instrumentation merges into the argLine. Profiles and plugin management are already applied to these models, and
+ * the configuration of each plugin execution already contains the one of its plugin, so both are updated.
+ * <p>
+ * When the build runs a shard of the tests, the Surefire plugins are also restricted to the test classes listed, one
+ * per line, in the file of the {@value #SHARD_INCLUDES_ENV} environment variable, or run every test class but those of
+ * the file of {@value #SHARD_EXCLUDES_ENV}.
+ * <p>
+ * With a fork count in the {@value #FORK_COUNT_ENV} environment variable, the Surefire and Failsafe plugins run their
+ * tests in that many reused forks, see {@link ForkConfiguration}.
+ * <p>
+ * This class runs inside Maven, it must only depend on the Maven core API, {@link ArgLineMerger} and
+ * {@link ForkConfiguration}.
+ */
+@Named("thundra-foresight")
+@Singleton
+public class ForesightMavenExtension extends AbstractMavenLifecycleParticipant {
+
+    public static final String AGENT_CONFIGURATION_ENV = "THUNDRA_FORESIGHT_AGENT_CONFIGURATION";
+    public static final String SHARD_INCLUDES_ENV = "THUNDRA_FORESIGHT_SHARD_INCLUDES";
+    public static final String SHARD_EXCLUDES_ENV = "THUNDRA_FORESIGHT_SHARD_EXCLUDES";
+    public static final String FORK_COUNT_ENV = "THUNDRA_FORESIGHT_FORK_COUNT";
+
+    // Surefire excludes nested classes unless excludes are configured
+    private static final String NESTED_CLASSES = "**/*$*";
+
+    private static final Logger logger = LoggerFactory.getLogger(ForesightMavenExtension.class);
+
+    @Override
+    public void afterProjectsRead(MavenSession session) throws MavenExecutionException {
+        String agentConfiguration = System.getenv(AGENT_CONFIGURATION_ENV);
+        if (agentConfiguration == null || agentConfiguration.trim().isEmpty()) {
+            logger.warn("Thundra Foresight extension loaded without {}, tests are not instrumented", AGENT_CONFIGURATION_ENV);
+            return;
+        }
+        String includesFile = System.getenv(SHARD_INCLUDES_ENV);
+        String excludesFile = System.getenv(SHARD_EXCLUDES_ENV);
+        boolean include = includesFile != null && !includesFile.trim().isEmpty();
+        List<String> shard = include ? readShard(includesFile)
+                : excludesFile != null && !excludesFile.trim().isEmpty() ? readShard(excludesFile) : null;
+        String forkCount = System.getenv(FORK_COUNT_ENV);
+        Map<String, String> forkConfiguration = forkCount == null || forkCount.trim().isEmpty() ? null
+                : ForkConfiguration.of(forkCount.trim());
+        int instrumented = 0;
+        for (MavenProject project : session.getProjects()) {
+            for (Plugin plugin : project.getBuildPlugins()) {
+                String key = plugin.getKey();
+                if (PomPatcher.SUREFIRE_PLUGIN.equals(key) || PomPatcher.FAILSAFE_PLUGIN.equals(key)) {
+                    instrument(plugin, agentConfiguration);
+                    if (forkConfiguration != null) {
+                        configure(plugin, forkConfiguration);
+                    }
+                    logger.debug("Added Thundra Agent configuration to {} in {}", key, project.getId());
+                    instrumented++;
+                }
+                if (shard != null && PomPatcher.SUREFIRE_PLUGIN.equals(key)) {
+                    shard(plugin, shard, include);
+                }
+            }
+        }
+        logger.info("Thundra Foresight: added the agent to {} test plugins in {} projects", instrumented,
+                session.getProjects().size());
+        if (forkConfiguration != null) {
+            logger.info("Thundra Foresight: running the tests in {} reused forks", forkCount.trim());
+        }
+        if (shard != null) {
+            logger.info(include ? "Thundra Foresight: running the {} test classes of this shard"
+                    : "Thundra Foresight: skipping the {} test classes of the other shards", shard.size());
+        }
+    }
+
+    private static List<String> readShard(String file) throws MavenExecutionException {
+        List<String> classes = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(file.trim()), StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    classes.add(line.trim());
+                }
+            }
+        } catch (IOException e) {
+            throw new MavenExecutionException("Cannot read the Thundra Foresight test shard " + file, e);
+        }
+        return classes;
+    }
+
+    static void instrument(Plugin plugin, String agentConfiguration) {
+        plugin.setConfiguration(addAgent((Xpp3Dom) plugin.getConfiguration(), agentConfiguration));
+        for (PluginExecution execution : plugin.getExecutions()) {
+            execution.setConfiguration(addAgent((Xpp3Dom) execution.getConfiguration(), agentConfiguration));
+        }
+    }
+
+    /**
+     * Sets the given elements of the configurations of a plugin, replacing the ones it declares.
+     */
+    static void configure(Plugin plugin, Map<String, String> values) {
+        plugin.setConfiguration(configure((Xpp3Dom) plugin.getConfiguration(), values));
+        for (PluginExecution execution : plugin.getExecutions()) {
+            execution.setConfiguration(configure((Xpp3Dom) execution.getConfiguration(), values));
+        }
+    }
+
+    private static Xpp3Dom configure(Xpp3Dom configuration, Map<String, String> values) {
+        if (configuration == null) {
+            configuration = new Xpp3Dom("configuration");
+        }
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            removeChildren(configuration, value.getKey());
+            configuration.addChild(element(value.getKey(), value.getValue()));
+        }
+        return configuration;
+    }
+
+    /**
+     * @param classes test classes to run if {@code include}, to skip otherwise
+     */
+    static void shard(Plugin plugin, List<String> classes, boolean include) {
+        plugin.setConfiguration(shard((Xpp3Dom) plugin.getConfiguration(), classes, include));
+        for (PluginExecution execution : plugin.getExecutions()) {
+            execution.setConfiguration(shard((Xpp3Dom) execution.getConfiguration(), classes, include));
+        }
+    }
+
+    private static Xpp3Dom shard(Xpp3Dom configuration, List<String> classes, boolean include) {
+        if (configuration == null) {
+            configuration = new Xpp3Dom("configuration");
+        }
+        if (include) {
+            // Surefire adds the configured includes to the ones of the shard, they are replaced instead
+            removeChildren(configuration, "includes");
+            removeChildren(configuration, "includesFile");
+            Xpp3Dom includes = new Xpp3Dom("includes");
+            for (String className : classes) {
+                includes.addChild(element("include", pattern(className)));
+            }
+            configuration.addChild(includes);
+            if (classes.isEmpty()) {
+                // Without includes Surefire would run every test class
+                removeChildren(configuration, "skipTests");
+                configuration.addChild(element("skipTests", "true"));
+            }
+        } else {
+            Xpp3Dom excludes = configuration.getChild("excludes");
+            if (excludes == null) {
+                excludes = new Xpp3Dom("excludes");
+                excludes.addChild(element("exclude", NESTED_CLASSES));
+                configuration.addChild(excludes);
+            }
+            for (String className : classes) {
+                excludes.addChild(element("exclude", pattern(className)));
+            }
+        }
+        return configuration;
+    }
+
+    private static String pattern(String className) {
+        return className.replace('.', '/') + ".java";
+    }
+
+    private static Xpp3Dom element(String name, String value) {
+        Xpp3Dom element = new Xpp3Dom(name);
+        element.setValue(value);
+        return element;
+    }
+
+    private static void removeChildren(Xpp3Dom parent, String name) {
+        for (int i = parent.getChildCount() - 1; i >= 0; i--) {
+            if (name.equals(parent.getChild(i).getName())) {
+                parent.removeChild(i);
+            }
+        }
+    }
+
+    private static Xpp3Dom addAgent(Xpp3Dom configuration, String agentConfiguration) {
+        if (configuration == null) {
+            configuration = new Xpp3Dom("configuration");
+        }
+        Xpp3Dom argLine = configuration.getChild("argLine");
+        if (argLine == null) {
+            argLine = new Xpp3Dom("argLine");
+            configuration.addChild(argLine);
+        }
+        argLine.setValue(ArgLineMerger.merge(argLine.getValue(), agentConfiguration));
+        return configuration;
+    }
+}
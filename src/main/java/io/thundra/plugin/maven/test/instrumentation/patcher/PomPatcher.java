@@ -0,0 +1,807 @@
+package io.thundra.plugin.maven.test.instrumentation.patcher;
+
+import io.thundra.plugin.maven.test.instrumentation.adder.ArgLineMerger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Adds the Thundra agent to the {@code argLine} of test plugins by patching the pom.xml text in place instead of
+ * re-serializing the whole Maven model.
+ * <p>
+ * The pom is streamed twice: the first pass finds the regions to change, the second one copies the document with those
+ * regions replaced. Everything outside of the patched {@code argLine} elements, including comments and formatting, is
+ * copied as is, and memory use does not depend on the size of the pom. Which plugins get the agent depends on the
+ * {@link Mode}.
+ * <p>
+ * Pom files are read and written in the encoding given by their byte order mark or XML declaration, UTF-8 by default.
+ * A pom which cannot be decoded, or whose changes cannot be encoded, is left untouched and the patch fails.
+ * <p>
+ * Other elements of the plugin configurations, such as {@code forkCount}, can be enforced along with the agent: they
+ * are set wherever the agent is added, and replaced in the plugins which declare them. The {@link Result} lists the
+ * {@link Setting settings} the pom then has because of the patch, given back to the next patch of the pom so that the
+ * settings no longer enforced get back their original value, or are removed if the patch added them.
+ */
+public class PomPatcher {
+
+    public static final String SUREFIRE_PLUGIN = "org.apache.maven.plugins:maven-surefire-plugin";
+    public static final String FAILSAFE_PLUGIN = "org.apache.maven.plugins:maven-failsafe-plugin";
+
+    private static final String DEFAULT_GROUP_ID = "org.apache.maven.plugins";
+    private static final String DEFAULT_INDENT = "    ";
+
+    private final List<String> pluginNames;
+    private final Map<String, String> configuration;
+    // Settings of the previous patch of the pom, by name
+    private final Map<String, Setting> previous;
+
+    public enum Mode {
+        /**
+         * Plugins of the main build, its plugin management and profiles get the agent if they are declared.
+         */
+        DECLARED,
+        /**
+         * Plugins of the main build and its plugin management get the agent and are added when missing, plugins of
+         * profiles only get the agent if they are already declared.
+         */
+        ADD_MISSING,
+        /**
+         * For the topmost pom of a reactor: the plugins get the agent in the plugin management of the main build,
+         * added when missing, so that the pom and every module inheriting from it pick it up. Elsewhere only the
+         * plugins setting their own {@code argLine} get the agent, the others inherit it.
+         */
+        MANAGED,
+        /**
+         * For the modules of a reactor: only the plugins setting their own {@code argLine} get the agent, the others
+         * inherit it from the plugin management of a parent.
+         */
+        OVERRIDES
+    }
+
+    /**
+     * @param pluginNames test plugins to patch, as {@code groupId:artifactId}
+     */
+    public PomPatcher(String... pluginNames) {
+        this(Collections.emptyMap(), pluginNames);
+    }
+
+    /**
+     * @param configuration elements to set in the configuration of the plugins besides the agent, by name
+     * @param pluginNames   test plugins to patch, as {@code groupId:artifactId}
+     */
+    public PomPatcher(Map<String, String> configuration, String... pluginNames) {
+        this(configuration, Collections.emptyList(), pluginNames);
+    }
+
+    /**
+     * @param configuration elements to set in the configuration of the plugins besides the agent, by name
+     * @param previous      settings of the previous patch of the pom, see {@link Result#getSettings()}, taken back
+     *                      where the configuration no longer sets them
+     * @param pluginNames   test plugins to patch, as {@code groupId:artifactId}
+     */
+    public PomPatcher(Map<String, String> configuration, Collection<Setting> previous, String... pluginNames) {
+        this.pluginNames = Collections.unmodifiableList(Arrays.asList(pluginNames));
+        this.configuration = Collections.unmodifiableMap(new LinkedHashMap<>(configuration));
+        Map<String, Setting> settings = new LinkedHashMap<>();
+        for (Setting setting : previous) {
+            settings.putIfAbsent(setting.getName(), setting);
+        }
+        this.previous = Collections.unmodifiableMap(settings);
+    }
+
+    /**
+     * Patches the pom file, which is only written when it changes.
+     */
+    public Result patch(File pom, String agentPath, boolean addIfMissing) throws IOException {
+        return patch(pom, agentPath, addIfMissing ? Mode.ADD_MISSING : Mode.DECLARED);
+    }
+
+    /**
+     * Patches the pom file, which is only written when it changes.
+     */
+    public Result patch(File pom, String agentPath, Mode mode) throws IOException {
+        Charset charset;
+        Scan scan;
+        try (PushbackInputStream in = new PushbackInputStream(Files.newInputStream(pom.toPath()),
+                XmlTokenizer.PROLOG_LENGTH)) {
+            charset = XmlTokenizer.detectEncoding(in);
+            // Characters are never more than bytes
+            scan = scan(reader(in, charset), pom.length(), agentPath, mode);
+        }
+        if (scan.edits.isEmpty()) {
+            return scan.result;
+        }
+        // Written next to the pom and moved over it, so that the pom is never left half written
+        Path tmp = pom.toPath().resolveSibling(pom.getName() + ".thundra.tmp");
+        try {
+            try (Reader in = reader(Files.newInputStream(pom.toPath()), charset);
+                 Writer out = new OutputStreamWriter(Files.newOutputStream(tmp), charset.newEncoder()
+                         .onMalformedInput(CodingErrorAction.REPORT)
+                         .onUnmappableCharacter(CodingErrorAction.REPORT))) {
+                apply(in, out, scan.edits);
+            }
+            Files.move(tmp, pom.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return scan.result;
+    }
+
+    /**
+     * Decodes strictly, a pom which is not in its declared encoding fails instead of being rewritten garbled. Not
+     * buffered, the tokenizer and the copy read large blocks.
+     */
+    private static Reader reader(InputStream in, Charset charset) {
+        return new InputStreamReader(in, charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT));
+    }
+
+    /**
+     * Returns the patched content of a pom.
+     */
+    public String patch(String pom, String agentPath, boolean addIfMissing) throws IOException {
+        return patch(pom, agentPath, addIfMissing ? Mode.ADD_MISSING : Mode.DECLARED);
+    }
+
+    /**
+     * Returns the patched content of a pom.
+     */
+    public String patch(String pom, String agentPath, Mode mode) throws IOException {
+        Scan scan = scan(new StringReader(pom), pom.length(), agentPath, mode);
+        if (scan.edits.isEmpty()) {
+            return pom;
+        }
+        StringWriter out = new StringWriter(pom.length() + 256);
+        apply(new StringReader(pom), out, scan.edits);
+        return out.toString();
+    }
+
+    private Scan scan(Reader in, long length, String agentPath, Mode mode) throws IOException {
+        Scanner scanner = new Scanner(new XmlTokenizer(in, length), agentPath, mode);
+        scanner.run();
+        // Insertions are decided when their enclosing element ends, the second pass needs them in document order
+        scanner.edits.sort(Comparator.comparingLong(edit -> edit.start));
+        return new Scan(scanner.edits, new Result(!scanner.edits.isEmpty(), scanner.instrumented,
+                new ArrayList<>(scanner.settings.values())));
+    }
+
+    private static void apply(Reader in, Writer out, List<Edit> edits) throws IOException {
+        // Edits are sorted by offset and never overlap
+        char[] buffer = new char[XmlTokenizer.BUFFER_SIZE];
+        long offset = 0;
+        for (Edit edit : edits) {
+            copy(in, out, buffer, edit.start - offset);
+            skip(in, edit.end - edit.start);
+            out.write(edit.replacement);
+            offset = edit.end;
+        }
+        copy(in, out, buffer, Long.MAX_VALUE);
+    }
+
+    private static void copy(Reader in, Writer out, char[] buffer, long count) throws IOException {
+        while (count > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read < 0) {
+                return;
+            }
+            out.write(buffer, 0, read);
+            count -= read;
+        }
+    }
+
+    private static void skip(Reader in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of document");
+            }
+            count -= skipped;
+        }
+    }
+
+    public static class Result {
+        private final boolean changed;
+        private final Set<String> instrumentedPlugins;
+        private final List<Setting> settings;
+
+        Result(boolean changed, Set<String> instrumentedPlugins, List<Setting> settings) {
+            this.changed = changed;
+            this.instrumentedPlugins = Collections.unmodifiableSet(instrumentedPlugins);
+            this.settings = Collections.unmodifiableList(settings);
+        }
+
+        public boolean isChanged() {
+            return changed;
+        }
+
+        /**
+         * Plugins which have the agent in at least one of their configurations of the pom after patching.
+         */
+        public Set<String> getInstrumentedPlugins() {
+            return instrumentedPlugins;
+        }
+
+        public boolean isInstrumented(String pluginName) {
+            return instrumentedPlugins.contains(pluginName);
+        }
+
+        /**
+         * Enforced configuration elements the pom has because of this patch or of the previous ones, first occurrence
+         * by name.
+         */
+        public List<Setting> getSettings() {
+            return settings;
+        }
+    }
+
+    /**
+     * A configuration element set by a patch, along with the value it had before.
+     */
+    public static final class Setting {
+        private final String name;
+        private final String value;
+        private final String original;
+
+        /**
+         * @param original value of the element before the patch, {@code null} if the patch added the element
+         */
+        public Setting(String name, String value, String original) {
+            this.name = name;
+            this.value = value;
+            this.original = original;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public String getOriginal() {
+            return original;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Setting)) {
+                return false;
+            }
+            Setting setting = (Setting) o;
+            return name.equals(setting.name) && value.equals(setting.value)
+                    && Objects.equals(original, setting.original);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, value, original);
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + value + (original == null ? " (added)" : " (was " + original + ")");
+        }
+    }
+
+    private static final class Scan {
+        private final List<Edit> edits;
+        private final Result result;
+
+        private Scan(List<Edit> edits, Result result) {
+            this.edits = edits;
+            this.result = result;
+        }
+    }
+
+    private static final class Edit {
+        private final long start;
+        private final long end;
+        private final String replacement;
+
+        private Edit(long start, long end, String replacement) {
+            this.start = start;
+            this.end = end;
+            this.replacement = replacement;
+        }
+    }
+
+    /**
+     * Position of an element in the document, enough to replace its content or to add children to it.
+     */
+    private static final class Element {
+        private final Element parent;
+        private final int depth;
+        private final String name;
+        private final long start;
+        private final long startTagEnd;
+        private final String startTag;
+        // Whitespace before the start tag on its line, null if the tag does not start its line
+        private final String indent;
+        private final boolean empty;
+        private long end;
+        private long endTagStart;
+        private boolean endTagOnOwnLine;
+        private StringBuilder text;
+
+        private Element(Element parent, String name, long start, long startTagEnd, String startTag, String indent,
+                        boolean empty) {
+            this.parent = parent;
+            this.depth = parent == null ? 1 : parent.depth + 1;
+            this.name = name;
+            this.start = start;
+            this.startTagEnd = startTagEnd;
+            this.startTag = startTag;
+            this.indent = indent;
+            this.empty = empty;
+        }
+    }
+
+    private static final class PluginElement {
+        private final Element element;
+        private String groupId;
+        private String artifactId;
+        private Element configuration;
+        private Element argLine;
+        // Elements of the configuration to enforce, first occurrence by name
+        private final Map<String, Element> settings = new LinkedHashMap<>();
+
+        private PluginElement(Element element) {
+            this.element = element;
+        }
+
+        private String key() {
+            return (groupId == null ? DEFAULT_GROUP_ID : groupId.trim()) + ":" + (artifactId == null ? "" : artifactId.trim());
+        }
+    }
+
+    private static final class BuildElement {
+        private final Element element;
+        private final boolean main;
+        private Element plugins;
+        private Element pluginManagement;
+        private Element managedPlugins;
+        private final List<PluginElement> buildPlugins = new ArrayList<>();
+        private final List<PluginElement> managedPluginList = new ArrayList<>();
+
+        private BuildElement(Element element, boolean main) {
+            this.element = element;
+            this.main = main;
+        }
+    }
+
+    /**
+     * Text fragment to insert, rendered relative to the indentation of the element it is added to.
+     */
+    private static final class Fragment {
+        private final String name;
+        private final String text;
+        private final List<Fragment> children = new ArrayList<>();
+
+        private Fragment(String name, String text) {
+            this.name = name;
+            this.text = text;
+        }
+
+        private Fragment add(Fragment child) {
+            children.add(child);
+            return this;
+        }
+
+        private void render(StringBuilder out, String indent, String unit, String newline) {
+            out.append('<').append(name).append('>');
+            if (children.isEmpty()) {
+                out.append(XmlTokenizer.escape(text)).append("</").append(name).append('>');
+                return;
+            }
+            String childIndent = indent == null ? null : indent + unit;
+            for (Fragment child : children) {
+                if (childIndent != null) {
+                    out.append(newline).append(childIndent);
+                }
+                child.render(out, childIndent, unit, newline);
+            }
+            if (indent != null) {
+                out.append(newline).append(indent);
+            }
+            out.append("</").append(name).append('>');
+        }
+    }
+
+    private final class Scanner {
+        private final XmlTokenizer tokenizer;
+        private final String agentPath;
+        private final Mode mode;
+        private final List<Edit> edits = new ArrayList<>();
+        private final Set<String> instrumented = new LinkedHashSet<>();
+        private final Map<String, Setting> settings = new LinkedHashMap<>();
+
+        private Element current;
+        private Element project;
+        private boolean mainBuildFound;
+        private BuildElement build;
+        private PluginElement plugin;
+        private String unit;
+
+        private Scanner(XmlTokenizer tokenizer, String agentPath, Mode mode) {
+            this.tokenizer = tokenizer;
+            this.agentPath = agentPath;
+            this.mode = mode;
+        }
+
+        private void run() throws IOException {
+            XmlTokenizer.Token token;
+            while ((token = tokenizer.next()) != XmlTokenizer.Token.EOF) {
+                switch (token) {
+                    case START_TAG:
+                        // The start tag is only kept for empty elements, which are rewritten as a whole to add children
+                        Element element = new Element(current, tokenizer.getName(), tokenizer.getStart(),
+                                tokenizer.getEnd(), tokenizer.isEmptyElement() ? tokenizer.getTag() : null,
+                                tokenizer.getIndent(), tokenizer.isEmptyElement());
+                        detectIndentUnit(element);
+                        current = element;
+                        started(element);
+                        if (element.empty) {
+                            element.endTagStart = element.end = tokenizer.getEnd();
+                            current = element.parent;
+                            ended(element);
+                        }
+                        break;
+                    case END_TAG:
+                        if (current == null) {
+                            throw new IOException("Unexpected end tag at offset " + tokenizer.getStart());
+                        }
+                        Element ended = current;
+                        current = ended.parent;
+                        ended.endTagStart = tokenizer.getStart();
+                        ended.end = tokenizer.getEnd();
+                        ended.endTagOnOwnLine = tokenizer.startsLine();
+                        ended(ended);
+                        break;
+                    case TEXT:
+                    case CDATA:
+                        if (current != null && isCaptured(current)) {
+                            if (current.text == null) {
+                                current.text = new StringBuilder();
+                            }
+                            current.text.append(tokenizer.getText(token));
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        private boolean isCaptured(Element element) {
+            return plugin != null && (element == plugin.argLine || plugin.settings.get(element.name) == element
+                    || (element.parent == plugin.element
+                    && ("groupId".equals(element.name) || "artifactId".equals(element.name))));
+        }
+
+        private void started(Element element) {
+            // Only the first levels of the document are matched by path, deeper elements are matched by parent
+            if (element.depth == 1 && "project".equals(element.name)) {
+                project = element;
+            } else if (element.depth == 2 && element.parent == project && "build".equals(element.name)) {
+                build = new BuildElement(element, true);
+                mainBuildFound = true;
+            } else if (element.depth == 4 && "build".equals(element.name) && "profile".equals(element.parent.name)
+                    && "profiles".equals(element.parent.parent.name) && element.parent.parent.parent == project) {
+                build = new BuildElement(element, false);
+            } else if (build != null && plugin == null) {
+                Element parent = element.parent;
+                if (parent == build.element && "plugins".equals(element.name)) {
+                    build.plugins = element;
+                } else if (parent == build.element && "pluginManagement".equals(element.name)) {
+                    build.pluginManagement = element;
+                } else if (parent == build.pluginManagement && build.pluginManagement != null && "plugins".equals(element.name)) {
+                    build.managedPlugins = element;
+                } else if ("plugin".equals(element.name) && parent != null
+                        && (parent == build.plugins || parent == build.managedPlugins)) {
+                    plugin = new PluginElement(element);
+                    (parent == build.plugins ? build.buildPlugins : build.managedPluginList).add(plugin);
+                }
+            } else if (plugin != null) {
+                Element parent = element.parent;
+                if (parent == plugin.element && "configuration".equals(element.name)) {
+                    plugin.configuration = element;
+                } else if (parent == plugin.configuration && plugin.configuration != null && "argLine".equals(element.name)) {
+                    plugin.argLine = element;
+                } else if (parent == plugin.configuration && plugin.configuration != null
+                        && (configuration.containsKey(element.name) || previous.containsKey(element.name))) {
+                    plugin.settings.putIfAbsent(element.name, element);
+                }
+            }
+        }
+
+        private void ended(Element element) {
+            if (plugin != null) {
+                if (element == plugin.element) {
+                    plugin = null;
+                } else if ("groupId".equals(element.name) && element.parent == plugin.element) {
+                    plugin.groupId = text(element);
+                } else if ("artifactId".equals(element.name) && element.parent == plugin.element) {
+                    plugin.artifactId = text(element);
+                }
+                return;
+            }
+            if (build != null && element == build.element) {
+                finishBuild(build);
+                build = null;
+            } else if (element == project && !mainBuildFound
+                    && (mode == Mode.ADD_MISSING || mode == Mode.MANAGED)) {
+                Fragment plugins = new Fragment("plugins", null);
+                for (String pluginName : pluginNames) {
+                    plugins.add(pluginFragment(pluginName));
+                    instrumented.add(pluginName);
+                }
+                addChildren(project, new Fragment("build", null).add(
+                        mode == Mode.MANAGED ? new Fragment("pluginManagement", null).add(plugins) : plugins));
+            }
+        }
+
+        private String text(Element element) {
+            return element.text == null ? "" : element.text.toString();
+        }
+
+        private void finishBuild(BuildElement build) {
+            boolean add = build.main && mode == Mode.ADD_MISSING;
+            boolean managed = build.main && mode == Mode.MANAGED;
+            boolean overridesOnly = mode == Mode.MANAGED || mode == Mode.OVERRIDES;
+            List<Fragment> missingPlugins = new ArrayList<>();
+            List<Fragment> missingManagedPlugins = new ArrayList<>();
+            for (String pluginName : pluginNames) {
+                if (!patchPlugins(build.buildPlugins, pluginName, overridesOnly) && add) {
+                    missingPlugins.add(pluginFragment(pluginName));
+                    instrumented.add(pluginName);
+                }
+                if (managed) {
+                    if (!patchPlugins(build.managedPluginList, pluginName, false)) {
+                        missingManagedPlugins.add(pluginFragment(pluginName));
+                        instrumented.add(pluginName);
+                    }
+                } else if (build.pluginManagement != null
+                        && !patchPlugins(build.managedPluginList, pluginName, overridesOnly) && add) {
+                    missingManagedPlugins.add(pluginFragment(pluginName));
+                    instrumented.add(pluginName);
+                }
+            }
+            addPlugins(build.plugins, build.element, missingPlugins);
+            if (build.pluginManagement == null && !missingManagedPlugins.isEmpty()) {
+                Fragment plugins = new Fragment("plugins", null);
+                missingManagedPlugins.forEach(plugins::add);
+                addChildren(build.element, new Fragment("pluginManagement", null).add(plugins));
+            } else {
+                addPlugins(build.managedPlugins, build.pluginManagement, missingManagedPlugins);
+            }
+        }
+
+        /**
+         * @param overridesOnly whether only the plugins setting their own argLine or enforced elements are patched,
+         *                      the others inheriting them from a plugin management
+         * @return whether the plugin is declared
+         */
+        private boolean patchPlugins(List<PluginElement> plugins, String pluginName, boolean overridesOnly) {
+            boolean found = false;
+            for (PluginElement candidate : plugins) {
+                if (pluginName.equals(candidate.key())) {
+                    found = true;
+                    if (overridesOnly && candidate.argLine == null && !hasEnforcedSettings(candidate)) {
+                        // Only settings of a previous patch to take back
+                        revertSettings(candidate);
+                        continue;
+                    }
+                    // An argLine added to a plugin which only overrides enforced elements would hide the inherited one
+                    patchPlugin(candidate, !overridesOnly || candidate.argLine != null);
+                    instrumented.add(pluginName);
+                }
+            }
+            return found;
+        }
+
+        private boolean hasEnforcedSettings(PluginElement plugin) {
+            for (String name : plugin.settings.keySet()) {
+                if (configuration.containsKey(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the setting of the previous patch an element still has, {@code null} if the element has another
+         * value, set in the pom since then.
+         */
+        private Setting previousSetting(Element element) {
+            Setting setting = previous.get(element.name);
+            return setting != null && setting.getValue().equals(text(element).trim()) ? setting : null;
+        }
+
+        /**
+         * Gives the elements set by the previous patch which are no longer enforced their original value back, or
+         * removes them.
+         */
+        private void revertSettings(PluginElement plugin) {
+            for (Element element : plugin.settings.values()) {
+                Setting setting = configuration.containsKey(element.name) ? null : previousSetting(element);
+                if (setting == null) {
+                    continue;
+                }
+                if (setting.getOriginal() != null) {
+                    replaceText(element, setting.getOriginal());
+                } else {
+                    remove(element);
+                }
+            }
+        }
+
+        /**
+         * @param addArgLine whether the agent is added to a plugin without argLine
+         */
+        private void patchPlugin(PluginElement plugin, boolean addArgLine) {
+            List<Fragment> missing = new ArrayList<>();
+            if (plugin.argLine != null) {
+                replaceText(plugin.argLine, ArgLineMerger.merge(text(plugin.argLine).trim(), agentPath));
+            } else if (addArgLine) {
+                missing.add(argLineFragment(null));
+            }
+            revertSettings(plugin);
+            for (Map.Entry<String, String> setting : configuration.entrySet()) {
+                Element element = plugin.settings.get(setting.getKey());
+                if (element == null) {
+                    missing.add(new Fragment(setting.getKey(), setting.getValue()));
+                    settings.putIfAbsent(setting.getKey(), new Setting(setting.getKey(), setting.getValue(), null));
+                    continue;
+                }
+                // An element set by the previous patch keeps the value it had before it
+                Setting previousSetting = previousSetting(element);
+                String original = previousSetting != null ? previousSetting.getOriginal() : text(element).trim();
+                if (previousSetting != null || !setting.getValue().equals(original)) {
+                    settings.putIfAbsent(setting.getKey(), new Setting(setting.getKey(), setting.getValue(), original));
+                }
+                replaceText(element, setting.getValue());
+            }
+            if (missing.isEmpty()) {
+                return;
+            }
+            if (plugin.configuration != null) {
+                addChildren(plugin.configuration, missing.toArray(new Fragment[0]));
+            } else {
+                Fragment fragment = new Fragment("configuration", null);
+                missing.forEach(fragment::add);
+                addChildren(plugin.element, fragment);
+            }
+        }
+
+        /**
+         * Replaces the text of an element, unless it already has the value.
+         */
+        private void replaceText(Element element, String value) {
+            if (value.equals(text(element).trim())) {
+                return;
+            }
+            if (element.empty) {
+                edits.add(new Edit(element.start, element.end,
+                        "<" + element.name + ">" + XmlTokenizer.escape(value) + "</" + element.name + ">"));
+            } else {
+                edits.add(new Edit(element.startTagEnd, element.endTagStart, XmlTokenizer.escape(value)));
+            }
+        }
+
+        /**
+         * Removes an element, along with the line it stands on when it is alone on it.
+         */
+        private void remove(Element element) {
+            String newline = tokenizer.getNewline() == null ? "\n" : tokenizer.getNewline();
+            long start = element.indent == null ? element.start
+                    : Math.max(0, element.start - element.indent.length() - newline.length());
+            edits.add(new Edit(start, element.end, ""));
+        }
+
+        private void addPlugins(Element plugins, Element parent, List<Fragment> missing) {
+            if (missing.isEmpty()) {
+                return;
+            }
+            if (plugins != null) {
+                addChildren(plugins, missing.toArray(new Fragment[0]));
+            } else {
+                Fragment fragment = new Fragment("plugins", null);
+                missing.forEach(fragment::add);
+                addChildren(parent, fragment);
+            }
+        }
+
+        private Fragment pluginFragment(String pluginName) {
+            String[] coordinates = pluginName.split(":");
+            Fragment fragment = new Fragment("configuration", null).add(argLineFragment(null));
+            for (Map.Entry<String, String> setting : configuration.entrySet()) {
+                fragment.add(new Fragment(setting.getKey(), setting.getValue()));
+                settings.putIfAbsent(setting.getKey(), new Setting(setting.getKey(), setting.getValue(), null));
+            }
+            return new Fragment("plugin", null)
+                    .add(new Fragment("groupId", coordinates[0]))
+                    .add(new Fragment("artifactId", coordinates[1]))
+                    .add(fragment);
+        }
+
+        private Fragment argLineFragment(String argLine) {
+            return new Fragment("argLine", ArgLineMerger.merge(argLine, agentPath));
+        }
+
+        /**
+         * Adds children at the end of an element, indented like the existing content when the element spans several
+         * lines and inline otherwise.
+         */
+        private void addChildren(Element parent, Fragment... children) {
+            String newline = tokenizer.getNewline() == null ? "\n" : tokenizer.getNewline();
+            String indentUnit = unit == null ? DEFAULT_INDENT : unit;
+            String indent = parent.indent;
+            String childIndent = indent == null ? null : indent + indentUnit;
+            StringBuilder text = new StringBuilder();
+            if (parent.empty) {
+                String startTag = parent.startTag.substring(0, parent.startTag.length() - 2);
+                text.append(startTag.replaceAll("\\s+$", "")).append('>');
+                for (Fragment child : children) {
+                    if (childIndent != null) {
+                        text.append(newline).append(childIndent);
+                    }
+                    child.render(text, childIndent, indentUnit, newline);
+                }
+                if (childIndent != null) {
+                    text.append(newline).append(indent);
+                }
+                text.append("</").append(parent.name).append('>');
+                edits.add(new Edit(parent.start, parent.end, text.toString()));
+                return;
+            }
+            boolean multiline = childIndent != null && parent.endTagOnOwnLine;
+            for (Fragment child : children) {
+                if (multiline) {
+                    text.append(indentUnit);
+                }
+                child.render(text, multiline ? childIndent : null, indentUnit, newline);
+                if (multiline) {
+                    text.append(newline).append(indent);
+                }
+            }
+            edits.add(new Edit(parent.endTagStart, parent.endTagStart, text.toString()));
+        }
+
+        private void detectIndentUnit(Element element) {
+            if (unit != null || element.indent == null) {
+                return;
+            }
+            Element parent = element.parent;
+            if (parent != null && parent.indent != null && element.indent.length() > parent.indent.length()
+                    && element.indent.startsWith(parent.indent)) {
+                unit = element.indent.substring(parent.indent.length());
+            }
+        }
+    }
+}
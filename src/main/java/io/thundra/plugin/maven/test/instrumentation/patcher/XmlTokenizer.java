@@ -0,0 +1,479 @@
+package io.thundra.plugin.maven.test.instrumentation.patcher;
+
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal pull tokenizer over a character stream which reports the exact character offsets of every tag, so that a
+ * document can be copied unchanged outside of the patched regions. Only what a pom.xml may contain is supported:
+ * elements, attributes, text, entities, comments, CDATA sections, processing instructions and a document type.
+ * <p>
+ * The document is read through a buffer which only holds the current token and the indentation before it, so memory
+ * use depends on the largest token rather than on the size of the pom. Strings are only created for what the caller
+ * asks for, and element names and indentations, which repeat all over a pom, are shared.
+ */
+class XmlTokenizer {
+
+    enum Token {
+        START_TAG, END_TAG, TEXT, CDATA, OTHER, EOF
+    }
+
+    static final int BUFFER_SIZE = 8192;
+    /**
+     * Bytes read from the start of a document to find its encoding.
+     */
+    static final int PROLOG_LENGTH = 256;
+    private static final int CACHE_SIZE = 64;
+    private static final Pattern ENCODING = Pattern.compile(
+            "^<\\?xml\\s[^>]*?encoding\\s*=\\s*[\"']([A-Za-z][A-Za-z0-9._-]*)[\"']");
+
+    private final Reader in;
+    private char[] buffer;
+    // Offset in the document of the first character of the buffer
+    private long bufferOffset;
+    private int position;
+    private int limit;
+    // First character of the buffer still needed by the current token
+    private long keep;
+    private boolean eof;
+    private final String[] names = new String[CACHE_SIZE];
+    private final String[] indents = new String[CACHE_SIZE];
+    private String newline;
+    private boolean lastCr;
+
+    private long tokenStart;
+    private long tokenEnd;
+    private long contentStart;
+    private long contentEnd;
+    private long indentStart;
+    private String name;
+    private boolean emptyElement;
+
+    /**
+     * @param length length of the document if known, to not allocate more than needed for small ones, -1 otherwise
+     */
+    XmlTokenizer(Reader in, long length) {
+        this.in = in;
+        this.buffer = new char[(int) Math.max(16, length < 0 ? BUFFER_SIZE : Math.min(BUFFER_SIZE, length + 1))];
+    }
+
+    Token next() throws IOException {
+        tokenStart = offset();
+        indentStart = indentStart();
+        keep = indentStart >= 0 ? indentStart : tokenStart;
+        if (!available()) {
+            return Token.EOF;
+        }
+        if (buffer[position] != '<') {
+            contentStart = tokenStart;
+            while (true) {
+                while (position < limit && buffer[position] != '<') {
+                    position++;
+                }
+                if (position < limit || !fill()) {
+                    break;
+                }
+            }
+            contentEnd = tokenEnd = offset();
+            return Token.TEXT;
+        }
+        position++;
+        int c = available() ? buffer[position] : -1;
+        if (c == '/') {
+            position++;
+            skipPast(">");
+            tokenEnd = offset();
+            name = name(tokenStart + 2);
+            return Token.END_TAG;
+        }
+        if (c == '?') {
+            position++;
+            skipPast("?>");
+            tokenEnd = offset();
+            return Token.OTHER;
+        }
+        if (c == '!') {
+            position++;
+            if (startsWith("--")) {
+                position += 2;
+                skipPast("-->");
+            } else if (startsWith("[CDATA[")) {
+                position += 7;
+                contentStart = offset();
+                skipPast("]]>");
+                contentEnd = offset() - 3;
+                tokenEnd = offset();
+                return Token.CDATA;
+            } else {
+                skipDeclaration();
+            }
+            tokenEnd = offset();
+            return Token.OTHER;
+        }
+        char quote = 0;
+        while (true) {
+            if (!available()) {
+                throw new IOException("Unexpected end of document in tag at offset " + tokenStart);
+            }
+            char d = buffer[position++];
+            if (quote != 0) {
+                if (d == quote) {
+                    quote = 0;
+                }
+            } else if (d == '"' || d == '\'') {
+                quote = d;
+            } else if (d == '>') {
+                break;
+            }
+        }
+        emptyElement = buffer[position - 2] == '/';
+        tokenEnd = offset();
+        name = name(tokenStart + 1);
+        return Token.START_TAG;
+    }
+
+    /**
+     * Offset of the first character of the current token.
+     */
+    long getStart() {
+        return tokenStart;
+    }
+
+    /**
+     * Offset right after the last character of the current token.
+     */
+    long getEnd() {
+        return tokenEnd;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isEmptyElement() {
+        return emptyElement;
+    }
+
+    /**
+     * Raw text of the current tag.
+     */
+    String getTag() {
+        return substring(tokenStart, tokenEnd);
+    }
+
+    /**
+     * Content of the current text or CDATA token, with entities resolved for text.
+     */
+    String getText(Token token) {
+        String text = substring(contentStart, contentEnd);
+        return token == Token.CDATA ? text : unescape(text);
+    }
+
+    /**
+     * Whitespace preceding the current token on its line, {@code null} if the token does not start its line.
+     */
+    String getIndent() {
+        if (indentStart < 0) {
+            return null;
+        }
+        return shared(index(indentStart), index(tokenStart), indents);
+    }
+
+    /**
+     * Whether only whitespace precedes the current token on its line.
+     */
+    boolean startsLine() {
+        return indentStart >= 0;
+    }
+
+    /**
+     * Line separator used by the document, {@code null} if none has been read so far.
+     */
+    String getNewline() {
+        return newline;
+    }
+
+    private long offset() {
+        return bufferOffset + position;
+    }
+
+    private int index(long offset) {
+        return (int) (offset - bufferOffset);
+    }
+
+    private String substring(long start, long end) {
+        return new String(buffer, index(start), (int) (end - start));
+    }
+
+    /**
+     * Whether a character is available at the current position, reading more of the document if needed.
+     */
+    private boolean available() throws IOException {
+        return position < limit || fill();
+    }
+
+    /**
+     * Reads more of the document, dropping what the current token does not need and growing the buffer only when the
+     * token does not fit in it.
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        int drop = index(keep);
+        if (drop > 0) {
+            System.arraycopy(buffer, drop, buffer, 0, limit - drop);
+            limit -= drop;
+            position -= drop;
+            bufferOffset += drop;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int read;
+        do {
+            read = in.read(buffer, limit, buffer.length - limit);
+        } while (read == 0);
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        if (newline == null) {
+            detectNewline(limit, limit + read);
+        }
+        limit += read;
+        return true;
+    }
+
+    private void detectNewline(int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = buffer[i];
+            if (c == '\n') {
+                newline = lastCr ? "\r\n" : "\n";
+                return;
+            }
+            lastCr = c == '\r';
+        }
+    }
+
+    /**
+     * Offset of the whitespace preceding the current position on its line, -1 if there is anything else before it.
+     * <p>
+     * The characters before a token are still in the buffer: they belong to the previous token, or are the end of a
+     * tag before a text token, in which case the whitespace does not start a line anyway.
+     */
+    private long indentStart() {
+        int i = position;
+        while (i > 0 && (buffer[i - 1] == ' ' || buffer[i - 1] == '\t')) {
+            i--;
+        }
+        if (i == 0) {
+            return bufferOffset == 0 ? 0 : -1;
+        }
+        return buffer[i - 1] == '\n' || buffer[i - 1] == '\r' ? bufferOffset + i : -1;
+    }
+
+    private boolean startsWith(String prefix) throws IOException {
+        while (limit - position < prefix.length()) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer[position + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves past the next occurrence of the terminator.
+     */
+    private void skipPast(String terminator) throws IOException {
+        long from = offset();
+        char last = terminator.charAt(terminator.length() - 1);
+        while (available()) {
+            char c = buffer[position++];
+            if (c == last && offset() - from >= terminator.length() && endsWith(terminator)) {
+                return;
+            }
+        }
+        throw new IOException("Unexpected end of document, expected " + terminator);
+    }
+
+    private boolean endsWith(String suffix) {
+        int start = position - suffix.length();
+        for (int i = 0; i < suffix.length(); i++) {
+            if (buffer[start + i] != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipDeclaration() throws IOException {
+        int depth = 0;
+        while (available()) {
+            char c = buffer[position++];
+            if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                depth--;
+            } else if (c == '>' && depth <= 0) {
+                return;
+            }
+        }
+        throw new IOException("Unexpected end of document in declaration");
+    }
+
+    /**
+     * Local name of the current tag, whose name starts at the given offset.
+     */
+    private String name(long start) {
+        int end = index(start);
+        int tagEnd = index(tokenEnd);
+        int localStart = end;
+        while (end < tagEnd) {
+            char c = buffer[end];
+            if (c == '>' || c == '/' || Character.isWhitespace(c)) {
+                break;
+            }
+            if (c == ':') {
+                localStart = end + 1;
+            }
+            end++;
+        }
+        return shared(localStart, end, names);
+    }
+
+    private String shared(int start, int end, String[] cache) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        int slot = hash & (CACHE_SIZE - 1);
+        String cached = cache[slot];
+        if (cached != null && cached.length() == end - start) {
+            boolean equal = true;
+            for (int i = 0; i < cached.length() && equal; i++) {
+                equal = cached.charAt(i) == buffer[start + i];
+            }
+            if (equal) {
+                return cached;
+            }
+        }
+        String result = new String(buffer, start, end - start);
+        cache[slot] = result;
+        return result;
+    }
+
+    /**
+     * Encoding of a document given by its byte order mark or its XML declaration, UTF-8 when it has neither. The bytes
+     * read to find it are pushed back.
+     *
+     * @throws IOException if the declared encoding is not supported
+     */
+    static Charset detectEncoding(PushbackInputStream in) throws IOException {
+        byte[] head = new byte[PROLOG_LENGTH];
+        int length = 0;
+        int read;
+        while (length < head.length && (read = in.read(head, length, head.length - length)) > 0) {
+            length += read;
+        }
+        in.unread(head, 0, length);
+        int first = length > 0 ? head[0] & 0xFF : -1;
+        int second = length > 1 ? head[1] & 0xFF : -1;
+        if (first == 0xEF && second == 0xBB && length > 2 && (head[2] & 0xFF) == 0xBF) {
+            return StandardCharsets.UTF_8;
+        }
+        // With or without a byte order mark, which the UTF-16BE and LE decoders keep as a character
+        if (first == 0xFE && second == 0xFF || first == 0 && second == '<') {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (first == 0xFF && second == 0xFE || first == '<' && second == 0) {
+            return StandardCharsets.UTF_16LE;
+        }
+        Matcher matcher = ENCODING.matcher(new String(head, 0, length, StandardCharsets.ISO_8859_1));
+        if (!matcher.find()) {
+            return StandardCharsets.UTF_8;
+        }
+        try {
+            return Charset.forName(matcher.group(1));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unsupported encoding " + matcher.group(1), e);
+        }
+    }
+
+    static String unescape(String value) {
+        if (value.indexOf('&') < 0) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int end;
+            if (c != '&' || (end = value.indexOf(';', i)) < 0) {
+                result.append(c);
+                continue;
+            }
+            String entity = value.substring(i + 1, end);
+            switch (entity) {
+                case "amp":
+                    result.append('&');
+                    break;
+                case "lt":
+                    result.append('<');
+                    break;
+                case "gt":
+                    result.append('>');
+                    break;
+                case "quot":
+                    result.append('"');
+                    break;
+                case "apos":
+                    result.append('\'');
+                    break;
+                default:
+                    try {
+                        if (entity.startsWith("#x")) {
+                            result.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+                        } else if (entity.startsWith("#")) {
+                            result.appendCodePoint(Integer.parseInt(entity.substring(1)));
+                        } else {
+                            result.append('&').append(entity).append(';');
+                        }
+                    } catch (IllegalArgumentException e) {
+                        result.append('&').append(entity).append(';');
+                    }
+            }
+            i = end;
+        }
+        return result.toString();
+    }
+
+    static String escape(String value) {
+        StringBuilder result = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement = c == '&' ? "&amp;" : c == '<' ? "&lt;" : c == '>' ? "&gt;" : null;
+            if (replacement != null && result == null) {
+                result = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            if (result != null) {
+                if (replacement != null) {
+                    result.append(replacement);
+                } else {
+                    result.append(c);
+                }
+            }
+        }
+        return result == null ? value : result.toString();
+    }
+}
@@ -0,0 +1,158 @@
+package io.thundra.foresight;
+
+import hudson.FilePath;
+import io.thundra.foresight.exceptions.AgentNotFoundException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link AgentCache} against a {@code file:} repository.
+ */
+public class AgentCacheTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File repository;
+    private File root;
+    private AgentDownloader downloader;
+
+    @Before
+    public void setUp() throws IOException {
+        repository = folder.newFolder("repository");
+        root = folder.newFolder("cache");
+        downloader = new AgentDownloader(new RepositoryClient(1000, 1000, 8), 1, 1, 1, Long.MAX_VALUE);
+    }
+
+    private AgentCache cache(long maxSize) {
+        String url = repository.toURI().toString();
+        return new AgentCache(root, url.substring(0, url.length() - 1), maxSize, downloader);
+    }
+
+    /**
+     * Publishes an agent jar of the given version, with the checksum of {@code checksummed}.
+     */
+    private byte[] publish(String version, byte[] checksummed) throws IOException {
+        byte[] content = new byte[10_000];
+        new Random(version.hashCode()).nextBytes(content);
+        File jar = new File(repository, String.format(ThundraUtils.THUNDRA_AGENT_ARTIFACT_PATH, version, version));
+        FileUtils.writeByteArrayToFile(jar, content);
+        String sha256 = sha256(checksummed == null ? content : checksummed);
+        FileUtils.writeStringToFile(new File(jar.getPath() + ".sha256"), sha256, StandardCharsets.US_ASCII);
+        return content;
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] publish(String version) throws IOException {
+        return publish(version, null);
+    }
+
+    @Test
+    public void downloadsOnceThenHits() throws Exception {
+        byte[] content = publish("1.0");
+        AgentCache cache = cache(AgentCache.DEFAULT_MAX_SIZE);
+        ForesightStepStats stats = new ForesightStepStats("test");
+
+        FilePath first = cache.copyTo("1.0", new FilePath(new File(folder.getRoot(), "a/agent.jar")), null, stats);
+        FilePath second = cache.copyTo("1.0", new FilePath(new File(folder.getRoot(), "b/agent.jar")), null, stats);
+
+        assertArrayEquals(content, Files.readAllBytes(new File(first.getRemote()).toPath()));
+        assertArrayEquals(content, Files.readAllBytes(new File(second.getRemote()).toPath()));
+        assertEquals(1, stats.getCacheMisses());
+        assertEquals(1, stats.getCacheHits());
+        assertEquals(sha256(content), cache.getSha256("1.0", null, null));
+    }
+
+    @Test
+    public void rejectsAChecksumMismatch() throws Exception {
+        publish("1.0", new byte[1]);
+        AgentCache cache = cache(AgentCache.DEFAULT_MAX_SIZE);
+        try (AgentCache.Lease ignored = cache.lease("1.0", null, null)) {
+            fail("Expected the checksum to mismatch");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Checksum mismatch"));
+        }
+        assertFalse(new File(root, "1.0/" + String.format(ThundraUtils.THUNDRA_AGENT_JAR_NAME, "1.0")).exists());
+    }
+
+    @Test
+    public void workspaceCopiesDoNotShareTheCachedJar() throws Exception {
+        byte[] content = publish("1.0");
+        AgentCache cache = cache(AgentCache.DEFAULT_MAX_SIZE);
+        File target = new File(folder.getRoot(), "workspace/agent.jar");
+
+        cache.copyTo("1.0", new FilePath(target), null, null);
+        Files.write(target.toPath(), new byte[]{1, 2, 3});
+
+        try (AgentCache.Lease lease = cache.lease("1.0", null, null)) {
+            assertArrayEquals(content, Files.readAllBytes(lease.getJar().toPath()));
+        }
+    }
+
+    @Test
+    public void keepsLeasedVersionsUntilClosed() throws Exception {
+        publish("1.0");
+        publish("2.0");
+        publish("3.0");
+        // Room for a single version
+        AgentCache cache = cache(15_000);
+
+        AgentCache.Lease first = cache.lease("1.0", null, null);
+        try (AgentCache.Lease second = cache.lease("2.0", null, null)) {
+            assertTrue(first.getJar().isFile());
+            assertTrue(second.getJar().isFile());
+        } finally {
+            first.close();
+        }
+        // Closing twice is harmless
+        first.close();
+
+        try (AgentCache.Lease third = cache.lease("3.0", null, null)) {
+            assertTrue(third.getJar().isFile());
+            assertFalse(new File(root, "1.0").exists());
+            assertFalse(new File(root, "2.0").exists());
+        }
+    }
+
+    @Test(expected = AgentNotFoundException.class)
+    public void reportsMissingVersions() throws Exception {
+        cache(AgentCache.DEFAULT_MAX_SIZE).lease("9.9", null, null).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidVersions() throws Exception {
+        cache(AgentCache.DEFAULT_MAX_SIZE).lease("../1.0", null, null).close();
+    }
+}
@@ -0,0 +1,245 @@
+package io.thundra.foresight;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link AgentDownloader} against a local HTTP server whose responses fail as scripted.
+ */
+public class AgentDownloaderTest {
+
+    private static final int READ_TIMEOUT = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = new byte[200_000];
+    // Behaviors of the next GET requests, the following ones are served normally
+    private final ConcurrentLinkedQueue<Behavior> script = new ConcurrentLinkedQueue<>();
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch stalled = new CountDownLatch(1);
+    // Whether GET requests get the whole file whatever their range, as from some proxies
+    private volatile boolean ignoreRanges;
+    private ExecutorService executor;
+    private HttpServer server;
+    private String url;
+
+    private interface Behavior {
+        void serve(HttpExchange exchange, long from, long to) throws IOException, InterruptedException;
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        new Random(42).nextBytes(content);
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/agent.jar", this::handle);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/agent.jar";
+    }
+
+    @After
+    public void stopServer() {
+        stalled.countDown();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            ranges.add(String.valueOf(range));
+            long from = 0;
+            long to = content.length - 1;
+            if (range != null && !ignoreRanges) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                from = Long.parseLong(bounds[0]);
+                to = bounds[1].isEmpty() ? to : Long.parseLong(bounds[1]);
+            }
+            Behavior behavior = script.poll();
+            if (behavior == null) {
+                send(exchange, from, to, to + 1);
+            } else {
+                behavior.serve(exchange, from, to);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Sends the headers of the range, but only its bytes before {@code stop}.
+     */
+    private void send(HttpExchange exchange, long from, long to, long stop) throws IOException {
+        boolean partial = from > 0 || to < content.length - 1;
+        if (partial) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+        }
+        exchange.sendResponseHeaders(partial ? 206 : 200, to - from + 1);
+        OutputStream out = exchange.getResponseBody();
+        out.write(content, (int) from, (int) (Math.min(stop, to + 1) - from));
+        out.flush();
+    }
+
+    private Behavior stallAfter(long bytes) {
+        return (exchange, from, to) -> {
+            send(exchange, from, to, from + bytes);
+            stalled.await(10, TimeUnit.SECONDS);
+        };
+    }
+
+    private Behavior status(int status) {
+        return (exchange, from, to) -> exchange.sendResponseHeaders(status, -1);
+    }
+
+    private AgentDownloader downloader(int maxAttempts, int parallelism) {
+        RepositoryClient client = new RepositoryClient(READ_TIMEOUT, READ_TIMEOUT, 8);
+        return new AgentDownloader(client, maxAttempts, 1, parallelism, 1);
+    }
+
+    private File target() {
+        return new File(folder.getRoot(), "agent.jar");
+    }
+
+    @Test
+    public void downloadsInOneRequest() throws Exception {
+        AgentDownloader.Stats stats = downloader(3, 1).download(url, target());
+
+        assertArrayEquals(content, Files.readAllBytes(target().toPath()));
+        assertEquals(1, stats.getAttempts());
+        assertEquals(content.length, stats.getBytes());
+    }
+
+    @Test
+    public void resumesAfterTheBytesWrittenBeforeATimeout() throws Exception {
+        script.add(stallAfter(50_000));
+
+        AgentDownloader.Stats stats = downloader(3, 1).download(url, target());
+
+        assertArrayEquals(content, Files.readAllBytes(target().toPath()));
+        assertEquals(2, stats.getAttempts());
+        assertEquals("[null, bytes=50000-]", ranges.toString());
+    }
+
+    @Test
+    public void resumesEveryFailedAttemptWhereTheLastOneStopped() throws Exception {
+        script.add(stallAfter(30_000));
+        script.add(stallAfter(40_000));
+
+        downloader(3, 1).download(url, target());
+
+        assertArrayEquals(content, Files.readAllBytes(target().toPath()));
+        assertEquals("[null, bytes=30000-, bytes=70000-]", ranges.toString());
+    }
+
+    @Test
+    public void retriesServerErrors() throws Exception {
+        script.add(status(503));
+        script.add(status(500));
+
+        AgentDownloader.Stats stats = downloader(3, 1).download(url, target());
+
+        assertArrayEquals(content, Files.readAllBytes(target().toPath()));
+        assertEquals(3, stats.getAttempts());
+    }
+
+    @Test
+    public void givesUpAfterTheLastAttempt() throws Exception {
+        script.add(status(503));
+        script.add(status(503));
+        try {
+            downloader(2, 1).download(url, target());
+            fail("Expected the download to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("503"));
+        }
+        assertEquals(2, ranges.size());
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws Exception {
+        script.add(status(403));
+        try {
+            downloader(3, 1).download(url, target());
+            fail("Expected the download to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("403"));
+        }
+        assertEquals(1, ranges.size());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void reportsMissingFiles() throws Exception {
+        script.add(status(404));
+        downloader(3, 1).download(url, target());
+    }
+
+    @Test
+    public void downloadsParallelRanges() throws Exception {
+        AgentDownloader.Stats stats = downloader(3, 4).download(url, target());
+
+        assertArrayEquals(content, Files.readAllBytes(target().toPath()));
+        assertEquals(4, stats.getRanges());
+        assertEquals(4, ranges.size());
+    }
+
+    @Test
+    public void resumesAFailedRangeOnItsOwn() throws Exception {
+        script.add(stallAfter(10_000));
+
+        AgentDownloader.Stats stats = downloader(3, 4).download(url, target());
+
+        assertArrayEquals(content, Files.readAllBytes(target().toPath()));
+        // The probe, four ranges and the retry of the stalled one
+        assertEquals(6, stats.getAttempts());
+    }
+
+    @Test
+    public void fallsBackToASingleRequestWhenRangesAreIgnored() throws Exception {
+        ignoreRanges = true;
+
+        AgentDownloader.Stats stats = downloader(3, 4).download(url, target());
+
+        assertArrayEquals(content, Files.readAllBytes(target().toPath()));
+        assertEquals(1, stats.getRanges());
+        // Ranges are not retried: at most one request per range, then the whole file
+        assertTrue(ranges.toString(), ranges.size() <= 5);
+        // Ranges still in flight may be recorded after the whole file is requested
+        assertEquals(ranges.toString(), 1, Collections.frequency(ranges, "null"));
+    }
+}
@@ -0,0 +1,148 @@
+package io.thundra.foresight;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs more and more concurrent steps through {@link ForesightThrottle}, each downloading an agent with
+ * {@link RepositoryClient} from a local HTTP server with few worker threads, and records the throughput of the steps
+ * at each level of concurrency.
+ */
+public class ForesightThrottleStressTest {
+
+    private static final PrintStream LOG = new PrintStream(NullOutputStream.NULL_OUTPUT_STREAM);
+    private static final int LIMIT = 8;
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;
+    private static final int STEPS = 256;
+    private static final int NODES = 4;
+    // Work of an admitted step besides the download, instrumenting the poms for instance
+    private static final long WORK_MILLIS = 5;
+
+    private final byte[] agent = new byte[256 * 1024];
+    private ExecutorService serverExecutor;
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void startServer() throws IOException {
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(serverExecutor);
+        server.createContext("/agent.jar", this::handle);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/agent.jar";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            exchange.sendResponseHeaders(200, agent.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(agent);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Runs {@value #STEPS} steps with {@code concurrency} of them started at once.
+     *
+     * @return the steps run per second
+     */
+    private double run(ForesightThrottle throttle, RepositoryClient client, int concurrency) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        AtomicInteger remaining = new AtomicInteger(STEPS);
+        AtomicInteger failed = new AtomicInteger();
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> steps = new ArrayList<>(concurrency);
+            for (int t = 0; t < concurrency; t++) {
+                String node = "node-" + t % NODES;
+                steps.add(executor.submit(() -> {
+                    while (remaining.getAndDecrement() > 0) {
+                        try (ForesightThrottle.Permit ignored = throttle.acquire(node, LOG)) {
+                            if (download(client) != agent.length) {
+                                failed.incrementAndGet();
+                            }
+                            Thread.sleep(WORK_MILLIS);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> step : steps) {
+                step.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            assertEquals("Failed downloads", 0, failed.get());
+            return STEPS / seconds;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long download(RepositoryClient client) throws IOException {
+        try (RepositoryClient.Exchange exchange = client.open(url)) {
+            if (exchange.getStatus() != 200) {
+                return -1;
+            }
+            try (InputStream in = exchange.getInputStream()) {
+                return IOUtils.copyLarge(in, NullOutputStream.NULL_OUTPUT_STREAM);
+            }
+        }
+    }
+
+    @Test(timeout = 300_000)
+    public void keepsTheThroughputAsConcurrencyRises() throws Exception {
+        ForesightThrottle throttle = new ForesightThrottle(() -> LIMIT);
+        RepositoryClient client = new RepositoryClient(10_000, 10_000, MAX_CONNECTIONS_PER_HOST);
+        // Warms the server, the client and the throttle up
+        run(throttle, client, LIMIT);
+
+        int[] levels = {LIMIT, 32, 128};
+        double[] throughputs = new double[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            throughputs[i] = run(throttle, client, levels[i]);
+            System.out.printf("%d concurrent steps: %.0f steps/s, %d admitted and %d connections at most%n",
+                    levels[i], throughputs[i], throttle.getPeakActive(), client.getPeakActive());
+        }
+
+        assertEquals(LIMIT, throttle.getPeakActive());
+        assertTrue("Peak of " + client.getPeakActive() + " connections",
+                client.getPeakActive() <= MAX_CONNECTIONS_PER_HOST);
+        assertEquals(0, throttle.getActive());
+        assertEquals(0, throttle.getQueued());
+        assertEquals(0, client.getActive());
+        // Queued steps cost nothing to the admitted ones, generous bounds keep slow machines green
+        for (int i = 1; i < levels.length; i++) {
+            assertTrue(String.format("%.0f steps/s with %d concurrent steps, %.0f with %d", throughputs[i], levels[i],
+                    throughputs[0], levels[0]), throughputs[i] >= throughputs[0] / 3);
+        }
+    }
+}
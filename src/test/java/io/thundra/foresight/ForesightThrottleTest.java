@@ -0,0 +1,195 @@
+package io.thundra.foresight;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link ForesightThrottle} under contention, with steps of several nodes acquiring, releasing and being
+ * interrupted concurrently.
+ */
+public class ForesightThrottleTest {
+
+    private static final PrintStream LOG = new PrintStream(NullOutputStream.NULL_OUTPUT_STREAM);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 60_000)
+    public void neverAdmitsMoreStepsThanTheLimit() throws Exception {
+        int limit = 3;
+        int threads = 32;
+        int rounds = 200;
+        ForesightThrottle throttle = new ForesightThrottle(() -> limit);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        List<Future<?>> steps = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String node = "node-" + t % 4;
+            Random random = new Random(t);
+            steps.add(executor.submit(() -> {
+                for (int i = 0; i < rounds; i++) {
+                    try (ForesightThrottle.Permit ignored = throttle.acquire(node, LOG)) {
+                        peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        if (random.nextInt(4) == 0) {
+                            Thread.sleep(0, 100_000);
+                        }
+                        running.decrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> step : steps) {
+            step.get();
+        }
+
+        assertTrue("Peak of " + peak.get(), peak.get() <= limit);
+        assertEquals(limit, throttle.getPeakActive());
+        assertEquals(threads * rounds, throttle.getAdmitted());
+        assertEquals(0, throttle.getActive());
+        assertEquals(0, throttle.getQueued());
+    }
+
+    @Test(timeout = 60_000)
+    public void interruptedStepsLeaveNoPermitBehind() throws Exception {
+        int limit = 2;
+        ForesightThrottle throttle = new ForesightThrottle(() -> limit);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        List<Thread> workers = new CopyOnWriteArrayList<>();
+        List<Future<?>> steps = new ArrayList<>();
+        for (int t = 0; t < 24; t++) {
+            String node = "node-" + t % 3;
+            steps.add(executor.submit(() -> {
+                workers.add(Thread.currentThread());
+                for (int i = 0; i < 100; i++) {
+                    try (ForesightThrottle.Permit ignored = throttle.acquire(node, LOG)) {
+                        peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        try {
+                            Thread.sleep(0, 200_000);
+                        } finally {
+                            running.decrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        // Either while waiting or while admitted, the step goes on with the next round
+                    }
+                }
+                return null;
+            }));
+        }
+        Random random = new Random(42);
+        for (Future<?> step : steps) {
+            while (!step.isDone()) {
+                if (!workers.isEmpty()) {
+                    workers.get(random.nextInt(workers.size())).interrupt();
+                }
+                Thread.sleep(1);
+            }
+            step.get();
+        }
+
+        assertTrue("Peak of " + peak.get(), peak.get() <= limit);
+        assertEquals(0, throttle.getActive());
+        assertEquals(0, throttle.getQueued());
+        // Every admitted step released its permit: the throttle still admits up to the limit
+        try (ForesightThrottle.Permit first = throttle.acquire("node-0", LOG);
+             ForesightThrottle.Permit second = throttle.acquire("node-1", LOG)) {
+            assertEquals(2, throttle.getActive());
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void interruptingAWaitingStepGivesUpItsTurn() throws Exception {
+        ForesightThrottle throttle = new ForesightThrottle(() -> 1);
+        ForesightThrottle.Permit held = throttle.acquire("a", LOG);
+        Future<?> waiting = executor.submit(() -> throttle.acquire("b", LOG));
+        awaitQueued(throttle, 1);
+
+        waiting.cancel(true);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (throttle.getQueued() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, throttle.getQueued());
+        held.close();
+
+        assertEquals(0, throttle.getActive());
+        try (ForesightThrottle.Permit ignored = throttle.acquire("c", LOG)) {
+            assertEquals(1, throttle.getActive());
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void nodesTakeTurnsAndStepsOfANodeKeepTheirOrder() throws Exception {
+        ForesightThrottle throttle = new ForesightThrottle(() -> 1);
+        List<String> admissions = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> steps = new ArrayList<>();
+        try (ForesightThrottle.Permit ignored = throttle.acquire("a", LOG)) {
+            for (String step : new String[]{"a1", "a2", "a3", "b1", "c1", "b2"}) {
+                steps.add(executor.submit(() -> {
+                    try (ForesightThrottle.Permit permit = throttle.acquire(step.substring(0, 1), LOG)) {
+                        admissions.add(step);
+                    }
+                    return null;
+                }));
+                awaitQueued(throttle, steps.size());
+            }
+        }
+        for (Future<?> step : steps) {
+            step.get();
+        }
+
+        assertEquals("[a1, b1, c1, a2, b2, a3]", admissions.toString());
+        assertEquals(6, throttle.getWaits());
+    }
+
+    @Test(timeout = 60_000)
+    public void raisingTheLimitAdmitsWaitingSteps() throws Exception {
+        AtomicInteger limit = new AtomicInteger(1);
+        ForesightThrottle throttle = new ForesightThrottle(limit::get);
+        try (ForesightThrottle.Permit ignored = throttle.acquire("a", LOG)) {
+            Future<?> waiting = executor.submit(() -> {
+                throttle.acquire("b", LOG).close();
+                return null;
+            });
+            awaitQueued(throttle, 1);
+
+            limit.set(2);
+            throttle.limitChanged();
+
+            waiting.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(0, throttle.getActive());
+    }
+
+    private static void awaitQueued(ForesightThrottle throttle, int queued) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (throttle.getQueued() < queued) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Expected " + queued + " waiting steps but got " + throttle.getQueued());
+            }
+            Thread.sleep(1);
+        }
+    }
+}
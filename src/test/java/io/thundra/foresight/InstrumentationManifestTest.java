@@ -0,0 +1,91 @@
+package io.thundra.foresight;
+
+import io.thundra.plugin.maven.test.instrumentation.patcher.PomPatcher;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks which poms {@link InstrumentationManifest} lets the instrumentation skip.
+ */
+public class InstrumentationManifestTest {
+
+    private static final String CONFIGURATION = "/tools/thundra-agent-bootstrap-2.7.0.jar -Dthundra.apiKey=key";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File save(PomPatcher.Mode mode) throws Exception {
+        File file = new File(folder.getRoot(), InstrumentationManifest.FILE_NAME);
+        InstrumentationManifest manifest = InstrumentationManifest.load(file, CONFIGURATION);
+        manifest.record("module/pom.xml", mode, new InstrumentationManifest.Entry("source", "output", true, false));
+        manifest.save();
+        return file;
+    }
+
+    @Test
+    public void skipsPomsInstrumentedInTheSameMode() throws Exception {
+        File file = save(PomPatcher.Mode.MANAGED);
+
+        InstrumentationManifest manifest = InstrumentationManifest.load(file, CONFIGURATION);
+
+        assertNotNull(manifest.getInstrumented("module/pom.xml", PomPatcher.Mode.MANAGED, "output"));
+        assertNull(manifest.getInstrumented("module/pom.xml", PomPatcher.Mode.MANAGED, "source"));
+    }
+
+    @Test
+    public void instrumentsAgainInAnotherMode() throws Exception {
+        File file = save(PomPatcher.Mode.MANAGED);
+
+        InstrumentationManifest manifest = InstrumentationManifest.load(file, CONFIGURATION);
+
+        assertNull(manifest.getInstrumented("module/pom.xml", PomPatcher.Mode.OVERRIDES, "output"));
+    }
+
+    @Test
+    public void instrumentsAgainForAnotherConfiguration() throws Exception {
+        File file = save(PomPatcher.Mode.OVERRIDES);
+
+        InstrumentationManifest manifest = InstrumentationManifest.load(file, CONFIGURATION + " -Dthundra.other=1");
+
+        assertNull(manifest.getInstrumented("module/pom.xml", PomPatcher.Mode.OVERRIDES, "output"));
+    }
+
+    @Test
+    public void dropsEntriesWithoutMode() throws Exception {
+        File file = save(PomPatcher.Mode.OVERRIDES);
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+        Files.write(file.toPath(), content.replace("pom.OVERRIDES\\:", "pom.").getBytes(StandardCharsets.ISO_8859_1));
+
+        InstrumentationManifest manifest = InstrumentationManifest.load(file, CONFIGURATION);
+
+        assertNull(manifest.getInstrumented("module/pom.xml", PomPatcher.Mode.OVERRIDES, "output"));
+    }
+
+    @Test
+    public void keepsTheSettingsForAnotherConfiguration() throws Exception {
+        File file = new File(folder.getRoot(), InstrumentationManifest.FILE_NAME);
+        List<PomPatcher.Setting> settings = Arrays.asList(new PomPatcher.Setting("forkCount", "1.5C", "${forks}"),
+                new PomPatcher.Setting("reuseForks", "true", null));
+        InstrumentationManifest manifest = InstrumentationManifest.load(file, CONFIGURATION + " forkCount=1.5C");
+        manifest.record("module/pom.xml", PomPatcher.Mode.MANAGED,
+                new InstrumentationManifest.Entry("source", "output", true, false, settings));
+        manifest.save();
+
+        InstrumentationManifest loaded = InstrumentationManifest.load(file, CONFIGURATION);
+
+        assertNull(loaded.getInstrumented("module/pom.xml", PomPatcher.Mode.MANAGED, "output"));
+        assertEquals(settings, loaded.getSettings("module/pom.xml"));
+        assertEquals(0, loaded.getSettings("other/pom.xml").size());
+    }
+}
@@ -0,0 +1,86 @@
+package io.thundra.foresight;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Discovers the poms of the reactor fixture next to this class, whose root pom lists modules both in its build and in
+ * a profile.
+ */
+public class PomDiscoveryTest {
+
+    private static final String EMPTY_POM = "<project><modelVersion>4.0.0</modelVersion></project>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    private File workspace;
+
+    @Before
+    public void copyReactor() throws Exception {
+        workspace = folder.newFolder("workspace");
+        FileUtils.copyDirectory(new File(getClass().getResource("reactor").toURI()), workspace);
+        // A module of the root pom, but outside of the workspace
+        FileUtils.write(new File(folder.getRoot(), "outside/pom.xml"), EMPTY_POM, "UTF-8");
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private List<String> discover(String excludes) throws Exception {
+        List<String> paths = new ArrayList<>();
+        for (File pom : new PomDiscovery(workspace, excludes, executor).discover()) {
+            paths.add(PomInstrumentationCallable.relativize(workspace, pom));
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    @Test
+    public void followsTheModulesOfTheBuildAndOfProfiles() throws Exception {
+        assertEquals(Arrays.asList("app/pom.xml", "core/pom.xml", "integration-tests/pom.xml", "legacy/pom.xml",
+                "pom.xml", "samples/demo/pom.xml", "samples/pom.xml", "standalone/pom.xml"), discover(null));
+    }
+
+    @Test
+    public void skipsExcludedPomsButFollowsTheirModules() throws Exception {
+        assertEquals(Arrays.asList("app/pom.xml", "core/pom.xml", "legacy/pom.xml", "pom.xml",
+                        "samples/demo/pom.xml", "standalone/pom.xml"),
+                discover("integration-tests/**, samples/pom.xml"));
+    }
+
+    @Test
+    public void excludesWholeDirectoriesWithGlobs() throws Exception {
+        assertEquals(Arrays.asList("app/pom.xml", "core/pom.xml", "integration-tests/pom.xml", "legacy/pom.xml",
+                "pom.xml", "standalone/pom.xml"), discover("samples/**"));
+    }
+
+    @Test
+    public void scansTheWorkspaceWithoutARootPom() throws Exception {
+        FileUtils.forceDelete(new File(workspace, "pom.xml"));
+        FileUtils.write(new File(workspace, "core/target/classes/META-INF/maven/pom.xml"), EMPTY_POM, "UTF-8");
+        FileUtils.write(new File(workspace, "unlisted/pom.xml"), EMPTY_POM, "UTF-8");
+
+        // Without modules to follow, the excluded directories are not scanned at all
+        assertEquals(Arrays.asList("app/pom.xml", "core/pom.xml", "integration-tests/pom.xml", "legacy/pom.xml",
+                "standalone/pom.xml", "unlisted/pom.xml"), discover("samples/**"));
+    }
+}
@@ -0,0 +1,155 @@
+package io.thundra.foresight;
+
+import io.thundra.plugin.maven.test.instrumentation.adder.ForkConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instruments the reactor fixture next to this class, whose modules inherit from the root pom or from poms outside of
+ * the reactor.
+ */
+public class PomInstrumentationCallableTest {
+
+    private static final String CONFIGURATION = "/ws/thundra-agent-bootstrap-2.7.0.jar -Dthundra.apiKey=key";
+    private static final String AGENT = "-javaagent:" + CONFIGURATION;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File workspace;
+
+    @Before
+    public void copyReactor() throws Exception {
+        workspace = folder.newFolder("workspace");
+        FileUtils.copyDirectory(new File(getClass().getResource("reactor").toURI()), workspace);
+    }
+
+    private PomInstrumentationResult instrument(String manifestPath) throws Exception {
+        return new PomInstrumentationCallable(CONFIGURATION, 2, manifestPath, null, null).invoke(workspace, null);
+    }
+
+    private PomInstrumentationResult instrument(String manifestPath, String forkCount) throws Exception {
+        String configuration = forkCount == null ? CONFIGURATION
+                : CONFIGURATION + " " + ForkConfiguration.FORK_NUMBER_PROPERTY;
+        return new PomInstrumentationCallable(configuration, 2, manifestPath, null, forkCount)
+                .invoke(workspace, null);
+    }
+
+    private static Map<String, PomInstrumentationResult.Pom> byPath(PomInstrumentationResult result) {
+        Map<String, PomInstrumentationResult.Pom> poms = new HashMap<>();
+        for (PomInstrumentationResult.Pom pom : result.getPoms()) {
+            poms.put(pom.getPath(), pom);
+        }
+        return poms;
+    }
+
+    private String read(String path) throws IOException {
+        return FileUtils.readFileToString(new File(workspace, path), "UTF-8");
+    }
+
+    private Map<String, String> snapshot() throws IOException {
+        Map<String, String> poms = new HashMap<>();
+        for (File pom : FileUtils.listFiles(workspace, new String[]{"xml"}, true)) {
+            poms.put(PomInstrumentationCallable.relativize(workspace, pom), FileUtils.readFileToString(pom, "UTF-8"));
+        }
+        return poms;
+    }
+
+    @Test
+    public void configuresThePluginManagementOfTheTopmostPoms() throws Exception {
+        Map<String, PomInstrumentationResult.Pom> poms = byPath(instrument(null));
+
+        assertEquals(8, poms.size());
+        for (String path : new String[]{"pom.xml", "standalone/pom.xml", "legacy/pom.xml"}) {
+            assertFalse(path, poms.get(path).isInherited());
+            assertTrue(path, read(path).contains("<pluginManagement>"));
+            assertTrue(path, poms.get(path).isSurefireInstrumented());
+            assertTrue(path, poms.get(path).isFailsafeInstrumented());
+        }
+        for (String path : new String[]{"core/pom.xml", "app/pom.xml", "integration-tests/pom.xml",
+                "samples/pom.xml", "samples/demo/pom.xml"}) {
+            assertTrue(path, poms.get(path).isInherited());
+            assertFalse(path, read(path).contains("<pluginManagement>"));
+        }
+    }
+
+    @Test
+    public void changesInheritingPomsOnlyWhereTheyOverrideTheArgLine() throws Exception {
+        Map<String, String> original = snapshot();
+
+        Map<String, PomInstrumentationResult.Pom> poms = byPath(instrument(null));
+
+        assertTrue(read("app/pom.xml").contains("<argLine>-Dapp.mode=test " + AGENT + "</argLine>"));
+        assertTrue(poms.get("app/pom.xml").isSurefireInstrumented());
+        assertTrue(poms.get("app/pom.xml").isModified());
+        for (String path : new String[]{"core/pom.xml", "integration-tests/pom.xml", "samples/pom.xml",
+                "samples/demo/pom.xml"}) {
+            assertEquals(path, original.get(path), read(path));
+            assertFalse(path, poms.get(path).isModified());
+            assertFalse(path, poms.get(path).isSurefireInstrumented());
+            assertFalse(path, poms.get(path).isFailsafeInstrumented());
+        }
+        // Declared in the root build without an argLine, surefire picks the agent up from the plugin management
+        assertTrue(read("pom.xml").contains("<version>3.0.0</version>\n            </plugin>"));
+    }
+
+    @Test
+    public void instrumentingAgainChangesNothing() throws Exception {
+        PomInstrumentationResult first = instrument(null);
+        Map<String, String> instrumented = snapshot();
+
+        PomInstrumentationResult second = instrument(null);
+
+        assertEquals(instrumented, snapshot());
+        assertEquals(4, first.getModifiedCount());
+        assertEquals(0, second.getModifiedCount());
+        assertTrue(byPath(second).get("pom.xml").isSurefireInstrumented());
+    }
+
+    @Test
+    public void skipsThePomsOfTheManifest() throws Exception {
+        String manifest = new File(folder.getRoot(), InstrumentationManifest.FILE_NAME).getPath();
+        PomInstrumentationResult first = instrument(manifest);
+        Map<String, String> instrumented = snapshot();
+
+        PomInstrumentationResult second = instrument(manifest);
+
+        assertEquals(0, first.getSkippedCount());
+        assertEquals(8, second.getSkippedCount());
+        assertEquals(0, second.getModifiedCount());
+        assertEquals(instrumented, snapshot());
+        Map<String, PomInstrumentationResult.Pom> poms = byPath(second);
+        assertTrue(poms.get("pom.xml").isSurefireInstrumented());
+        assertTrue(poms.get("app/pom.xml").isSurefireInstrumented());
+        assertFalse(poms.get("core/pom.xml").isSurefireInstrumented());
+    }
+
+    @Test
+    public void takesBackTheForkSettingsOnceTheForkCountIsCleared() throws Exception {
+        String manifest = new File(folder.getRoot(), InstrumentationManifest.FILE_NAME).getPath();
+        instrument(manifest, null);
+        Map<String, String> instrumented = snapshot();
+
+        instrument(manifest, "2");
+
+        assertTrue(read("pom.xml").contains("<forkCount>2</forkCount>"));
+        assertTrue(read("pom.xml").contains("<reuseForks>true</reuseForks>"));
+        assertTrue(read("app/pom.xml").contains(ForkConfiguration.FORK_NUMBER_PROPERTY));
+
+        instrument(manifest, null);
+
+        assertEquals(instrumented, snapshot());
+    }
+}
@@ -0,0 +1,83 @@
+package io.thundra.foresight;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Resolves the parents of the poms of the reactor fixture next to this class through their {@code relativePath}.
+ */
+public class ReactorGraphTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    private File workspace;
+
+    @Before
+    public void copyReactor() throws Exception {
+        workspace = folder.newFolder("workspace");
+        FileUtils.copyDirectory(new File(getClass().getResource("reactor").toURI()), workspace);
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private ReactorGraph read(String excludes) throws Exception {
+        List<File> poms = new PomDiscovery(workspace, excludes, executor).discover();
+        return ReactorGraph.read(poms, executor);
+    }
+
+    private File pom(String path) {
+        return new File(workspace, path);
+    }
+
+    @Test
+    public void resolvesTheDefaultRelativePath() throws Exception {
+        ReactorGraph graph = read(null);
+
+        assertFalse(graph.hasParentInReactor(pom("pom.xml")));
+        assertTrue(graph.hasParentInReactor(pom("core/pom.xml")));
+        assertTrue(graph.hasParentInReactor(pom("samples/demo/pom.xml")));
+    }
+
+    @Test
+    public void resolvesRelativePathsToFilesAndDirectories() throws Exception {
+        ReactorGraph graph = read(null);
+
+        assertTrue(graph.hasParentInReactor(pom("integration-tests/pom.xml")));
+        assertTrue(graph.hasParentInReactor(pom("app/pom.xml")));
+    }
+
+    @Test
+    public void ignoresParentsOutsideOfTheReactor() throws Exception {
+        ReactorGraph graph = read(null);
+
+        // An empty relativePath
+        assertFalse(graph.hasParentInReactor(pom("standalone/pom.xml")));
+        // Another version of the pom at the relativePath
+        assertFalse(graph.hasParentInReactor(pom("legacy/pom.xml")));
+    }
+
+    @Test
+    public void ignoresExcludedParents() throws Exception {
+        ReactorGraph graph = read("samples/pom.xml");
+
+        assertFalse(graph.hasParentInReactor(pom("samples/demo/pom.xml")));
+    }
+}
@@ -0,0 +1,76 @@
+package io.thundra.foresight;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the order {@link RepositoryChain} tries repositories in as their health changes.
+ */
+public class RepositoryChainTest {
+
+    private static final String MIRROR = "https://mirror.example.com/maven";
+    private static final String OTHER_MIRROR = "https://other-mirror.example.com/maven";
+    private static final String PUBLIC = "https://repo1.maven.org/maven2";
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final RepositoryChain chain = new RepositoryChain();
+
+    private List<String> order(long now, String... urls) {
+        return chain.order(Arrays.asList(urls), now);
+    }
+
+    @Test
+    public void keepsTheConfiguredOrderUntilMeasured() {
+        assertEquals(Arrays.asList(MIRROR, OTHER_MIRROR, PUBLIC), order(0, MIRROR, OTHER_MIRROR, PUBLIC));
+    }
+
+    @Test
+    public void triesMeasuredRepositoriesFastestFirst() {
+        chain.success(MIRROR, 50 * MILLIS);
+        chain.success(PUBLIC, 10 * MILLIS);
+
+        assertEquals(Arrays.asList(PUBLIC, MIRROR), order(0, MIRROR, PUBLIC));
+    }
+
+    @Test
+    public void triesUnmeasuredMirrorsBeforeMeasuredRepositories() {
+        chain.success(PUBLIC, 10 * MILLIS);
+
+        assertEquals(Arrays.asList(MIRROR, PUBLIC), order(0, MIRROR, PUBLIC));
+    }
+
+    @Test
+    public void triesAMirrorMissingAnArtifactFirst() {
+        // The mirror answered without the jar, which is no latency sample
+        chain.success(MIRROR, -1);
+        chain.success(PUBLIC, 10 * MILLIS);
+
+        assertEquals(Arrays.asList(MIRROR, PUBLIC), order(0, MIRROR, PUBLIC));
+    }
+
+    @Test
+    public void triesAFailedMirrorFirstAgainOnceItsQuarantineEnds() {
+        long now = System.currentTimeMillis();
+        chain.failure(MIRROR, new IOException("Connection refused"));
+        chain.success(PUBLIC, 10 * MILLIS);
+
+        assertEquals(Arrays.asList(PUBLIC, MIRROR), order(now, MIRROR, PUBLIC));
+        assertEquals(Arrays.asList(MIRROR, PUBLIC), order(now + TimeUnit.MINUTES.toMillis(1), MIRROR, PUBLIC));
+    }
+
+    @Test
+    public void triesQuarantinedRepositoriesLast() {
+        long now = System.currentTimeMillis();
+        chain.success(MIRROR, 1 * MILLIS);
+        chain.failure(MIRROR, new IOException("Connection reset"));
+        chain.success(PUBLIC, 100 * MILLIS);
+
+        assertEquals(Arrays.asList(OTHER_MIRROR, PUBLIC, MIRROR), order(now, MIRROR, OTHER_MIRROR, PUBLIC));
+    }
+}
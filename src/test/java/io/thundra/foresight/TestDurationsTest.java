@@ -0,0 +1,128 @@
+package io.thundra.foresight;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads test durations from JUnit XML reports with {@link TestDurations.ReportCollector} and keeps them in the
+ * durations file of a job.
+ */
+public class TestDurationsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File workspace;
+    private File marker;
+
+    @Before
+    public void createMarker() throws IOException {
+        workspace = folder.newFolder("workspace");
+        marker = new File(workspace, "target/thundra-foresight-shard-0.txt");
+        FileUtils.write(marker, "", "UTF-8");
+    }
+
+    private File report(String path, String suite, String time) throws IOException {
+        File report = new File(workspace, path);
+        FileUtils.write(report, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<testsuite name=\"" + suite + "\" time=\"" + time + "\" tests=\"1\">\n"
+                + "  <testcase name=\"test\" classname=\"" + suite + "\" time=\"" + time + "\"/>\n"
+                + "</testsuite>\n", "UTF-8");
+        return report;
+    }
+
+    private Map<String, Long> collect() throws Exception {
+        return new TestDurations.ReportCollector(marker.getPath()).invoke(workspace, null);
+    }
+
+    private static Map<String, Long> durations(Object... classesAndMillis) {
+        Map<String, Long> durations = new HashMap<>();
+        for (int i = 0; i < classesAndMillis.length; i += 2) {
+            durations.put((String) classesAndMillis[i], ((Number) classesAndMillis[i + 1]).longValue());
+        }
+        return durations;
+    }
+
+    @Test
+    public void readsSurefireAndGradleReports() throws Exception {
+        report("core/target/surefire-reports/TEST-com.example.CoreTest.xml", "com.example.CoreTest", "1.5");
+        report("app/build/test-results/test/TEST-com.example.AppTest.xml", "com.example.AppTest", "0.25");
+        // Surefire groups the thousands
+        report("target/surefire-reports/TEST-com.example.SlowTest.xml", "com.example.SlowTest", "1,234.5");
+
+        assertEquals(durations("com.example.CoreTest", 1500, "com.example.AppTest", 250,
+                "com.example.SlowTest", 1234500), collect());
+    }
+
+    @Test
+    public void countsNestedClassesForTheirTopLevelClass() throws Exception {
+        report("target/surefire-reports/TEST-com.example.OuterTest.xml", "com.example.OuterTest", "1");
+        report("target/surefire-reports/TEST-com.example.OuterTest$Inner.xml", "com.example.OuterTest$Inner", "2");
+        report("target/surefire-reports/TEST-com.example.OuterTest$Inner$Deeper.xml",
+                "com.example.OuterTest$Inner$Deeper", "0.5");
+
+        assertEquals(durations("com.example.OuterTest", 3500), collect());
+    }
+
+    @Test
+    public void ignoresReportsOfPreviousBuilds() throws Exception {
+        File stale = report("target/surefire-reports/TEST-com.example.OldTest.xml", "com.example.OldTest", "1");
+        assertTrue(stale.setLastModified(marker.lastModified() - TimeUnit.MINUTES.toMillis(10)));
+        report("target/surefire-reports/TEST-com.example.NewTest.xml", "com.example.NewTest", "1");
+
+        assertEquals(durations("com.example.NewTest", 1000), collect());
+    }
+
+    @Test
+    public void ignoresTruncatedAndInvalidReports() throws Exception {
+        FileUtils.write(new File(workspace, "target/surefire-reports/TEST-com.example.TruncatedTest.xml"),
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsui", "UTF-8");
+        FileUtils.write(new File(workspace, "target/surefire-reports/TEST-com.example.EmptyTest.xml"), "", "UTF-8");
+        report("target/surefire-reports/TEST-com.example.NoTimeTest.xml", "com.example.NoTimeTest", "n/a");
+        report("target/surefire-reports/TEST-com.example.ValidTest.xml", "com.example.ValidTest", "0.1");
+
+        assertEquals(durations("com.example.ValidTest", 100), collect());
+    }
+
+    @Test
+    public void keepsTheLatestDurationOfEachClass() throws Exception {
+        File file = new File(folder.getRoot(), TestDurations.FILE_NAME);
+        TestDurations.record(file, durations("A", 10, "B", 20));
+        TestDurations.record(file, durations("B", 30, "C", 40));
+
+        assertEquals(durations("A", 10, "B", 30, "C", 40), TestDurations.load(file));
+    }
+
+    @Test
+    public void dropsTheClassesABuildDidNotRun() throws Exception {
+        File file = new File(folder.getRoot(), TestDurations.FILE_NAME);
+        TestDurations.record(file, durations("A", 10, "Deleted", 20, "B", 30));
+
+        assertEquals(1, TestDurations.retain(file, new HashSet<>(Arrays.asList("A", "B", "New"))));
+        assertEquals(durations("A", 10, "B", 30), TestDurations.load(file));
+        assertEquals(0, TestDurations.retain(file, new HashSet<>(Arrays.asList("A", "B"))));
+    }
+
+    @Test
+    public void loadsNothingWithoutAFile() throws Exception {
+        File file = new File(folder.getRoot(), TestDurations.FILE_NAME);
+
+        assertEquals(Collections.emptyMap(), TestDurations.load(file));
+        assertEquals(0, TestDurations.retain(file, Collections.singleton("A")));
+    }
+}
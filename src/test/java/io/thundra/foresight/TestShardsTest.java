@@ -0,0 +1,91 @@
+package io.thundra.foresight;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks how {@link TestShards} splits test classes by duration and collects the classes the shards ran.
+ */
+public class TestShardsTest {
+
+    private static Map<String, Long> durations(Object... classesAndMillis) {
+        Map<String, Long> durations = new HashMap<>();
+        for (int i = 0; i < classesAndMillis.length; i += 2) {
+            durations.put((String) classesAndMillis[i], ((Number) classesAndMillis[i + 1]).longValue());
+        }
+        return durations;
+    }
+
+    @Test
+    public void givesTheLongestClassesToTheLightestShards() {
+        TestShards.Plan plan = TestShards.plan(durations("A", 50, "B", 40, "C", 30, "D", 20, "E", 10), 2);
+
+        // A to 0, B to 1, C to 1 (40 < 50), D to 0 (50 < 70), E to 0 (70 = 70, the first)
+        assertEquals(2, plan.getCount());
+        assertEquals(Arrays.asList("A", "D", "E"), plan.getClasses(0));
+        assertEquals(Arrays.asList("B", "C"), plan.getClasses(1));
+        assertEquals(80, plan.getMillis(0));
+        assertEquals(70, plan.getMillis(1));
+    }
+
+    @Test
+    public void breaksTiesByName() {
+        TestShards.Plan plan = TestShards.plan(durations("com.example.B", 10, "com.example.A", 10,
+                "com.example.C", 10), 2);
+
+        assertEquals(Arrays.asList("com.example.A", "com.example.C"), plan.getClasses(0));
+        assertEquals(Collections.singletonList("com.example.B"), plan.getClasses(1));
+    }
+
+    @Test
+    public void leavesShardsEmptyWithoutEnoughClasses() {
+        TestShards.Plan plan = TestShards.plan(durations("A", 10), 3);
+
+        assertEquals(Collections.singletonList("A"), plan.getClasses(0));
+        assertEquals(Collections.emptyList(), plan.getClasses(1));
+        assertEquals(Collections.emptyList(), plan.getClasses(2));
+        assertEquals(0, plan.getMillis(2));
+    }
+
+    @Test
+    public void plansNothingWithoutDurations() {
+        TestShards.Plan plan = TestShards.plan(Collections.emptyMap(), 2);
+
+        assertEquals(Collections.emptyList(), plan.getClasses(0));
+        assertEquals(Collections.emptyList(), plan.getOtherClasses(0));
+    }
+
+    @Test
+    public void listsTheClassesOfTheOtherShards() {
+        TestShards.Plan plan = TestShards.plan(durations("A", 30, "B", 20, "C", 10, "D", 5), 3);
+
+        assertEquals(Arrays.asList("B", "C", "D"), plan.getOtherClasses(0));
+        assertEquals(Arrays.asList("A", "C", "D"), plan.getOtherClasses(1));
+    }
+
+    @Test
+    public void returnsTheClassesRunOnceEveryShardReported() {
+        TestShards.Plan plan = TestShards.plan(durations("A", 30, "B", 20), 2);
+
+        assertNull(plan.report(1, Collections.singleton("B")));
+        // Reported again, by a retried branch for instance
+        assertNull(plan.report(1, Collections.singleton("B")));
+        assertEquals(new HashSet<>(Arrays.asList("A", "B", "New")), plan.report(0, Arrays.asList("A", "New")));
+    }
+
+    @Test
+    public void ignoresShardsReportingNoClasses() {
+        TestShards.Plan plan = TestShards.plan(durations("A", 30, "B", 20), 2);
+
+        assertNull(plan.report(0, Collections.singleton("A")));
+        assertNull(plan.report(1, Collections.emptySet()));
+    }
+}
@@ -0,0 +1,196 @@
+package io.thundra.plugin.maven.test.instrumentation.adder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link ArgLineMerger} on a few examples, then on random argLines against a simple model of the merge working
+ * on whole arguments.
+ */
+public class ArgLineMergerTest {
+
+    private static final String AGENT = "/ws/tools/thundra-agent-bootstrap-2.7.0.jar";
+    private static final String AGENT_WITH_SPACES = "/my ws/tools/thundra-agent-bootstrap-2.7.0.jar";
+    private static final String CONFIGURATION = AGENT + " -Dthundra.apiKey=key -Dthundra.agent.test.project.id=project";
+
+    private static final List<String> ARGUMENTS = Arrays.asList(
+            "-Xmx512m", "-ea", "-Dfile.encoding=UTF-8", "-Dx=1", "-Dx=2", "@{argLine}", "${surefireArgLine}", "${a b}",
+            "\"-Dquoted=a b\"", "'-Dsingle=c d'", "-javaagent:/other/agent.jar",
+            "-javaagent:" + AGENT, "-javaagent:/old/thundra-agent-bootstrap-2.6.0.jar",
+            "\"-javaagent:/old dir/thundra-agent-bootstrap-2.6.0.jar\"", "\"-javaagent:" + AGENT_WITH_SPACES + "\"",
+            "-Dthundra.apiKey=old", "-Dthundra.agent.test.project.id=old", "-Dthundra.agent.test.run.id=old",
+            "-Dthundra.custom=1", "-Dthundra.custom=2", "\"-Dthundra.quoted=a b\"",
+            ForkConfiguration.FORK_NUMBER_PROPERTY);
+    private static final List<String> WHITESPACE = Arrays.asList(" ", "  ", "\t", "\n        ");
+
+    @Test
+    public void addsTheAgentToAnEmptyArgLine() {
+        assertEquals("-javaagent:" + CONFIGURATION, ArgLineMerger.merge(null, CONFIGURATION));
+        assertEquals("-javaagent:" + CONFIGURATION, ArgLineMerger.merge("  ", CONFIGURATION));
+    }
+
+    @Test
+    public void replacesThePreviousAgentInPlace() {
+        String argLine = "-Xmx1g -javaagent:/old/thundra-agent-bootstrap-2.6.0.jar -Dthundra.apiKey=old @{argLine}";
+
+        assertEquals("-Xmx1g -javaagent:" + AGENT + " -Dthundra.apiKey=key @{argLine} "
+                + "-Dthundra.agent.test.project.id=project", ArgLineMerger.merge(argLine, CONFIGURATION));
+    }
+
+    @Test
+    public void quotesAnAgentPathWithSpaces() {
+        String configuration = ArgLineMerger.quote(AGENT_WITH_SPACES) + " -Dthundra.apiKey=key";
+
+        String merged = ArgLineMerger.merge("-Xmx1g -javaagent:" + AGENT, configuration);
+
+        assertEquals("-Xmx1g \"-javaagent:" + AGENT_WITH_SPACES + "\" -Dthundra.apiKey=key", merged);
+        assertEquals(merged, ArgLineMerger.merge(merged, configuration));
+    }
+
+    @Test
+    public void doesNotQuotePathsWithoutSpaces() {
+        assertEquals(AGENT, ArgLineMerger.quote(AGENT));
+    }
+
+    @Test
+    public void dropsTheRunIdUnlessConfigured() {
+        String argLine = "-Dthundra.agent.test.run.id=old -Xmx1g";
+
+        assertEquals("-Xmx1g -javaagent:" + CONFIGURATION, ArgLineMerger.merge(argLine, CONFIGURATION));
+        assertEquals("-Dthundra.agent.test.run.id=new -Xmx1g -javaagent:" + CONFIGURATION,
+                ArgLineMerger.merge(argLine, CONFIGURATION + " -Dthundra.agent.test.run.id=new"));
+    }
+
+    @Test
+    public void dropsTheForkNumberUnlessConfigured() {
+        String configured = "-Xmx1g -javaagent:" + CONFIGURATION + " " + ForkConfiguration.FORK_NUMBER_PROPERTY;
+
+        assertEquals(configured, ArgLineMerger.merge("-Xmx1g",
+                CONFIGURATION + " " + ForkConfiguration.FORK_NUMBER_PROPERTY));
+        assertEquals("-Xmx1g -javaagent:" + CONFIGURATION, ArgLineMerger.merge(configured, CONFIGURATION));
+    }
+
+    @Test
+    public void matchesTheModelOnRandomArgLines() {
+        Random random = new Random(42);
+        List<String> configurations = Arrays.asList(CONFIGURATION,
+                ArgLineMerger.quote(AGENT_WITH_SPACES) + " -Dthundra.apiKey=key",
+                CONFIGURATION + " -Dthundra.agent.test.run.id=run " + ForkConfiguration.FORK_NUMBER_PROPERTY);
+        for (int i = 0; i < 5000; i++) {
+            List<String> arguments = new ArrayList<>();
+            StringBuilder argLine = new StringBuilder();
+            for (int n = random.nextInt(8); n > 0; n--) {
+                String argument = ARGUMENTS.get(random.nextInt(ARGUMENTS.size()));
+                arguments.add(argument);
+                argLine.append(WHITESPACE.get(random.nextInt(WHITESPACE.size()))).append(argument);
+            }
+            String configuration = configurations.get(random.nextInt(configurations.size()));
+
+            String merged = ArgLineMerger.merge(argLine.toString(), configuration);
+
+            String message = "argLine: " + argLine + ", configuration: " + configuration;
+            assertEquals(message, model(arguments, configuration), merged);
+            assertEquals("Not idempotent, " + message, merged, ArgLineMerger.merge(merged, configuration));
+        }
+    }
+
+    /**
+     * The merge on whole arguments, see the documentation of {@link ArgLineMerger}.
+     */
+    private static String model(List<String> arguments, String configuration) {
+        // The test configurations only have spaces in a quoted agent path
+        String agentPath;
+        List<String> properties;
+        if (configuration.startsWith("\"")) {
+            int end = configuration.indexOf('"', 1);
+            agentPath = configuration.substring(1, end);
+            properties = split(configuration.substring(end + 1));
+        } else {
+            List<String> parts = split(configuration);
+            agentPath = parts.get(0);
+            properties = parts.subList(1, parts.size());
+        }
+        String agent = ArgLineMerger.quote("-javaagent:" + agentPath);
+        List<String> result = new ArrayList<>();
+        boolean agentWritten = false;
+        boolean[] written = new boolean[properties.size()];
+        for (int i = 0; i < arguments.size(); i++) {
+            String argument = unquote(arguments.get(i));
+            if (isThundraAgent(argument, agentPath)) {
+                if (!agentWritten) {
+                    result.add(agent);
+                    agentWritten = true;
+                }
+                continue;
+            }
+            if (argument.startsWith("-Dthundra.")) {
+                int configured = indexOfKey(properties, key(argument));
+                if (configured >= 0) {
+                    if (!written[configured]) {
+                        result.add(properties.get(configured));
+                        written[configured] = true;
+                    }
+                    continue;
+                }
+                if (key(argument).equals("-Dthundra.agent.test.run.id")
+                        || key(argument).equals("-Dthundra.agent.test.fork.number")
+                        || indexOfKey(arguments.subList(i + 1, arguments.size()), key(argument)) >= 0) {
+                    continue;
+                }
+            }
+            result.add(arguments.get(i));
+        }
+        if (!agentWritten) {
+            result.add(agent);
+        }
+        for (int i = 0; i < properties.size(); i++) {
+            if (!written[i]) {
+                result.add(properties.get(i));
+            }
+        }
+        return String.join(" ", result);
+    }
+
+    private static List<String> split(String value) {
+        List<String> parts = new ArrayList<>();
+        for (String part : value.trim().split(" ")) {
+            if (!part.isEmpty()) {
+                parts.add(part);
+            }
+        }
+        return parts;
+    }
+
+    private static String unquote(String argument) {
+        char first = argument.charAt(0);
+        return (first == '"' || first == '\'') ? argument.substring(1, argument.length() - 1) : argument;
+    }
+
+    private static boolean isThundraAgent(String argument, String agentPath) {
+        if (!argument.startsWith("-javaagent:")) {
+            return false;
+        }
+        String path = argument.substring("-javaagent:".length());
+        return path.equals(agentPath) || path.substring(path.lastIndexOf('/') + 1).startsWith("thundra-agent-bootstrap");
+    }
+
+    private static String key(String argument) {
+        int equals = argument.indexOf('=');
+        return equals < 0 ? argument : argument.substring(0, equals);
+    }
+
+    private static int indexOfKey(List<String> arguments, String key) {
+        for (int i = 0; i < arguments.size(); i++) {
+            if (key(unquote(arguments.get(i))).equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
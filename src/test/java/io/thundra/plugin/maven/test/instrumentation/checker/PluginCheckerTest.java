@@ -0,0 +1,88 @@
+package io.thundra.plugin.maven.test.instrumentation.checker;
+
+import io.thundra.plugin.maven.test.instrumentation.patcher.PomPatcher;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the deprecated checkers patch pom files as {@link PomPatcher} does.
+ */
+@SuppressWarnings("deprecation")
+public class PluginCheckerTest {
+
+    private static final Logger logger = LogManager.getLogger(PluginCheckerTest.class);
+    private static final String AGENT = "/tools/thundra-agent-bootstrap-2.7.0.jar -Dthundra.apiKey=key";
+    private static final String POM = "<project>\n"
+            + "  <build>\n"
+            + "    <plugins>\n"
+            + "      <plugin>\n"
+            + "        <artifactId>maven-surefire-plugin</artifactId>\n"
+            + "      </plugin>\n"
+            + "    </plugins>\n"
+            + "  </build>\n"
+            + "  <profiles>\n"
+            + "    <profile>\n"
+            + "      <id>it</id>\n"
+            + "      <build>\n"
+            + "        <plugins>\n"
+            + "          <plugin>\n"
+            + "            <artifactId>maven-surefire-plugin</artifactId>\n"
+            + "            <configuration>\n"
+            + "              <argLine>-Xmx1g</argLine>\n"
+            + "            </configuration>\n"
+            + "          </plugin>\n"
+            + "        </plugins>\n"
+            + "      </build>\n"
+            + "    </profile>\n"
+            + "  </profiles>\n"
+            + "</project>\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String content) throws Exception {
+        File pom = folder.newFile("pom.xml");
+        FileUtils.write(pom, content, "UTF-8");
+        return pom;
+    }
+
+    @Test
+    public void patchesThePomAsThePatcher() throws Exception {
+        File pom = write(POM);
+        SurefireChecker surefire = new SurefireChecker();
+        FailsafeChecker failsafe = new FailsafeChecker();
+
+        for (Checker checker : new Checker[]{surefire, failsafe}) {
+            checker.checkProfiles(logger, new MavenXpp3Reader(), AGENT, pom.getPath(), true);
+            checker.checkPom(logger, new MavenXpp3Reader(), AGENT, pom.getPath(), true);
+        }
+
+        PomPatcher patcher = new PomPatcher(PomPatcher.SUREFIRE_PLUGIN, PomPatcher.FAILSAFE_PLUGIN);
+        assertEquals(patcher.patch(POM, AGENT, true), FileUtils.readFileToString(pom, "UTF-8"));
+        assertTrue(surefire.instrumented.get());
+        assertTrue(failsafe.instrumented.get());
+    }
+
+    @Test
+    public void addsNoPluginWhenCheckingProfiles() throws Exception {
+        File pom = write(POM);
+        FailsafeChecker failsafe = new FailsafeChecker();
+
+        failsafe.checkProfiles(logger, new MavenXpp3Reader(), AGENT, pom.getPath(), true);
+        failsafe.checkPom(logger, new MavenXpp3Reader(), AGENT, pom.getPath(), false);
+
+        assertEquals(POM, FileUtils.readFileToString(pom, "UTF-8"));
+        assertFalse(failsafe.instrumented.get());
+    }
+}
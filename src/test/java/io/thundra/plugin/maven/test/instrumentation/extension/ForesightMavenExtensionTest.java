@@ -0,0 +1,111 @@
+package io.thundra.plugin.maven.test.instrumentation.extension;
+
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+import org.codehaus.plexus.util.xml.Xpp3DomBuilder;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks how {@link ForesightMavenExtension} restricts the Surefire configurations to the test classes of a shard.
+ */
+public class ForesightMavenExtensionTest {
+
+    private static Plugin surefire(String configuration) throws Exception {
+        Plugin plugin = new Plugin();
+        plugin.setArtifactId("maven-surefire-plugin");
+        if (configuration != null) {
+            plugin.setConfiguration(Xpp3DomBuilder.build(new StringReader(configuration)));
+        }
+        return plugin;
+    }
+
+    private static List<String> values(Xpp3Dom configuration, String parent) {
+        List<String> values = new ArrayList<>();
+        for (Xpp3Dom child : configuration.getChild(parent).getChildren()) {
+            values.add(child.getValue());
+        }
+        return values;
+    }
+
+    private static Xpp3Dom configuration(Plugin plugin) {
+        return (Xpp3Dom) plugin.getConfiguration();
+    }
+
+    @Test
+    public void replacesTheIncludesWithTheClassesOfTheShard() throws Exception {
+        Plugin plugin = surefire("<configuration>"
+                + "<includes><include>**/*IT.java</include></includes>"
+                + "<includesFile>tests.txt</includesFile>"
+                + "<argLine>-Xmx1g</argLine>"
+                + "</configuration>");
+
+        ForesightMavenExtension.shard(plugin, Arrays.asList("com.example.ATest", "com.example.BTest"), true);
+
+        Xpp3Dom configuration = configuration(plugin);
+        assertEquals(Arrays.asList("com/example/ATest.java", "com/example/BTest.java"),
+                values(configuration, "includes"));
+        assertEquals(1, configuration.getChildren("includes").length);
+        assertNull(configuration.getChild("includesFile"));
+        assertNull(configuration.getChild("skipTests"));
+        assertEquals("-Xmx1g", configuration.getChild("argLine").getValue());
+    }
+
+    @Test
+    public void skipsTheTestsOfAnEmptyShard() throws Exception {
+        Plugin plugin = surefire("<configuration><skipTests>false</skipTests></configuration>");
+
+        ForesightMavenExtension.shard(plugin, Collections.emptyList(), true);
+
+        Xpp3Dom configuration = configuration(plugin);
+        assertEquals(Collections.emptyList(), values(configuration, "includes"));
+        assertEquals(1, configuration.getChildren("skipTests").length);
+        assertEquals("true", configuration.getChild("skipTests").getValue());
+    }
+
+    @Test
+    public void excludesTheClassesOfTheOtherShardsAndNestedClasses() throws Exception {
+        Plugin plugin = surefire(null);
+
+        ForesightMavenExtension.shard(plugin, Collections.singletonList("com.example.ATest"), false);
+
+        assertEquals(Arrays.asList("**/*$*", "com/example/ATest.java"), values(configuration(plugin), "excludes"));
+    }
+
+    @Test
+    public void addsToTheConfiguredExcludes() throws Exception {
+        Plugin plugin = surefire("<configuration>"
+                + "<excludes><exclude>**/Slow*.java</exclude></excludes>"
+                + "</configuration>");
+
+        ForesightMavenExtension.shard(plugin, Collections.singletonList("com.example.ATest"), false);
+
+        assertEquals(Arrays.asList("**/Slow*.java", "com/example/ATest.java"),
+                values(configuration(plugin), "excludes"));
+    }
+
+    @Test
+    public void restrictsEveryExecution() throws Exception {
+        Plugin plugin = surefire(null);
+        PluginExecution execution = new PluginExecution();
+        execution.setId("default-test");
+        execution.setConfiguration(Xpp3DomBuilder.build(new StringReader(
+                "<configuration><includes><include>**/*Test.java</include></includes></configuration>")));
+        plugin.addExecution(execution);
+
+        ForesightMavenExtension.shard(plugin, Collections.singletonList("com.example.ATest"), true);
+
+        assertEquals(Collections.singletonList("com/example/ATest.java"), values(configuration(plugin), "includes"));
+        assertEquals(Collections.singletonList("com/example/ATest.java"),
+                values((Xpp3Dom) execution.getConfiguration(), "includes"));
+    }
+}
@@ -0,0 +1,123 @@
+package io.thundra.plugin.maven.test.instrumentation.patcher;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link PomPatcher} writes pom files back in their own encoding, or leaves them untouched.
+ */
+public class PomPatcherEncodingTest {
+
+    private static final String SUREFIRE = "org.apache.maven.plugins:maven-surefire-plugin";
+    private static final String AGENT = "-javaagent:/tools/thundra-agent.jar";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String pom(String declaration) {
+        return declaration + "<project>\n"
+                + "  <!-- Café, naïve -->\n"
+                + "  <artifactId>app</artifactId>\n"
+                + "</project>\n";
+    }
+
+    private File write(byte[] content) throws IOException {
+        File pom = new File(folder.getRoot(), "pom.xml");
+        Files.write(pom.toPath(), content);
+        return pom;
+    }
+
+    private File write(String content, Charset charset) throws IOException {
+        return write(content.getBytes(charset));
+    }
+
+    private static String read(File pom, Charset charset) throws IOException {
+        return new String(Files.readAllBytes(pom.toPath()), charset);
+    }
+
+    private static void assertPatched(File pom, Charset charset, String original) throws IOException {
+        String patched = read(pom, charset);
+        assertTrue(patched, patched.contains(AGENT));
+        assertTrue(patched, patched.contains("<!-- Café, naïve -->"));
+        assertEquals(new PomPatcher(SUREFIRE).patch(original, AGENT, PomPatcher.Mode.MANAGED), patched);
+    }
+
+    @Test
+    public void keepsUtf8ByDefault() throws Exception {
+        String content = pom("");
+        File pom = write(content, StandardCharsets.UTF_8);
+
+        assertTrue(new PomPatcher(SUREFIRE).patch(pom, AGENT, PomPatcher.Mode.MANAGED).isChanged());
+
+        assertPatched(pom, StandardCharsets.UTF_8, content);
+    }
+
+    @Test
+    public void keepsTheDeclaredEncoding() throws Exception {
+        String content = pom("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n");
+        File pom = write(content, StandardCharsets.ISO_8859_1);
+
+        new PomPatcher(SUREFIRE).patch(pom, AGENT, PomPatcher.Mode.MANAGED);
+
+        assertPatched(pom, StandardCharsets.ISO_8859_1, content);
+    }
+
+    @Test
+    public void keepsUtf16WithItsByteOrderMark() throws Exception {
+        String content = "\uFEFF" + pom("<?xml version=\"1.0\" encoding=\"UTF-16\"?>\n");
+        File pom = write(content, StandardCharsets.UTF_16LE);
+
+        new PomPatcher(SUREFIRE).patch(pom, AGENT, PomPatcher.Mode.MANAGED);
+
+        assertPatched(pom, StandardCharsets.UTF_16LE, content);
+    }
+
+    @Test
+    public void leavesMalformedPomsUntouched() throws Exception {
+        // Declared UTF-8 but written in ISO-8859-1
+        byte[] content = pom("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n").getBytes(StandardCharsets.ISO_8859_1);
+        assertUntouched(write(content), content);
+    }
+
+    @Test
+    public void leavesPomsInUnsupportedEncodingsUntouched() throws Exception {
+        byte[] content = pom("<?xml version=\"1.0\" encoding=\"X-UNKNOWN-1\"?>\n").getBytes(StandardCharsets.UTF_8);
+        assertUntouched(write(content), content);
+    }
+
+    @Test
+    public void leavesPomsUntouchedWhenTheAgentCannotBeEncoded() throws Exception {
+        byte[] content = "<?xml version=\"1.0\" encoding=\"US-ASCII\"?>\n<project>\n</project>\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        File pom = write(content);
+        try {
+            new PomPatcher(SUREFIRE).patch(pom, "-javaagent:/tools/agént.jar", PomPatcher.Mode.MANAGED);
+            fail("Expected the agent path not to be encodable");
+        } catch (IOException expected) {
+            assertArrayEquals(content, Files.readAllBytes(pom.toPath()));
+        }
+        assertFalse(new File(folder.getRoot(), "pom.xml.thundra.tmp").exists());
+    }
+
+    private static void assertUntouched(File pom, byte[] content) throws IOException {
+        try {
+            new PomPatcher(SUREFIRE).patch(pom, AGENT, PomPatcher.Mode.MANAGED);
+            fail("Expected the pom to be rejected");
+        } catch (IOException expected) {
+            assertArrayEquals(content, Files.readAllBytes(pom.toPath()));
+        }
+    }
+}
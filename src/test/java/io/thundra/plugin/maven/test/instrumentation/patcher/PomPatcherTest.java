@@ -0,0 +1,166 @@
+package io.thundra.plugin.maven.test.instrumentation.patcher;
+
+import io.thundra.plugin.maven.test.instrumentation.adder.ForkConfiguration;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Patches the pom fixtures next to this class in every {@link PomPatcher.Mode} and compares the output with the
+ * expected pom, named after the fixture and the mode (<code>plugins-managed.xml</code> for instance).
+ */
+public class PomPatcherTest {
+
+    private static final String CONFIGURATION = "/ws/thundra-agent-bootstrap-2.7.0.jar -Dthundra.apiKey=key";
+    private static final String FORKED_POM = "<project>\n"
+            + "    <build>\n"
+            + "        <plugins>\n"
+            + "            <plugin>\n"
+            + "                <artifactId>maven-surefire-plugin</artifactId>\n"
+            + "                <configuration>\n"
+            + "                    <forkCount>4</forkCount>\n"
+            + "                </configuration>\n"
+            + "            </plugin>\n"
+            + "        </plugins>\n"
+            + "    </build>\n"
+            + "</project>\n";
+
+    private final PomPatcher patcher = new PomPatcher(PomPatcher.SUREFIRE_PLUGIN, PomPatcher.FAILSAFE_PLUGIN);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String fixture(String name) throws IOException {
+        try (InputStream in = PomPatcherTest.class.getResourceAsStream(name)) {
+            assertNotNull("Missing fixture " + name, in);
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String expected(String name, PomPatcher.Mode mode) throws IOException {
+        return fixture(name + "-" + mode.name().toLowerCase(Locale.ROOT).replace('_', '-') + ".xml");
+    }
+
+    private void assertPatched(String name, PomPatcher.Mode mode) throws IOException {
+        String patched = patcher.patch(fixture(name + ".xml"), CONFIGURATION, mode);
+
+        assertEquals(name + " in " + mode, expected(name, mode), patched);
+        assertEquals(name + " patched twice in " + mode, patched, patcher.patch(patched, CONFIGURATION, mode));
+    }
+
+    @Test
+    public void patchesDeclaredPlugins() throws Exception {
+        assertPatched("plugins", PomPatcher.Mode.DECLARED);
+        assertPatched("no-build", PomPatcher.Mode.DECLARED);
+        assertPatched("overrides", PomPatcher.Mode.DECLARED);
+    }
+
+    @Test
+    public void addsMissingPluginsToTheBuild() throws Exception {
+        assertPatched("plugins", PomPatcher.Mode.ADD_MISSING);
+        assertPatched("no-build", PomPatcher.Mode.ADD_MISSING);
+        assertPatched("overrides", PomPatcher.Mode.ADD_MISSING);
+    }
+
+    @Test
+    public void configuresThePluginsInPluginManagement() throws Exception {
+        assertPatched("plugins", PomPatcher.Mode.MANAGED);
+        assertPatched("no-build", PomPatcher.Mode.MANAGED);
+        assertPatched("overrides", PomPatcher.Mode.MANAGED);
+    }
+
+    @Test
+    public void patchesOnlyArgLinesOverridingTheParent() throws Exception {
+        assertPatched("plugins", PomPatcher.Mode.OVERRIDES);
+        assertPatched("no-build", PomPatcher.Mode.OVERRIDES);
+        assertPatched("overrides", PomPatcher.Mode.OVERRIDES);
+    }
+
+    @Test
+    public void reportsWhetherAPomFileChanged() throws Exception {
+        File pom = folder.newFile("pom.xml");
+        Files.write(pom.toPath(), fixture("overrides.xml").getBytes(StandardCharsets.UTF_8));
+
+        PomPatcher.Result first = patcher.patch(pom, CONFIGURATION, PomPatcher.Mode.OVERRIDES);
+        assertTrue(first.isChanged());
+        assertEquals(Collections.singleton(PomPatcher.SUREFIRE_PLUGIN), first.getInstrumentedPlugins());
+        assertEquals(expected("overrides", PomPatcher.Mode.OVERRIDES),
+                new String(Files.readAllBytes(pom.toPath()), StandardCharsets.UTF_8));
+
+        PomPatcher.Result second = patcher.patch(pom, CONFIGURATION, PomPatcher.Mode.OVERRIDES);
+        assertFalse(second.isChanged());
+        assertTrue(second.isInstrumented(PomPatcher.SUREFIRE_PLUGIN));
+    }
+
+    @Test
+    public void reportsEveryInstrumentedPlugin() throws Exception {
+        File pom = folder.newFile("pom.xml");
+        Files.write(pom.toPath(), fixture("no-build.xml").getBytes(StandardCharsets.UTF_8));
+
+        PomPatcher.Result result = patcher.patch(pom, CONFIGURATION, PomPatcher.Mode.MANAGED);
+
+        assertTrue(result.isChanged());
+        assertEquals(new HashSet<>(Arrays.asList(PomPatcher.SUREFIRE_PLUGIN, PomPatcher.FAILSAFE_PLUGIN)),
+                result.getInstrumentedPlugins());
+    }
+
+    @Test
+    public void takesBackTheSettingsNoLongerEnforced() throws Exception {
+        File pom = folder.newFile("pom.xml");
+        Files.write(pom.toPath(), FORKED_POM.getBytes(StandardCharsets.UTF_8));
+        Map<String, String> forks = ForkConfiguration.of("2");
+
+        PomPatcher.Result forked = new PomPatcher(forks, Collections.emptyList(), PomPatcher.SUREFIRE_PLUGIN)
+                .patch(pom, CONFIGURATION, PomPatcher.Mode.DECLARED);
+
+        String patched = new String(Files.readAllBytes(pom.toPath()), StandardCharsets.UTF_8);
+        assertTrue(patched, patched.contains("<forkCount>2</forkCount>"));
+        assertTrue(patched, patched.contains("<reuseForks>true</reuseForks>"));
+        assertEquals(Arrays.asList(new PomPatcher.Setting("forkCount", "2", "4"),
+                new PomPatcher.Setting("reuseForks", "true", null)), forked.getSettings());
+
+        PomPatcher.Result reverted = new PomPatcher(Collections.emptyMap(), forked.getSettings(),
+                PomPatcher.SUREFIRE_PLUGIN).patch(pom, CONFIGURATION, PomPatcher.Mode.DECLARED);
+
+        assertTrue(reverted.isChanged());
+        assertTrue(reverted.getSettings().isEmpty());
+        assertEquals(new PomPatcher(PomPatcher.SUREFIRE_PLUGIN).patch(FORKED_POM, CONFIGURATION,
+                PomPatcher.Mode.DECLARED), new String(Files.readAllBytes(pom.toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void keepsTheForkSettingsOfTheUser() throws Exception {
+        File pom = folder.newFile("pom.xml");
+        Files.write(pom.toPath(), FORKED_POM.getBytes(StandardCharsets.UTF_8));
+        PomPatcher.Result forked = new PomPatcher(ForkConfiguration.of("4"), Collections.emptyList(),
+                PomPatcher.SUREFIRE_PLUGIN).patch(pom, CONFIGURATION, PomPatcher.Mode.DECLARED);
+
+        // The user already forked 4 times, only reuseForks is the instrumentation's
+        assertEquals(Collections.singletonList(new PomPatcher.Setting("reuseForks", "true", null)),
+                forked.getSettings());
+
+        new PomPatcher(Collections.emptyMap(), forked.getSettings(), PomPatcher.SUREFIRE_PLUGIN)
+                .patch(pom, CONFIGURATION, PomPatcher.Mode.DECLARED);
+
+        String reverted = new String(Files.readAllBytes(pom.toPath()), StandardCharsets.UTF_8);
+        assertTrue(reverted, reverted.contains("<forkCount>4</forkCount>"));
+        assertFalse(reverted, reverted.contains("reuseForks"));
+    }
+}